@@ -0,0 +1,211 @@
+package org.ncgr.gwas;
+
+import java.io.PrintStream;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.commons.math3.stat.inference.MannWhitneyUTest;
+
+import org.mskcc.cbio.portal.stats.FisherExact;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/**
+ * Collapses rare variants into per-gene burden tests during a single sorted pass over a VCF.
+ *
+ * A variant qualifies if its MAF (as computed by VCFSegregation.getMAF) is above zero and below maxMAF; its minor alleles are those other
+ * than the majority allele. For each gene (a GFF feature of the given type) containing qualifying variants, two tests compare cases and controls:
+ *   CAST   two-tailed Fisher exact test of carriers (samples with a minor allele at any qualifying variant) vs. non-carriers
+ *   MB     Madsen-Browning weighted burden: each sample's score sums its minor allele counts weighted by 1/sqrt(n q (1-q)), with n the
+ *          genotyped samples and q=(m+1)/(2c+2) from the m minor alleles of the c genotyped controls, compared by a Mann-Whitney U test
+ *
+ * Variants must arrive in position order within each contig. Genes are found with an IntervalSweep, and a gene's carriers (a BitSet)
+ * and scores are only held until the stream passes its end, when its tests are written out, so memory is bounded by the overlapping genes.
+ *
+ * @author Sam Hokin
+ */
+public class BurdenCollector {
+
+    GFFTable table;
+    Map<String,IntervalIndex> geneIndexes;
+    double maxMAF;
+    PrintStream out;
+
+    // samples in the test, by index
+    Map<String,Integer> sampleIndexes = new HashMap<>();
+    boolean[] isCase;
+    int nCases;
+    int nControls;
+
+    FisherExact fisherExact;
+    MannWhitneyUTest mannWhitney = new MannWhitneyUTest();
+
+    // the current contig and its open genes
+    String contig;
+    IntervalSweep sweep;
+    Map<Integer,GeneBurden> open = new HashMap<>();
+    PriorityQueue<GeneBurden> openByEnd = new PriorityQueue<>((a, b) -> a.end!=b.end ? Integer.compare(a.end, b.end) : Integer.compare(a.feature, b.feature));
+
+    /**
+     * Construct for the features of the given type in the given table, and the given case and control sample names, writing to out.
+     */
+    public BurdenCollector(GFFTable table, String type, double maxMAF, Set<String> caseSampleNames, Set<String> controlSampleNames, PrintStream out) {
+        this.table = table;
+        this.geneIndexes = table.getIntervalIndexes(type);
+        this.maxMAF = maxMAF;
+        this.out = out;
+        nCases = caseSampleNames.size();
+        nControls = controlSampleNames.size();
+        isCase = new boolean[nCases+nControls];
+        for (String sampleName : caseSampleNames) {
+            isCase[sampleIndexes.size()] = true;
+            sampleIndexes.put(sampleName, sampleIndexes.size());
+        }
+        for (String sampleName : controlSampleNames) sampleIndexes.put(sampleName, sampleIndexes.size());
+        fisherExact = new FisherExact(nCases+nControls);
+        out.println("#ID\tName\tseqname\tstart\tend\tvariants\tcaseCarriers\tcaseNonCarriers\tcontrolCarriers\tcontrolNonCarriers\tcastP\tmbP");
+    }
+
+    /**
+     * Return the number of genes in the index.
+     */
+    public int getGeneCount() {
+        int count = 0;
+        for (IntervalIndex index : geneIndexes.values()) count += index.size();
+        return count;
+    }
+
+    /**
+     * Process the next variant in the stream, with its MAF, writing out the genes that end before it.
+     */
+    public void add(VariantContext vc, double maf) {
+        if (!vc.getContig().equals(contig)) {
+            flush(Integer.MAX_VALUE);
+            contig = vc.getContig();
+            IntervalIndex index = geneIndexes.get(contig);
+            sweep = index==null ? null : new IntervalSweep(index);
+        }
+        int pos = vc.getStart();
+        flush(pos);
+        if (sweep==null || !(maf>0.0 && maf<maxMAF)) return;
+        // the base at pos is [pos-1,pos) on the plus strand
+        int count = sweep.advance(pos-1, pos);
+        if (count==0) return;
+        // minor allele counts of the samples, and the Madsen-Browning weight
+        Allele majorityAllele = VCFSegregation.getMajorityAllele(vc);
+        int[] minorCounts = new int[isCase.length];
+        int genotyped = 0;
+        int controlsGenotyped = 0;
+        int controlMinor = 0;
+        for (Genotype g : vc.getGenotypes()) {
+            Integer s = sampleIndexes.get(g.getSampleName());
+            if (s==null || !g.isCalled()) continue;
+            for (Allele a : g.getAlleles()) {
+                if (a.isCalled() && !a.equals(majorityAllele)) minorCounts[s]++;
+            }
+            genotyped++;
+            if (!isCase[s]) {
+                controlsGenotyped++;
+                controlMinor += minorCounts[s];
+            }
+        }
+        double q = (controlMinor+1.0) / (2.0*controlsGenotyped+2.0);
+        double weight = Math.sqrt(genotyped*q*(1.0-q));
+        for (int k=0; k<count; k++) {
+            int feature = sweep.activeId(k);
+            GeneBurden gene = open.get(feature);
+            if (gene==null) {
+                gene = new GeneBurden(feature, table.getEnd(feature), isCase.length);
+                open.put(feature, gene);
+                openByEnd.add(gene);
+            }
+            gene.add(minorCounts, weight);
+        }
+    }
+
+    /**
+     * Write out any genes still open; call after the last variant.
+     */
+    public void close() {
+        flush(Integer.MAX_VALUE);
+        out.flush();
+    }
+
+    /**
+     * Test and write out the open genes ending before pos.
+     */
+    void flush(int pos) {
+        while (openByEnd.size()>0 && openByEnd.peek().end<pos) {
+            GeneBurden gene = openByEnd.poll();
+            open.remove(gene.feature);
+            print(gene);
+        }
+    }
+
+    /**
+     * Run the tests on a gene and write its line.
+     */
+    void print(GeneBurden gene) {
+        int caseCarriers = 0;
+        int controlCarriers = 0;
+        double[] caseScores = new double[nCases];
+        double[] controlScores = new double[nControls];
+        int c = 0;
+        int u = 0;
+        for (int s=0; s<isCase.length; s++) {
+            if (isCase[s]) {
+                if (gene.carriers.get(s)) caseCarriers++;
+                caseScores[c++] = gene.scores[s];
+            } else {
+                if (gene.carriers.get(s)) controlCarriers++;
+                controlScores[u++] = gene.scores[s];
+            }
+        }
+        double castP = fisherExact.getTwoTailedP(caseCarriers, nCases-caseCarriers, controlCarriers, nControls-controlCarriers);
+        double mbP = Double.NaN;
+        if (nCases>0 && nControls>0) {
+            try {
+                mbP = mannWhitney.mannWhitneyUTest(caseScores, controlScores);
+            } catch (RuntimeException e) {
+                // all scores tied
+            }
+        }
+        String id = table.getAttribute(gene.feature, "ID");
+        String name = table.getAttribute(gene.feature, "Name");
+        out.println((id==null ? "." : id)+"\t"+(name==null ? "." : name)+"\t"+table.getSeqname(gene.feature)+"\t"+
+                    table.getStart(gene.feature)+"\t"+table.getEnd(gene.feature)+"\t"+gene.variants+"\t"+
+                    caseCarriers+"\t"+(nCases-caseCarriers)+"\t"+controlCarriers+"\t"+(nControls-controlCarriers)+"\t"+castP+"\t"+mbP);
+    }
+
+    /**
+     * The carriers and burden scores of a gene, by sample index.
+     */
+    static class GeneBurden {
+        int feature;
+        int end;
+        int variants;
+        BitSet carriers = new BitSet();
+        double[] scores;
+
+        GeneBurden(int feature, int end, int nSamples) {
+            this.feature = feature;
+            this.end = end;
+            this.scores = new double[nSamples];
+        }
+
+        void add(int[] minorCounts, double weight) {
+            variants++;
+            for (int s=0; s<minorCounts.length; s++) {
+                if (minorCounts[s]==0) continue;
+                carriers.set(s);
+                scores[s] += minorCounts[s] / weight;
+            }
+        }
+    }
+}
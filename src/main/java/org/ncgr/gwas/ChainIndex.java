@@ -0,0 +1,189 @@
+package org.ncgr.gwas;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ungapped alignment blocks of a UCSC chain file, indexed by their interval on each source (reference) contig, for lifting
+ * coordinates over to the destination (query) assembly.
+ *
+ * Chain file format, coordinates 0-based half-open, query coordinates on the query strand:
+ *   chain score tName tSize tStrand tStart tEnd qName qSize qStrand qStart qEnd id
+ *   size dt dq
+ *   ...
+ *   size
+ *
+ * Each block is held in primitive columns and each source contig's blocks in an IntervalIndex, so a lift is an O(log n) search.
+ * A span lifts only if it lies within a single block; where blocks of several chains cover it, the highest-scoring chain wins.
+ *
+ * @author Sam Hokin
+ */
+public class ChainIndex {
+
+    FieldIndex queryNames = new FieldIndex();
+    IntervalIndex.IntList querySizes = new IntervalIndex.IntList(); // by query name id
+
+    // blocks
+    IntervalIndex.IntList blockSourceStarts = new IntervalIndex.IntList();
+    IntervalIndex.IntList blockLengths = new IntervalIndex.IntList();
+    IntervalIndex.IntList blockQueryNames = new IntervalIndex.IntList();
+    IntervalIndex.IntList blockQueryStarts = new IntervalIndex.IntList(); // on the query strand
+    IntervalIndex.IntList blockNegative = new IntervalIndex.IntList();    // 1 if the query strand is -
+    RsIndex.LongList blockScores = new RsIndex.LongList();
+
+    Map<String,IntervalIndex> sourceIndexes = new HashMap<>(); // block intervals keyed by source contig
+
+    /**
+     * Load a chain file, plain or gzipped.
+     */
+    public ChainIndex(String filename) throws IOException {
+        LineReader reader = new LineReader(filename);
+        TabLine line;
+        IntervalIndex index = null;
+        int queryName = 0;
+        boolean negative = false;
+        long score = 0;
+        int t = 0;
+        int q = 0;
+        boolean inChain = false;
+        int[] bounds = new int[6];
+        while ((line=reader.readLine())!=null) {
+            if (line.startsWith("#")) continue;
+            if (line.isBlank()) {
+                inChain = false;
+                continue;
+            }
+            if (line.startsWith("chain")) {
+                String[] fields = line.toString().trim().split("\\s+");
+                if (fields.length<12) throw new IOException("Bad chain header: "+line);
+                score = Long.parseLong(fields[1]);
+                index = sourceIndexes.computeIfAbsent(fields[2], k -> new IntervalIndex());
+                t = Integer.parseInt(fields[5]);
+                queryName = queryNames.get(fields[7]);
+                if (queryName<0) {
+                    queryName = queryNames.add(fields[7]);
+                    querySizes.add(Integer.parseInt(fields[8]));
+                }
+                negative = fields[9].equals("-");
+                q = Integer.parseInt(fields[10]);
+                inChain = true;
+                continue;
+            }
+            if (!inChain) throw new IOException("Alignment data outside a chain: "+line);
+            // block lines are parsed in place, there being millions of them in a whole-genome chain
+            int tokens = tokens(line, bounds);
+            int size = (int) line.parseLong(bounds[0], bounds[1]);
+            index.add(t, t+size, blockQueryNames.size);
+            blockSourceStarts.add(t);
+            blockLengths.add(size);
+            blockQueryNames.add(queryName);
+            blockQueryStarts.add(q);
+            blockNegative.add(negative ? 1 : 0);
+            blockScores.add(score);
+            if (tokens==3) {
+                t += size + (int) line.parseLong(bounds[2], bounds[3]);
+                q += size + (int) line.parseLong(bounds[4], bounds[5]);
+            } else {
+                inChain = false; // last block of the chain
+            }
+        }
+        reader.close();
+        for (IntervalIndex contigIndex : sourceIndexes.values()) contigIndex.index();
+    }
+
+    /**
+     * Store the [from,to) bounds of the first three whitespace-separated tokens of line in bounds, and return how many there are.
+     */
+    static int tokens(TabLine line, int[] bounds) {
+        int length = line.length();
+        int n = 0;
+        int k = 0;
+        while (n<3) {
+            while (k<length && line.byteAt(k)<=' ') k++;
+            if (k==length) break;
+            bounds[2*n] = k;
+            while (k<length && line.byteAt(k)>' ') k++;
+            bounds[2*n+1] = k;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Return the number of alignment blocks.
+     */
+    public int size() {
+        return blockQueryNames.size;
+    }
+
+    /**
+     * Return the query contig names, in order of first appearance.
+     */
+    public String[] getQueryNames() {
+        String[] names = new String[queryNames.size()];
+        for (int k=0; k<names.length; k++) names[k] = queryNames.getName(k);
+        return names;
+    }
+
+    /**
+     * Return the size of the given query contig.
+     */
+    public int getQuerySize(String queryName) {
+        return querySizes.values[queryNames.get(queryName)];
+    }
+
+    /**
+     * Return the source contig name used in the chain file for the given name, allowing for a missing or extra "chr" prefix,
+     * or null if the chain file has no such contig.
+     */
+    public String resolve(String contig) {
+        if (sourceIndexes.containsKey(contig)) return contig;
+        String other = contig.startsWith("chr") ? contig.substring(3) : "chr"+contig;
+        return sourceIndexes.containsKey(other) ? other : null;
+    }
+
+    /**
+     * Lift the 0-based half-open span [start,end) of the given source contig.
+     */
+    public Lift lift(String contig, int start, int end) {
+        Lift lift = new Lift();
+        String name = resolve(contig);
+        IntervalIndex index = name==null ? null : sourceIndexes.get(name);
+        if (index==null) return lift;
+        int best = -1;
+        for (int b : index.overlapping(start, start+1)) {
+            lift.status = Lift.SPLIT;
+            if (end>blockSourceStarts.values[b]+blockLengths.values[b]) continue;
+            lift.hits++;
+            if (best<0 || blockScores.values[b]>blockScores.values[best] || (blockScores.values[b]==blockScores.values[best] && b<best)) best = b;
+        }
+        if (best<0) return lift;
+        int offset = start - blockSourceStarts.values[best];
+        int queryName = blockQueryNames.values[best];
+        int queryStart = blockQueryStarts.values[best] + offset;
+        lift.status = Lift.MAPPED;
+        lift.contig = queryNames.getName(queryName);
+        lift.negative = blockNegative.values[best]==1;
+        // a span on the - strand of the query runs backwards from the end of the plus strand
+        lift.start = lift.negative ? querySizes.values[queryName] - queryStart - (end-start) : queryStart;
+        return lift;
+    }
+
+    /**
+     * The result of a lift: MAPPED with the query contig, 0-based start and strand, or UNMAPPED if the start isn't in any block,
+     * or SPLIT if it's in a block that the span runs out of.
+     */
+    public static class Lift {
+        public static final int UNMAPPED = 0;
+        public static final int MAPPED = 1;
+        public static final int SPLIT = 2;
+
+        public int status = UNMAPPED;
+        public int hits;        // blocks holding the whole span
+        public String contig;
+        public int start;
+        public boolean negative;
+    }
+}
@@ -0,0 +1,337 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Cumulative DP4 read counts (REF forward, REF reverse, ALT forward, ALT reverse) of the calls in a VCF file, so that the read totals of
+ * any region are found with two binary searches and a subtraction rather than by decoding each VariantContext in it.
+ *
+ * For each contig the calls are held in start order as primitive columns: starts, ends, and prefix sums of the call count and the four
+ * DP4 depths, once over all calls and once over just the calls with at least altMin ALT reads. A region query returns the same calls as
+ * VCFFileReader.query, i.e. those overlapping the closed region [start,end]; calls starting before the region (deletions) are found by
+ * checking the few calls within the contig's longest span of the start.
+ *
+ * The index is built in one streaming pass over the VCF and written to [vcf].dp4index along with the VCF's length and modification time
+ * and altMin; later loads of an unchanged VCF with the same altMin memory-map the columns in place.
+ *
+ * @author Sam Hokin
+ */
+public class DP4Index {
+
+    static final int MAGIC = 0x44503431; // "DP41"
+    static final int COLUMNS = 5;        // call count, RF, RR, AF, AR
+
+    int altMin;
+    Map<String,Contig> contigs = new LinkedHashMap<>();
+
+    /**
+     * Build an index from the given VCF file or, if its index file is current and has the same altMin, map that.
+     */
+    public static DP4Index load(String vcfFilename, int altMin) throws IOException {
+        File file = new File(vcfFilename);
+        File indexFile = new File(vcfFilename+".dp4index");
+        if (indexFile.exists()) {
+            DP4Index index = null;
+            try {
+                index = read(indexFile, file.length(), file.lastModified(), altMin);
+            } catch (IOException|RuntimeException e) {
+                System.err.println("WARNING: ignoring unreadable DP4 index "+indexFile+": "+e);
+            }
+            if (index!=null) {
+                System.err.println("Read DP4 sums of "+index.size()+" calls from "+indexFile.getName());
+                return index;
+            }
+        }
+        DP4Index index = build(vcfFilename, altMin);
+        try {
+            index.write(indexFile, file.length(), file.lastModified());
+        } catch (IOException e) {
+            System.err.println("WARNING: could not write DP4 index "+indexFile+": "+e.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Build an index in one pass over the given VCF file, which need not be indexed or sorted.
+     */
+    public static DP4Index build(String vcfFilename, int altMin) throws IOException {
+        Map<String,ContigBuilder> builders = new LinkedHashMap<>();
+        try (VCFFileReader reader = new VCFFileReader(new File(vcfFilename), false)) {
+            String contig = null;
+            ContigBuilder builder = null;
+            for (VariantContext vc : reader) {
+                if (!vc.getContig().equals(contig)) {
+                    contig = vc.getContig();
+                    builder = builders.computeIfAbsent(contig, k -> new ContigBuilder());
+                }
+                List<Integer> dp4List = vc.getAttributeAsIntList("DP4", 0);
+                if (dp4List.size()<4) throw new IOException("Call at "+contig+":"+vc.getStart()+" has no DP4 attribute");
+                builder.add(vc.getStart(), vc.getEnd(), dp4List.get(0), dp4List.get(1), dp4List.get(2), dp4List.get(3));
+            }
+        }
+        DP4Index index = new DP4Index();
+        index.altMin = altMin;
+        for (Map.Entry<String,ContigBuilder> entry : builders.entrySet()) {
+            index.contigs.put(entry.getKey(), entry.getValue().build(altMin));
+        }
+        return index;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Options options = new Options();
+
+        Option vcfFileOption = new Option("v", "vcfFile", true, "VCF file with DP4 attributes");
+        vcfFileOption.setRequired(true);
+        options.addOption(vcfFileOption);
+
+        Option altMinOption = new Option("a", "altMin", true, "minimum ALT depth for a call to be in the filtered sums ["+SNPReadCounter.MIN_ALT_READS+"]");
+        altMinOption.setRequired(false);
+        options.addOption(altMinOption);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp("DP4Index", options);
+            System.exit(1);
+            return;
+        }
+
+        int altMin = SNPReadCounter.MIN_ALT_READS;
+        if (cmd.hasOption("altMin")) altMin = Integer.parseInt(cmd.getOptionValue("altMin"));
+        DP4Index index = load(cmd.getOptionValue("vcfFile"), altMin);
+        for (Map.Entry<String,Contig> entry : index.contigs.entrySet()) {
+            System.out.println(entry.getKey()+"\t"+entry.getValue().size+"\t"+entry.getValue().altSums[0].get(entry.getValue().size));
+        }
+    }
+
+    /**
+     * Return the number of calls in the index.
+     */
+    public long size() {
+        long size = 0;
+        for (Contig contig : contigs.values()) size += contig.size;
+        return size;
+    }
+
+    /**
+     * Return the ALT depth below which calls are left out of the filtered sums.
+     */
+    public int getAltMin() {
+        return altMin;
+    }
+
+    /**
+     * Return { count, RF, RR, AF, AR } totalled over the calls overlapping the closed region [start,end] of the given contig,
+     * only counting calls with at least altMin ALT reads if altFiltered is true.
+     */
+    public long[] sum(String contigName, int start, int end, boolean altFiltered) {
+        long[] totals = new long[COLUMNS];
+        Contig contig = contigs.get(contigName);
+        if (contig==null || end<start) return totals;
+        LongBuffer[] sums = altFiltered ? contig.altSums : contig.sums;
+        int from = contig.lowerBound(start);
+        int to = contig.lowerBound(end+1);
+        for (int c=0; c<COLUMNS; c++) totals[c] = sums[c].get(to) - sums[c].get(from);
+        // calls starting before the region that reach into it
+        for (int k=contig.lowerBound(start-contig.maxSpan); k<from; k++) {
+            if (contig.ends.get(k)<start) continue;
+            if (sums[0].get(k+1)==sums[0].get(k)) continue; // filtered out
+            for (int c=0; c<COLUMNS; c++) totals[c] += sums[c].get(k+1) - sums[c].get(k);
+        }
+        return totals;
+    }
+
+    /**
+     * Write the index to the given file for a VCF of the given length and modification time, via a temporary file.
+     */
+    void write(File indexFile, long length, long lastModified) throws IOException {
+        File tempFile = new File(indexFile.getPath()+".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1<<16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(altMin);
+            out.writeInt(contigs.size());
+            for (Map.Entry<String,Contig> entry : contigs.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeInt(entry.getValue().size);
+                out.writeInt(entry.getValue().maxSpan);
+            }
+            for (Contig contig : contigs.values()) {
+                for (IntBuffer column : new IntBuffer[] { contig.starts, contig.ends }) {
+                    for (int k=0; k<contig.size; k++) out.writeInt(column.get(k));
+                }
+                for (LongBuffer[] sums : new LongBuffer[][] { contig.sums, contig.altSums }) {
+                    for (LongBuffer column : sums) {
+                        for (int k=0; k<=contig.size; k++) out.writeLong(column.get(k));
+                    }
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Map an index from the given file, or return null if it's for a different version of the VCF file or a different altMin.
+     * Each column is mapped separately, so only a single column is limited to 2GB.
+     */
+    static DP4Index read(File indexFile, long length, long lastModified, int altMin) throws IOException {
+        DP4Index index = new DP4Index();
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt()!=MAGIC || in.readLong()!=length || in.readLong()!=lastModified || in.readInt()!=altMin) return null;
+            index.altMin = altMin;
+            int count = in.readInt();
+            offset = 28;
+            for (int s=0; s<count; s++) {
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                Contig contig = new Contig();
+                contig.size = in.readInt();
+                contig.maxSpan = in.readInt();
+                index.contigs.put(new String(name, StandardCharsets.UTF_8), contig);
+                offset += 12 + name.length;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            for (Contig contig : index.contigs.values()) {
+                long intBytes = 4L*contig.size;
+                long longBytes = 8L*(contig.size+1);
+                contig.starts = channel.map(FileChannel.MapMode.READ_ONLY, offset, intBytes).asIntBuffer();
+                offset += intBytes;
+                contig.ends = channel.map(FileChannel.MapMode.READ_ONLY, offset, intBytes).asIntBuffer();
+                offset += intBytes;
+                for (LongBuffer[] sums : new LongBuffer[][] { contig.sums, contig.altSums }) {
+                    for (int c=0; c<COLUMNS; c++) {
+                        sums[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, longBytes).asLongBuffer();
+                        offset += longBytes;
+                    }
+                }
+            }
+            if (offset!=channel.size()) throw new IOException("DP4 index is "+channel.size()+" bytes, expected "+offset);
+        }
+        return index;
+    }
+
+    /**
+     * The calls on one contig, in start order, with prefix sums: sums[c].get(k) totals column c over calls 0..k-1.
+     */
+    static class Contig {
+        int size;
+        int maxSpan;            // largest end-start of a call
+        IntBuffer starts;
+        IntBuffer ends;
+        LongBuffer[] sums = new LongBuffer[COLUMNS];
+        LongBuffer[] altSums = new LongBuffer[COLUMNS];
+
+        /**
+         * Return the first call with start at least pos, or size if there is none.
+         */
+        int lowerBound(int pos) {
+            int low = 0;
+            int high = size;
+            while (low<high) {
+                int mid = (low+high) >>> 1;
+                if (starts.get(mid)<pos) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Collects the calls on one contig in file order.
+     */
+    static class ContigBuilder {
+        IntervalIndex.IntList starts = new IntervalIndex.IntList();
+        IntervalIndex.IntList ends = new IntervalIndex.IntList();
+        IntervalIndex.IntList[] depths = { new IntervalIndex.IntList(), new IntervalIndex.IntList(), new IntervalIndex.IntList(), new IntervalIndex.IntList() };
+
+        void add(int start, int end, int rF, int rR, int aF, int aR) {
+            starts.add(start);
+            ends.add(end);
+            depths[0].add(rF);
+            depths[1].add(rR);
+            depths[2].add(aF);
+            depths[3].add(aR);
+        }
+
+        /**
+         * Sort the calls by start, keeping file order among equal starts, and sum them.
+         */
+        Contig build(int altMin) {
+            int size = starts.size;
+            long[] keys = new long[size];
+            for (int k=0; k<size; k++) keys[k] = (long) starts.values[k] << 32 | k;
+            Arrays.sort(keys);
+            Contig contig = new Contig();
+            contig.size = size;
+            int[] sortedStarts = new int[size];
+            int[] sortedEnds = new int[size];
+            long[][] sums = new long[COLUMNS][size+1];
+            long[][] altSums = new long[COLUMNS][size+1];
+            for (int k=0; k<size; k++) {
+                int j = (int) keys[k];
+                sortedStarts[k] = starts.values[j];
+                sortedEnds[k] = ends.values[j];
+                contig.maxSpan = Math.max(contig.maxSpan, sortedEnds[k]-sortedStarts[k]);
+                boolean altOK = depths[2].values[j]+depths[3].values[j]>=altMin;
+                sums[0][k+1] = sums[0][k] + 1;
+                altSums[0][k+1] = altSums[0][k] + (altOK ? 1 : 0);
+                for (int c=1; c<COLUMNS; c++) {
+                    int depth = depths[c-1].values[j];
+                    sums[c][k+1] = sums[c][k] + depth;
+                    altSums[c][k+1] = altSums[c][k] + (altOK ? depth : 0);
+                }
+            }
+            contig.starts = IntBuffer.wrap(sortedStarts);
+            contig.ends = IntBuffer.wrap(sortedEnds);
+            for (int c=0; c<COLUMNS; c++) {
+                contig.sums[c] = LongBuffer.wrap(sums[c]);
+                contig.altSums[c] = LongBuffer.wrap(altSums[c]);
+            }
+            return contig;
+        }
+    }
+}
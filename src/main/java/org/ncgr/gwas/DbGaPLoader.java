@@ -0,0 +1,89 @@
+package org.ncgr.gwas;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Loads dbGaP sample and phenotype files, shared by PhenoSubjects and VCFSegregation.
+ *
+ * The sample file is read once into a dbGaP_Subject_ID to sample IDs multimap, so that each phenotype line finds its samples
+ * in constant time rather than by scanning every sample. Files are read as PhenoTables, so only the requested variables
+ * are extracted from each line, and a binary cache of each is used if useCache is set.
+ *
+ * @author Sam Hokin
+ */
+public class DbGaPLoader {
+
+    public boolean useCache = false;
+
+    Map<String,List<String>> subjectSamples = new HashMap<>(); // sample IDs keyed by dbGaP_Subject_ID
+    int sampleCount;
+
+    /**
+     * Load the dbGaP sample file, which relates dbGaP_Subject_ID in the first column to the study sample ID in the sampleVar column.
+     *
+     * dbGaP_Subject_ID dbGaP_Sample_ID BioSample Accession SUBJID  SAMPID SAMP_SOURCE SOURCE_SAMPID SAMPLE_USE
+     * 1284423          1836728         SAMN03897975        PT-1S8D 28278  KAROLINSKA  28278         Seq_DNA_WholeExome; Seq_DNA_SNP_CNV
+     *
+     * NOTE: there may be MORE THAN ONE LINE for the same dbGaP_Subject_ID! We'll assume that SAMPLE IDs are unique.
+     */
+    public void loadSampleFile(String filename, String sampleVar) throws IOException {
+        PhenoTable table = PhenoTable.load(filename, new String[] { sampleVar }, useCache);
+        if (table.getColumn(sampleVar)<0) {
+            throw new IOException("Sample variable "+sampleVar+" is not in the header of "+filename);
+        }
+        for (int row=0; row<table.size(); row++) {
+            subjectSamples.computeIfAbsent(table.getSubjectId(row), k -> new ArrayList<>()).add(table.getString(0, row));
+            sampleCount++;
+        }
+    }
+
+    /**
+     * Return the number of samples loaded from the sample file.
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Return the sample IDs for the given dbGaP_Subject_ID, or just studyId if no sample file was loaded.
+     */
+    public List<String> getSampleIds(String subjectId, String studyId) {
+        if (sampleCount==0) return Collections.singletonList(studyId);
+        return subjectSamples.getOrDefault(subjectId, Collections.emptyList());
+    }
+
+    /**
+     * Read a dbGaP phenotype file, passing each subject's sample IDs and the values of the given variables to handler.
+     * The first column is dbGaP_Subject_ID and the second the study subject ID. A variable missing from the header,
+     * or a null name, gets a null value; a missing field on a data line gets an empty value.
+     *
+     * dbGaP_Subject_ID SUBJID  SEX PRIMARY_DISEASE   ANALYSIS_CAT SITE  Coverage_Pass
+     * 1287483          PT-FJ7E M   Bipolar_Disorder  Case         BROAD N
+     */
+    public void readPhenoFile(String filename, String[] vars, BiConsumer<List<String>,String[]> handler) throws IOException {
+        readPhenoFile(loadPhenoFile(filename, vars), handler);
+    }
+
+    /**
+     * Load a dbGaP phenotype file as a PhenoTable of the given variables, so that the caller can check its header before reading it.
+     */
+    public PhenoTable loadPhenoFile(String filename, String[] vars) throws IOException {
+        return PhenoTable.load(filename, vars, useCache);
+    }
+
+    /**
+     * Pass each subject's sample IDs and the values of a loaded phenotype table's variables to handler.
+     */
+    public void readPhenoFile(PhenoTable table, BiConsumer<List<String>,String[]> handler) {
+        for (int row=0; row<table.size(); row++) {
+            handler.accept(getSampleIds(table.getSubjectId(row), table.getStudyId(row)), table.getRow(row));
+        }
+    }
+}
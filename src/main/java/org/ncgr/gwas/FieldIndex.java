@@ -0,0 +1,122 @@
+package org.ncgr.gwas;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Interns strings (e.g. sample IDs) to consecutive int indexes, and looks up fields of a TabLine without creating a String.
+ *
+ * Uses open addressing with linear probing over the UTF-8 bytes of the keys. Lookups are safe from several threads
+ * once all keys have been added.
+ *
+ * @author Sam Hokin
+ */
+public class FieldIndex {
+
+    List<String> names = new ArrayList<>(); // keys, by index
+    List<byte[]> keys = new ArrayList<>();  // UTF-8 bytes of keys, by index
+    int[] hashes = new int[0];              // hash of keys, by index
+    int[] slots = new int[16];              // index+1 of the key in each slot, 0 if empty
+
+    /**
+     * Return the index of the given name, adding it if it's new.
+     */
+    public int add(String name) {
+        int index = get(name);
+        if (index>=0) return index;
+        index = names.size();
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        names.add(name);
+        keys.add(key);
+        if (index==hashes.length) hashes = Arrays.copyOf(hashes, Math.max(16, hashes.length*2));
+        hashes[index] = hash;
+        if (2*names.size()>slots.length) {
+            rehash(slots.length*2);
+        } else {
+            insert(index, hash);
+        }
+        return index;
+    }
+
+    /**
+     * Return the index of the given name, or -1 if absent.
+     */
+    public int get(String name) {
+        TabLine line = new TabLine(name);
+        return get(line, 0, line.length());
+    }
+
+    /**
+     * Return the index of field i of the given line, or -1 if absent.
+     */
+    public int get(TabLine line, int i) {
+        return get(line, line.fieldStart(i), line.fieldEnd(i));
+    }
+
+    /**
+     * Return the index of the relative range [from,to) of the given line, or -1 if absent.
+     */
+    public int get(TabLine line, int from, int to) {
+        int hash = line.hash(from, to);
+        int mask = slots.length - 1;
+        for (int slot=mix(hash)&mask; slots[slot]!=0; slot=(slot+1)&mask) {
+            int index = slots[slot] - 1;
+            if (hashes[index]==hash && matches(keys.get(index), line, from, to)) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the name with the given index.
+     */
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * Return the number of names.
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Return the hash of the given key bytes, matching TabLine.hash.
+     */
+    static int hash(byte[] key) {
+        int h = 0;
+        for (byte b : key) h = 31*h + b;
+        return h;
+    }
+
+    /**
+     * Spread the hash bits so that sequential IDs don't cluster.
+     */
+    static int mix(int hash) {
+        return hash ^ (hash>>>16);
+    }
+
+    static boolean matches(byte[] key, TabLine line, int from, int to) {
+        if (key.length!=to-from) return false;
+        for (int k=0; k<key.length; k++) {
+            if (key[k]!=line.byteAt(from+k)) return false;
+        }
+        return true;
+    }
+
+    void insert(int index, int hash) {
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot]!=0) slot = (slot+1) & mask;
+        slots[slot] = index + 1;
+    }
+
+    void rehash(int size) {
+        slots = new int[size];
+        for (int index=0; index<names.size(); index++) insert(index, hashes[index]);
+    }
+}
@@ -2,38 +2,177 @@ package org.ncgr.gwas;
 
 import java.io.IOException;
 
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.biojava.nbio.genome.parsers.gff.FeatureI;
 import org.biojava.nbio.genome.parsers.gff.FeatureList;
-import org.biojava.nbio.genome.parsers.gff.GFF3Reader;
 import org.biojava.nbio.genome.parsers.gff.Location;
 
 /**
  * Loads a GFF file and provides handy methods.
  *
+ * The file is held in a GFFTable, which may be cached in [file].gffcache so that later runs map it rather than parsing the file.
+ * Features are returned as biojava FeatureI objects, created when first requested and then reused, so the same feature is always
+ * the same object.
+ *
+ * Overlap searches use a per-seqname IntervalIndex, so they take O(log n + k) rather than a scan of every feature.
+ * biojava gives minus-strand features negative coordinates, so they are indexed on the plus strand, which gives the same
+ * results as FeatureList.selectOverlapping with useBothStrands=true.
+ *
+ * The ID, Name and Parent attributes are indexed by value, so searchID and parent/child traversal (gene, mRNA, exon) are hash lookups.
+ * A Parent with several comma-separated values is indexed under each of them.
+ *
  * @author Sam Hokin
  */
 public class GFFLoader {
 
-    FeatureList featureList;
+    GFFTable table;
+    FeatureI[] features; // created as requested
 
     /**
-     * Construct from a GFF file.
+     * Construct from a GFF file, without a cache file.
      */
     public GFFLoader(String gffFilename) throws IOException {
-        featureList = GFF3Reader.read(gffFilename);
+        this(gffFilename, false);
+    }
+
+    /**
+     * Construct from a GFF file, using its cache file if useCache is true.
+     */
+    public GFFLoader(String gffFilename, boolean useCache) throws IOException {
+        table = GFFTable.load(gffFilename, useCache);
+        features = new FeatureI[table.size()];
+    }
+
+    /**
+     * Return the number of features.
+     */
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * Return the feature with the given index, in file order.
+     */
+    public FeatureI getFeature(int i) {
+        FeatureI feature = features[i];
+        if (feature==null) {
+            feature = table.getFeature(i);
+            features[i] = feature;
+        }
+        return feature;
     }
 
     /**
-     * Search for a given location and return the FeatureList containing overlapping features.
+     * Return a FeatureList of all the features, in file order.
+     */
+    public FeatureList getFeatureList() {
+        FeatureList featureList = new FeatureList();
+        for (int i=0; i<table.size(); i++) featureList.add(getFeature(i));
+        return featureList;
+    }
+
+    /**
+     * Search for a given location and return the FeatureList containing overlapping features, in file order.
      */
     public FeatureList search(String seqname, Location location) throws Exception {
-        return featureList.selectOverlapping(seqname, location, true);
+        return getFeatures(table.overlapping(seqname, plusStart(location), plusEnd(location)));
+    }
+
+    /**
+     * Return true if any feature overlaps the given location.
+     */
+    public boolean overlaps(String seqname, Location location) {
+        return table.overlapsAny(seqname, plusStart(location), plusEnd(location));
     }
 
     /**
-     * Search for a given ID and return the FeatureList containing overlapping features.
+     * Search for a given ID and return the FeatureList containing the features with that ID, which may be mapped to several locations.
      */
     public FeatureList searchID(String id) {
-        return featureList.selectByAttribute("ID", id);
+        return searchAttribute("ID", id);
+    }
+
+    /**
+     * Return the FeatureList containing the features with the given Name.
+     */
+    public FeatureList searchName(String name) {
+        return searchAttribute("Name", name);
+    }
+
+    /**
+     * Return the FeatureList containing the features with the given attribute value, in file order.
+     * ID, Name and Parent are looked up in the index; other attributes are found by a scan.
+     */
+    public FeatureList searchAttribute(String key, String value) {
+        if (table.isIndexed(key)) return getFeatures(table.find(key, value));
+        FeatureList found = new FeatureList();
+        for (int i=0; i<table.size(); i++) {
+            if (value.equals(table.getAttribute(i, key))) found.add(getFeature(i));
+        }
+        return found;
+    }
+
+    /**
+     * Return the children of the given feature, i.e. the features whose Parent is its ID.
+     */
+    public FeatureList getChildren(FeatureI feature) {
+        String id = feature.getAttribute("ID");
+        if (id==null) return new FeatureList();
+        return searchAttribute("Parent", id);
+    }
+
+    /**
+     * Return the parents of the given feature, i.e. the features whose ID is one of its Parent values.
+     */
+    public FeatureList getParents(FeatureI feature) {
+        FeatureList parents = new FeatureList();
+        String parent = feature.getAttribute("Parent");
+        if (parent!=null) {
+            for (String id : parent.split(",")) parents.add(searchID(id));
+        }
+        return parents;
+    }
+
+    /**
+     * Return all the descendants of the given feature of the given type (e.g. the exons of a gene), or of any type if type is null.
+     */
+    public FeatureList getDescendants(FeatureI feature, String type) {
+        FeatureList descendants = new FeatureList();
+        Set<FeatureI> visited = new HashSet<>();
+        LinkedList<FeatureI> queue = new LinkedList<>(getChildren(feature));
+        while (queue.size()>0) {
+            FeatureI child = queue.removeFirst();
+            if (!visited.add(child)) continue;
+            if (type==null || child.type().equals(type)) descendants.add(child);
+            queue.addAll(getChildren(child));
+        }
+        return descendants;
+    }
+
+    /**
+     * Return a FeatureList of the features with the given indexes.
+     */
+    FeatureList getFeatures(int[] ids) {
+        FeatureList featureList = new FeatureList();
+        for (int id : ids) featureList.add(getFeature(id));
+        return featureList;
+    }
+
+    /**
+     * Return the start of a location on the plus strand; biojava stores minus-strand locations as [-end,-start).
+     */
+    static int plusStart(Location location) {
+        return location.isNegative() ? -location.end() : location.start();
+    }
+
+    /**
+     * Return the end of a location on the plus strand.
+     */
+    static int plusEnd(Location location) {
+        return location.isNegative() ? -location.start() : location.end();
     }
 
 }
@@ -0,0 +1,91 @@
+package org.ncgr.gwas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.biojava.nbio.genome.parsers.gff.FeatureI;
+import org.biojava.nbio.genome.parsers.gff.FeatureList;
+import org.biojava.nbio.genome.parsers.gff.Location;
+
+/**
+ * Times GFFLoader point searches against biojava's linear FeatureList.selectOverlapping, and checks that they agree.
+ *
+ * Usage: GFFLoaderBenchmark <gff-file> [queries=1000000] [linear-queries=1000] [seed=1]
+ *
+ * Query points are drawn uniformly over each seqname's feature extent, with seqnames weighted by feature count.
+ * The linear scan is only run on the first linear-queries points, and its time per query extrapolated.
+ *
+ * @author Sam Hokin
+ */
+public class GFFLoaderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length<1) {
+            System.out.println("Usage GFFLoaderBenchmark <gff-file> [queries=1000000] [linear-queries=1000] [seed=1]");
+            System.exit(0);
+        }
+        String gffFilename = args[0];
+        int nQueries = args.length>1 ? Integer.parseInt(args[1]) : 1000000;
+        int nLinear = args.length>2 ? Integer.parseInt(args[2]) : 1000;
+        long seed = args.length>3 ? Long.parseLong(args[3]) : 1;
+
+        long t0 = System.nanoTime();
+        GFFLoader loader = new GFFLoader(gffFilename);
+        long t1 = System.nanoTime();
+        System.out.println("Loaded and indexed "+loader.size()+" features on "+loader.table.intervalIndexes.size()+" seqnames in "+ms(t1-t0)+" ms");
+        FeatureList featureList = loader.getFeatureList();
+
+        // feature extent of each seqname, and a list with one entry per feature for weighting
+        Map<String,int[]> extents = new HashMap<>();
+        List<String> seqnames = new ArrayList<>();
+        for (FeatureI feature : featureList) {
+            int start = GFFLoader.plusStart(feature.location());
+            int end = GFFLoader.plusEnd(feature.location());
+            int[] extent = extents.computeIfAbsent(feature.seqname(), k -> new int[] { Integer.MAX_VALUE, 0 });
+            extent[0] = Math.min(extent[0], start);
+            extent[1] = Math.max(extent[1], end);
+            seqnames.add(feature.seqname());
+        }
+        Random random = new Random(seed);
+        String[] querySeqnames = new String[nQueries];
+        int[] queryPositions = new int[nQueries];
+        for (int i=0; i<nQueries; i++) {
+            querySeqnames[i] = seqnames.get(random.nextInt(seqnames.size()));
+            int[] extent = extents.get(querySeqnames[i]);
+            queryPositions[i] = extent[0] + random.nextInt(extent[1]-extent[0]+1);
+        }
+
+        // indexed searches
+        long hits = 0;
+        t0 = System.nanoTime();
+        for (int i=0; i<nQueries; i++) {
+            hits += loader.search(querySeqnames[i], new Location(queryPositions[i], queryPositions[i])).size();
+        }
+        t1 = System.nanoTime();
+        System.out.println("Indexed: "+nQueries+" queries, "+hits+" hits in "+ms(t1-t0)+" ms ("+(t1-t0)/nQueries+" ns/query)");
+
+        // linear scans on a subset, checking agreement
+        nLinear = Math.min(nLinear, nQueries);
+        int mismatches = 0;
+        long linearNanos = 0;
+        for (int i=0; i<nLinear; i++) {
+            Location location = new Location(queryPositions[i], queryPositions[i]);
+            long t = System.nanoTime();
+            FeatureList linear = featureList.selectOverlapping(querySeqnames[i], location, true);
+            linearNanos += System.nanoTime() - t;
+            if (!linear.equals(loader.search(querySeqnames[i], location))) mismatches++;
+        }
+        if (nLinear>0) {
+            System.out.println("Linear: "+nLinear+" queries in "+ms(linearNanos)+" ms ("+linearNanos/nLinear+" ns/query, ~"
+                               +ms(linearNanos/nLinear*nQueries)+" ms for "+nQueries+")");
+            System.out.println("Mismatches between indexed and linear results: "+mismatches);
+        }
+    }
+
+    static long ms(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -1,73 +1,149 @@
 package org.ncgr.gwas;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiConsumer;
+import java.io.PrintStream;
 
-import org.biojava.nbio.genome.parsers.gff.FeatureI;
-import org.biojava.nbio.genome.parsers.gff.FeatureList;
-import org.biojava.nbio.genome.parsers.gff.Location;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 /**
  * Searches a GFF file for features that span given locations.
- * Uses ConcurrentHashMap to run the gene search in parallel.
  *
  * Location file from a Fisher run has columns:
  * contig	start	REF	ALT	a	b	c	d	size	p	mlog10p	signif
  * 0            1       2       3       4       5       6       7       8       9       10      11
  *
- * Outputs wig file format.
+ * Outputs wig file format, with an optional third column listing the IDs of the overlapping features.
+ *
+ * Usage: GFFSearcher [options] <gff-file> <locations-file>, or with the files given by -g and -l.
+ *
+ * By default each position is looked up in the GFFLoader interval index. With --sweep, the locations file must be sorted by position
+ * within each contig, and each contig's features are walked along with it by an IntervalSweep, so tens of millions of locations
+ * are joined in one linear pass with memory bounded by the deepest feature overlap.
  *
  * @author Sam Hokin
  */
 public class GFFSearcher {
 
     public static void main(String[] args) throws Exception {
-        if (args.length!=2) {
-            System.out.println("Usage GFFSearcher <gff-file> <locations-file>");
-            System.exit(0);
+
+        Options options = new Options();
+
+        Option gffOption = new Option("g", "gff", true, "GFF file (or first argument)");
+        gffOption.setRequired(false);
+        options.addOption(gffOption);
+        //
+        Option locationsOption = new Option("l", "locations", true, "locations file, e.g. from a Fisher run, plain or gzipped (or second argument)");
+        locationsOption.setRequired(false);
+        options.addOption(locationsOption);
+        //
+        Option sweepOption = new Option("s", "sweep", false, "join position-sorted locations to the features in one pass");
+        sweepOption.setRequired(false);
+        options.addOption(sweepOption);
+        //
+        Option annotateOption = new Option("a", "annotate", false, "add a column with the IDs of the overlapping features");
+        annotateOption.setRequired(false);
+        options.addOption(annotateOption);
+        //
+        Option outFileOption = new Option("out", "outfile", true, "output file, bgzipped if it ends in .gz (STDOUT)");
+        outFileOption.setRequired(false);
+        options.addOption(outFileOption);
+        //
+        Option gffCacheOption = new Option("gc", "gffcache", false, "cache the parsed GFF as [gff].gffcache for faster repeat runs (false)");
+        gffCacheOption.setRequired(false);
+        options.addOption(gffCacheOption);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            formatter.printHelp("GFFSearcher", options);
+            System.exit(1);
+            return;
+        }
+
+        // the files may also be given as positional arguments, GFF first
+        String[] fileArgs = cmd.getArgs();
+        int nextArg = 0;
+        String gffFilename = cmd.hasOption("gff") ? cmd.getOptionValue("gff") : (nextArg<fileArgs.length ? fileArgs[nextArg++] : null);
+        String locFilename = cmd.hasOption("locations") ? cmd.getOptionValue("locations") : (nextArg<fileArgs.length ? fileArgs[nextArg++] : null);
+        if (gffFilename==null || locFilename==null || nextArg<fileArgs.length) {
+            System.err.println("Usage GFFSearcher [options] <gff-file> <locations-file>");
+            formatter.printHelp("GFFSearcher", options);
+            System.exit(1);
+            return;
         }
-        String gffFilename = args[0];
-        String locFilename = args[1];
+        boolean sweep = cmd.hasOption("sweep");
+        boolean annotate = cmd.hasOption("annotate");
 
-        GFFLoader loader = new GFFLoader(gffFilename);
+        GFFLoader loader = new GFFLoader(gffFilename, cmd.hasOption("gffcache"));
+        GFFTable table = loader.table;
 
-        // Load the positions and values in from the locations file.
-        BufferedReader reader = new BufferedReader(new FileReader(locFilename));
+        PrintStream out = ParallelBGZFOutputStream.openPrintStream(cmd.getOptionValue("outfile"));
+
+        // Stream the positions and values in from the locations file.
+        LineReader reader = new LineReader(locFilename);
         String oldContig = "";
+        IntervalSweep intervalSweep = null;
         int oldPos = 0;
-        String line;
+        TabLine line;
         while ((line=reader.readLine())!=null) {
-            if (line.startsWith("#")) {
+            if (line.length()==0 || line.startsWith("#")) {
                 continue; // comment
-            } else if (line.toLowerCase().startsWith("contig")) {
+            } else if (line.length()>=6 && line.substring(0, 6).equalsIgnoreCase("contig")) {
                 continue; // heading
             }
-            String[] parts = line.split("\t");
-            String contig = parts[0];
-            if (!contig.equals(oldContig)) {
-                oldContig = contig;
-                System.out.println("variableStep chrom="+contig);
-            }                
-            int pos = Integer.parseInt(parts[1]);
-            String value = parts[10];
-            if (pos!=oldPos) {
-                oldPos = pos;
-                Location location = new Location(pos,pos);
-                try {
-                    FeatureList overlapping = loader.search(contig, location);
-                    if (overlapping.size()>0) {
-                        System.out.println(pos+"\t"+value);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    System.exit(1);
-                }
+            if (!line.fieldEquals(0, oldContig)) {
+                oldContig = line.get(0);
+                oldPos = 0;
+                IntervalIndex index = table.intervalIndexes.get(oldContig);
+                intervalSweep = index==null ? null : new IntervalSweep(index);
+                out.println("variableStep chrom="+oldContig);
+            }
+            int pos = line.getInt(1);
+            if (pos==oldPos) continue;
+            oldPos = pos;
+            // the point Location(pos,pos), i.e. [pos,pos) on the plus strand
+            int[] ids = null;
+            boolean overlaps;
+            if (sweep) {
+                overlaps = intervalSweep!=null && intervalSweep.advance(pos, pos)>0;
+                if (overlaps && annotate) ids = intervalSweep.activeIds();
+            } else if (annotate) {
+                ids = table.overlapping(oldContig, pos, pos);
+                overlaps = ids.length>0;
+            } else {
+                overlaps = table.overlapsAny(oldContig, pos, pos);
+            }
+            if (!overlaps) continue;
+            if (annotate) {
+                out.println(pos+"\t"+line.get(10)+"\t"+getIDs(table, ids));
+            } else {
+                out.println(pos+"\t"+line.get(10));
             }
         }
         reader.close();
+        out.close();
+    }
+
+    /**
+     * Return the comma-separated ID attributes of the given features, or "." if none has an ID.
+     */
+    static String getIDs(GFFTable table, int[] ids) {
+        StringBuilder builder = new StringBuilder();
+        for (int i : ids) {
+            String id = table.getAttribute(i, "ID");
+            if (id==null) continue;
+            if (builder.length()>0) builder.append(',');
+            builder.append(id);
+        }
+        return builder.length()>0 ? builder.toString() : ".";
     }
 }
@@ -0,0 +1,606 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.biojava.nbio.genome.parsers.gff.Feature;
+import org.biojava.nbio.genome.parsers.gff.Location;
+
+/**
+ * A GFF3 file parsed into primitive columns, one entry per feature, with no per-feature objects.
+ *
+ * Lines are parsed as biojava's GFF3Reader parses them (fields trimmed, start and end swapped if reversed, score 0.0 and frame -1
+ * if absent, attributes cut at '#', reading stopped at ##FASTA), so getFeature(i) returns the same Feature GFF3Reader would have.
+ * Seqnames, sources and types are interned to int ids. Attributes are kept as raw bytes and only parsed when asked for; the values
+ * of the ID, Name and Parent attributes are indexed as sorted (hash, feature) pairs, and each seqname's features are indexed
+ * by their plus-strand interval in an IntervalIndex.
+ *
+ * If caching is requested, the columns and indexes are written to [file].gffcache along with the file's length and modification
+ * time, and on a later run with an unchanged file the cache is memory-mapped and used in place rather than parsing the file again.
+ *
+ * @author Sam Hokin
+ */
+public class GFFTable {
+
+    static final int CACHE_MAGIC = 0x47464331; // "GFC1"
+    static final String[] INDEXED_ATTRIBUTES = { "ID", "Name", "Parent" };
+    static final int PARENT = 2;
+
+    int size;
+    FieldIndex seqnames = new FieldIndex();
+    FieldIndex sources = new FieldIndex();
+    FieldIndex types = new FieldIndex();
+
+    // columns, by feature
+    IntBuffer seqnameIds;
+    IntBuffer sourceIds;
+    IntBuffer typeIds;
+    IntBuffer starts;           // 1-based GFF start, no greater than end
+    IntBuffer ends;
+    IntBuffer frames;           // -1 if absent
+    ByteBuffer strands;         // '+', '-' or '.'
+    DoubleBuffer scores;        // 0.0 if absent
+    IntBuffer attributeOffsets; // feature i's attributes are attributes[offset(i),offset(i+1))
+    ByteBuffer attributes;
+
+    LongBuffer[] attributeIndexes = new LongBuffer[INDEXED_ATTRIBUTES.length]; // sorted value hash<<32 | feature, by indexed attribute
+    Map<String,IntervalIndex> intervalIndexes = new HashMap<>(); // keyed by seqname
+
+    /**
+     * Load the given GFF3 file, plain or gzipped, using the cache file if useCache is true.
+     */
+    public static GFFTable load(String filename, boolean useCache) throws IOException {
+        File file = new File(filename);
+        File cacheFile = new File(filename+".gffcache");
+        if (useCache && cacheFile.exists()) {
+            GFFTable table = null;
+            try {
+                table = readCache(cacheFile, file.length(), file.lastModified());
+            } catch (IOException|RuntimeException e) {
+                System.err.println("WARNING: ignoring unreadable GFF cache "+cacheFile+": "+e);
+            }
+            if (table!=null) {
+                System.err.println("Read "+table.size+" GFF features from "+cacheFile.getName());
+                return table;
+            }
+        }
+        GFFTable table = new GFFTable();
+        table.parse(filename);
+        table.buildIndexes();
+        if (useCache) {
+            try {
+                table.writeCache(cacheFile, file.length(), file.lastModified());
+            } catch (IOException e) {
+                System.err.println("WARNING: could not write GFF cache "+cacheFile+": "+e.getMessage());
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Return the number of features.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the seqname of feature i.
+     */
+    public String getSeqname(int i) {
+        return seqnames.getName(seqnameIds.get(i));
+    }
+
+    /**
+     * Return the source of feature i.
+     */
+    public String getSource(int i) {
+        return sources.getName(sourceIds.get(i));
+    }
+
+    /**
+     * Return the type of feature i.
+     */
+    public String getType(int i) {
+        return types.getName(typeIds.get(i));
+    }
+
+    /**
+     * Return the 1-based start of feature i.
+     */
+    public int getStart(int i) {
+        return starts.get(i);
+    }
+
+    /**
+     * Return the 1-based end of feature i.
+     */
+    public int getEnd(int i) {
+        return ends.get(i);
+    }
+
+    /**
+     * Return the strand of feature i: '+', '-' or '.'.
+     */
+    public char getStrand(int i) {
+        return (char) strands.get(i);
+    }
+
+    /**
+     * Return the start of feature i's biojava Location on the plus strand, i.e. its 0-based half-open start.
+     */
+    public int plusStart(int i) {
+        int start = locationStart(i);
+        int end = locationEnd(i);
+        return start<=0 && end<=0 ? -end : start;
+    }
+
+    /**
+     * Return the end of feature i's biojava Location on the plus strand.
+     */
+    public int plusEnd(int i) {
+        int start = locationStart(i);
+        int end = locationEnd(i);
+        return start<=0 && end<=0 ? -start : end;
+    }
+
+    /**
+     * Return the unparsed attributes of feature i.
+     */
+    public String getAttributes(int i) {
+        return decode(attributeOffsets.get(i), attributeOffsets.get(i+1));
+    }
+
+    /**
+     * Return the value of the given attribute of feature i, or null if it has none, parsing as biojava's Feature does.
+     */
+    public String getAttribute(int i, String key) {
+        return getAttribute(i, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Return the value of the attribute of feature i with the given UTF-8 key, or null if it has none.
+     */
+    String getAttribute(int i, byte[] keyBytes) {
+        int to = attributeOffsets.get(i+1);
+        int valueFrom = -1;
+        int valueTo = -1;
+        for (int pieceFrom=attributeOffsets.get(i); pieceFrom<=to; ) {
+            int pieceTo = indexOf(attributes, (byte) ';', pieceFrom, to);
+            int a = pieceFrom;
+            int b = pieceTo;
+            while (a<b && isSpace(attributes.get(a))) a++;
+            while (b>a && isSpace(attributes.get(b-1))) b--;
+            // key=value, or key value if there's no '='; the value ends at any further separator
+            byte separator = indexOf(attributes, (byte) '=', a, b)<b ? (byte) '=' : (byte) ' ';
+            int sep = indexOf(attributes, separator, a, b);
+            int keyTo = sep;
+            while (keyTo>a && isSpace(attributes.get(keyTo-1))) keyTo--;
+            if (regionEquals(attributes, a, keyTo, keyBytes)) {
+                // the last occurrence wins
+                valueFrom = sep<b ? sep+1 : b;
+                valueTo = sep<b ? indexOf(attributes, separator, sep+1, b) : b;
+            }
+            pieceFrom = pieceTo + 1;
+        }
+        if (valueFrom<0) return null;
+        String value = decode(valueFrom, valueTo);
+        if (value.indexOf('"')>=0) value = value.replace("\"", "");
+        return value.trim();
+    }
+
+    /**
+     * Return feature i as a biojava Feature, created on each call.
+     */
+    public Feature getFeature(int i) {
+        Location location = Location.fromBio(starts.get(i), ends.get(i), getStrand(i));
+        return new Feature(getSeqname(i), getSource(i), getType(i), location, scores.get(i), frames.get(i), getAttributes(i));
+    }
+
+    /**
+     * Return the features overlapping the plus-strand interval [start,end) on the given seqname, in file order.
+     */
+    public int[] overlapping(String seqname, int start, int end) {
+        IntervalIndex index = intervalIndexes.get(seqname);
+        if (index==null) return new int[0];
+        int[] ids = index.overlapping(start, end);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Return true if any feature overlaps the plus-strand interval [start,end) on the given seqname.
+     */
+    public boolean overlapsAny(String seqname, int start, int end) {
+        IntervalIndex index = intervalIndexes.get(seqname);
+        return index!=null && index.overlapsAny(start, end);
+    }
+
+    /**
+     * Return new per-seqname interval indexes over just the features of the given type (e.g. gene), with feature indexes as ids.
+     */
+    public Map<String,IntervalIndex> getIntervalIndexes(String type) {
+        Map<String,IntervalIndex> indexes = new HashMap<>();
+        int typeId = types.get(type);
+        for (int i=0; i<size; i++) {
+            if (typeIds.get(i)==typeId) indexes.computeIfAbsent(getSeqname(i), k -> new IntervalIndex()).add(plusStart(i), plusEnd(i), i);
+        }
+        for (IntervalIndex index : indexes.values()) index.index();
+        return indexes;
+    }
+
+    /**
+     * Return true if the given attribute is indexed.
+     */
+    public boolean isIndexed(String key) {
+        return indexOf(key)>=0;
+    }
+
+    /**
+     * Return the features whose indexed attribute has the given value (or, for Parent, includes it), in file order.
+     * A feature listing the same Parent twice is returned twice.
+     */
+    public int[] find(String key, String value) {
+        int k = indexOf(key);
+        if (k<0) throw new IllegalArgumentException(key+" is not an indexed attribute");
+        LongBuffer entries = attributeIndexes[k];
+        int hash = value.hashCode();
+        long first = (long) hash << 32;
+        int low = 0;
+        int high = entries.limit();
+        while (low<high) {
+            int mid = (low+high) >>> 1;
+            if (entries.get(mid)<first) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        IntervalIndex.IntList ids = new IntervalIndex.IntList();
+        int matched = -1;
+        for (int j=low; j<entries.limit() && (int) (entries.get(j)>>>32)==hash; j++) {
+            int id = (int) entries.get(j);
+            // repeated Parent values give repeated entries, which all match if one does
+            if (id==matched || hasValue(id, k, value)) {
+                ids.add(id);
+                matched = id;
+            }
+        }
+        return ids.toArray();
+    }
+
+    /**
+     * Return true if feature i's indexed attribute k has the given value, or includes it if k is Parent.
+     */
+    boolean hasValue(int i, int k, String value) {
+        String attribute = getAttribute(i, INDEXED_ATTRIBUTES[k]);
+        if (attribute==null) return false;
+        if (k!=PARENT) return attribute.equals(value);
+        for (String parent : attribute.split(",")) {
+            if (parent.equals(value)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the index of the given attribute in INDEXED_ATTRIBUTES, or -1 if it isn't indexed.
+     */
+    static int indexOf(String key) {
+        for (int k=0; k<INDEXED_ATTRIBUTES.length; k++) {
+            if (INDEXED_ATTRIBUTES[k].equals(key)) return k;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the GFF file into the columns, a line at a time.
+     */
+    void parse(String filename) throws IOException {
+        IntervalIndex.IntList seqnameList = new IntervalIndex.IntList();
+        IntervalIndex.IntList sourceList = new IntervalIndex.IntList();
+        IntervalIndex.IntList typeList = new IntervalIndex.IntList();
+        IntervalIndex.IntList startList = new IntervalIndex.IntList();
+        IntervalIndex.IntList endList = new IntervalIndex.IntList();
+        IntervalIndex.IntList frameList = new IntervalIndex.IntList();
+        IntervalIndex.IntList offsetList = new IntervalIndex.IntList();
+        byte[] strandArray = new byte[1024];
+        double[] scoreArray = new double[1024];
+        byte[] attributeBytes = new byte[1<<16];
+        int attributeLength = 0;
+        int[] bounds = new int[18]; // [from,to) of each of the nine fields
+        offsetList.add(0);
+        LineReader reader = new LineReader(filename);
+        TabLine line;
+        while ((line=reader.readLine())!=null) {
+            int from = 0;
+            int to = line.length();
+            while (from<to && isSpace(line.byteAt(from))) from++;
+            while (to>from && isSpace(line.byteAt(to-1))) to--;
+            if (from==to) continue;
+            if (line.byteAt(from)=='#') {
+                if (line.substring(from, to).toLowerCase().startsWith("##fasta")) break;
+                continue;
+            }
+            int fields = 0;
+            for (int fieldFrom=from; fields<9; fields++) {
+                int tab = line.indexOf(TabLine.TAB, fieldFrom);
+                int fieldTo = tab<0 || tab>to ? to : tab;
+                bounds[2*fields] = fieldFrom;
+                bounds[2*fields+1] = fieldTo;
+                if (fieldTo==to) {
+                    fields++;
+                    break;
+                }
+                fieldFrom = fieldTo + 1;
+            }
+            if (fields<9) {
+                reader.close();
+                throw new IOException("GFF line has fewer than nine fields: "+line);
+            }
+            for (int f=0; f<8; f++) {
+                while (bounds[2*f]<bounds[2*f+1] && isSpace(line.byteAt(bounds[2*f]))) bounds[2*f]++;
+                while (bounds[2*f+1]>bounds[2*f] && isSpace(line.byteAt(bounds[2*f+1]-1))) bounds[2*f+1]--;
+            }
+            if (size==strandArray.length) {
+                strandArray = Arrays.copyOf(strandArray, 2*size);
+                scoreArray = Arrays.copyOf(scoreArray, 2*size);
+            }
+            seqnameList.add(intern(seqnames, line, bounds[0], bounds[1]));
+            sourceList.add(intern(sources, line, bounds[2], bounds[3]));
+            typeList.add(intern(types, line, bounds[4], bounds[5]));
+            int start = parseInt(line, bounds[6], bounds[7]);
+            int end = parseInt(line, bounds[8], bounds[9]);
+            startList.add(Math.min(start, end));
+            endList.add(Math.max(start, end));
+            scoreArray[size] = 0.0;
+            if (!line.regionEquals(bounds[10], bounds[11], ".", false)) {
+                try {
+                    scoreArray[size] = Double.parseDouble(line.substring(bounds[10], bounds[11]));
+                } catch (NumberFormatException e) {
+                    // score stays 0.0
+                }
+            }
+            byte strand = bounds[12]<bounds[13] ? line.byteAt(bounds[12]) : 0;
+            if (strand!='+' && strand!='-' && strand!='.') {
+                reader.close();
+                throw new IOException("GFF strand must be +, - or . on line: "+line);
+            }
+            strandArray[size] = strand;
+            int frame = -1;
+            if (!line.regionEquals(bounds[14], bounds[15], ".", false)) {
+                try {
+                    frame = parseInt(line, bounds[14], bounds[15]);
+                } catch (NumberFormatException e) {
+                    // frame stays -1
+                }
+            }
+            frameList.add(frame);
+            // attributes, untrimmed, up to any comment
+            int attributesTo = line.indexOf((byte) '#', bounds[16]);
+            if (attributesTo<0 || attributesTo>bounds[17]) attributesTo = bounds[17];
+            int length = attributesTo - bounds[16];
+            if (attributeLength+length>attributeBytes.length) {
+                attributeBytes = Arrays.copyOf(attributeBytes, Math.max(2*attributeBytes.length, attributeLength+length));
+            }
+            for (int k=0; k<length; k++) attributeBytes[attributeLength++] = line.byteAt(bounds[16]+k);
+            offsetList.add(attributeLength);
+            size++;
+        }
+        reader.close();
+        seqnameIds = IntBuffer.wrap(seqnameList.toArray());
+        sourceIds = IntBuffer.wrap(sourceList.toArray());
+        typeIds = IntBuffer.wrap(typeList.toArray());
+        starts = IntBuffer.wrap(startList.toArray());
+        ends = IntBuffer.wrap(endList.toArray());
+        frames = IntBuffer.wrap(frameList.toArray());
+        strands = ByteBuffer.wrap(Arrays.copyOf(strandArray, size));
+        scores = DoubleBuffer.wrap(Arrays.copyOf(scoreArray, size));
+        attributeOffsets = IntBuffer.wrap(offsetList.toArray());
+        attributes = ByteBuffer.wrap(Arrays.copyOf(attributeBytes, attributeLength));
+    }
+
+    /**
+     * Build the interval index of each seqname and the indexes of the indexed attributes.
+     */
+    void buildIndexes() {
+        IntervalIndex[] indexes = new IntervalIndex[seqnames.size()];
+        for (int i=0; i<size; i++) {
+            int seqnameId = seqnameIds.get(i);
+            if (indexes[seqnameId]==null) indexes[seqnameId] = new IntervalIndex();
+            indexes[seqnameId].add(plusStart(i), plusEnd(i), i);
+        }
+        for (int s=0; s<indexes.length; s++) {
+            indexes[s].index();
+            intervalIndexes.put(seqnames.getName(s), indexes[s]);
+        }
+        for (int k=0; k<INDEXED_ATTRIBUTES.length; k++) {
+            byte[] key = INDEXED_ATTRIBUTES[k].getBytes(StandardCharsets.UTF_8);
+            long[] entries = new long[1024];
+            int count = 0;
+            for (int i=0; i<size; i++) {
+                String value = getAttribute(i, key);
+                if (value==null) continue;
+                for (String v : k==PARENT ? value.split(",") : new String[] { value }) {
+                    if (count==entries.length) entries = Arrays.copyOf(entries, 2*count);
+                    entries[count++] = (long) v.hashCode() << 32 | i;
+                }
+            }
+            Arrays.sort(entries, 0, count);
+            attributeIndexes[k] = LongBuffer.wrap(Arrays.copyOf(entries, count));
+        }
+    }
+
+    /**
+     * Return the start of feature i's biojava Location, which is negative on the minus strand.
+     */
+    int locationStart(int i) {
+        return strands.get(i)=='-' ? -ends.get(i) : starts.get(i)-1;
+    }
+
+    /**
+     * Return the end of feature i's biojava Location.
+     */
+    int locationEnd(int i) {
+        return strands.get(i)=='-' ? -(starts.get(i)-1) : ends.get(i);
+    }
+
+    /**
+     * Return the attribute bytes [from,to) as a String.
+     */
+    String decode(int from, int to) {
+        byte[] bytes = new byte[to-from];
+        for (int k=0; k<bytes.length; k++) bytes[k] = attributes.get(from+k);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the table to a temporary file and move it to the cache file, so readers never see a partial cache.
+     */
+    void writeCache(File cacheFile, long length, long lastModified) throws IOException {
+        File tempFile = new File(cacheFile.getPath()+".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1<<16))) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(size);
+            for (FieldIndex names : new FieldIndex[] { seqnames, sources, types }) {
+                out.writeInt(names.size());
+                for (int k=0; k<names.size(); k++) {
+                    byte[] name = names.getName(k).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                }
+            }
+            for (IntBuffer column : new IntBuffer[] { seqnameIds, sourceIds, typeIds, starts, ends, frames }) {
+                for (int i=0; i<size; i++) out.writeInt(column.get(i));
+            }
+            for (int i=0; i<size; i++) out.writeByte(strands.get(i));
+            for (int i=0; i<size; i++) out.writeDouble(scores.get(i));
+            for (int i=0; i<=size; i++) out.writeInt(attributeOffsets.get(i));
+            out.writeInt(attributes.limit());
+            out.write(attributes.array(), attributes.arrayOffset(), attributes.limit());
+            for (LongBuffer entries : attributeIndexes) {
+                out.writeInt(entries.limit());
+                for (int j=0; j<entries.limit(); j++) out.writeLong(entries.get(j));
+            }
+            out.writeInt(intervalIndexes.size());
+            for (Map.Entry<String,IntervalIndex> entry : intervalIndexes.entrySet()) {
+                out.writeInt(seqnames.get(entry.getKey()));
+                entry.getValue().write(out);
+            }
+        }
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Map a table from the cache file, or return null if it's for a different version of the GFF file or too large to map.
+     */
+    static GFFTable readCache(File cacheFile, long length, long lastModified) throws IOException {
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size()>Integer.MAX_VALUE) return null;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt()!=CACHE_MAGIC || buffer.getLong()!=length || buffer.getLong()!=lastModified) return null;
+            GFFTable table = new GFFTable();
+            int size = table.size = buffer.getInt();
+            for (FieldIndex names : new FieldIndex[] { table.seqnames, table.sources, table.types }) {
+                int count = buffer.getInt();
+                for (int k=0; k<count; k++) {
+                    byte[] name = new byte[buffer.getInt()];
+                    buffer.get(name);
+                    names.add(new String(name, StandardCharsets.UTF_8));
+                }
+            }
+            table.seqnameIds = slice(buffer, 4*size).asIntBuffer();
+            table.sourceIds = slice(buffer, 4*size).asIntBuffer();
+            table.typeIds = slice(buffer, 4*size).asIntBuffer();
+            table.starts = slice(buffer, 4*size).asIntBuffer();
+            table.ends = slice(buffer, 4*size).asIntBuffer();
+            table.frames = slice(buffer, 4*size).asIntBuffer();
+            table.strands = slice(buffer, size);
+            table.scores = slice(buffer, 8*size).asDoubleBuffer();
+            table.attributeOffsets = slice(buffer, 4*(size+1)).asIntBuffer();
+            table.attributes = slice(buffer, buffer.getInt());
+            for (int k=0; k<INDEXED_ATTRIBUTES.length; k++) {
+                table.attributeIndexes[k] = slice(buffer, 8*buffer.getInt()).asLongBuffer();
+            }
+            int count = buffer.getInt();
+            for (int s=0; s<count; s++) {
+                String seqname = table.seqnames.getName(buffer.getInt());
+                table.intervalIndexes.put(seqname, IntervalIndex.read(buffer));
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Return a view of the next bytes of buffer, advancing it past them.
+     */
+    static ByteBuffer slice(ByteBuffer buffer, int bytes) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(bytes);
+        buffer.position(buffer.position()+bytes);
+        return slice;
+    }
+
+    /**
+     * Return the id of the range [from,to) of the line in names, adding it if it's new.
+     */
+    static int intern(FieldIndex names, TabLine line, int from, int to) {
+        int id = names.get(line, from, to);
+        return id>=0 ? id : names.add(line.substring(from, to));
+    }
+
+    /**
+     * Parse the range [from,to) of the line as an int.
+     */
+    static int parseInt(TabLine line, int from, int to) {
+        long value = line.parseLong(from, to);
+        if (value<Integer.MIN_VALUE || value>Integer.MAX_VALUE) throw new NumberFormatException("Out of int range: "+line.substring(from, to));
+        return (int) value;
+    }
+
+    /**
+     * Return true if b is whitespace as String.trim sees it.
+     */
+    static boolean isSpace(byte b) {
+        return (b&0xff)<=' ';
+    }
+
+    /**
+     * Return the position of the first b in buffer[from,to), or to if there is none.
+     */
+    static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+        for (int k=from; k<to; k++) {
+            if (buffer.get(k)==b) return k;
+        }
+        return to;
+    }
+
+    /**
+     * Return true if buffer[from,to) equals the given bytes.
+     */
+    static boolean regionEquals(ByteBuffer buffer, int from, int to, byte[] bytes) {
+        if (to-from!=bytes.length) return false;
+        for (int k=0; k<bytes.length; k++) {
+            if (buffer.get(from+k)!=bytes[k]) return false;
+        }
+        return true;
+    }
+}
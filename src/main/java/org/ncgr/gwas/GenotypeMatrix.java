@@ -0,0 +1,510 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * A packed matrix of biallelic genotypes, two bits per genotype, stored as a PLINK binary fileset: [prefix].bed holds the genotypes
+ * variant-major, each variant's row padded to a whole byte, with the variants in [prefix].bim and the samples in [prefix].fam.
+ *
+ * Genotype codes are PLINK's, with allele 1 the ALT allele and allele 2 the REF allele of the VCF:
+ *   0 (00) homozygous ALT, 1 (01) missing, 2 (10) heterozygous, 3 (11) homozygous REF
+ * Rows are read as 64-bit words with sample s in bits 2*(s%32) of word s/32, so the genotypes of a set of samples (e.g. cases) are
+ * counted with popcounts against a sample mask, and per-sample scores are lookups of a table by code. The .bed file is memory-mapped
+ * in segments of whole rows, and read a row or a block of consecutive rows at a time; variants are found by contig and position
+ * through an IntervalIndex per contig, built on first use.
+ *
+ * The main method converts a VCF, parsing chunks of it in parallel in place and reading only GT. A multi-allelic site is split into
+ * one variant per ALT allele, on which genotypes carrying another ALT allele are missing, or skipped with -skip; either way it's
+ * counted. Haploid calls are taken as homozygous and calls of higher ploidy as missing.
+ *
+ * @author Sam Hokin
+ */
+public class GenotypeMatrix {
+
+    public static final int HOM_ALT = 0;
+    public static final int MISSING = 1;
+    public static final int HET = 2;
+    public static final int HOM_REF = 3;
+
+    static final byte[] MAGIC = { 0x6c, 0x1b, 0x01 }; // PLINK .bed, variant-major
+    static final long LOW_BITS = 0x5555555555555555L; // the low bit of each genotype in a word
+    static final int SEGMENT_BYTES = 1 << 30;
+
+    // samples
+    List<String> sampleNames = new ArrayList<>();
+    Map<String,Integer> sampleIndexes = new HashMap<>();
+
+    // variants
+    FieldIndex contigs = new FieldIndex();
+    IntervalIndex.IntList variantContigs = new IntervalIndex.IntList();
+    IntervalIndex.IntList positions = new IntervalIndex.IntList();
+    List<String> ids = new ArrayList<>();
+    List<String> alleles1 = new ArrayList<>();
+    List<String> alleles2 = new ArrayList<>();
+
+    Map<String,IntervalIndex> positionIndexes; // variants by position, keyed by contig
+
+    // genotypes
+    int rowBytes;
+    int rowsPerSegment;
+    ByteBuffer[] segments;
+
+    public static void main(String[] args) throws IOException {
+
+        Options options = new Options();
+
+        Option vcfFileOption = new Option("vcf", "vcffile", true, "VCF file to convert, plain or gzipped");
+        vcfFileOption.setRequired(true);
+        options.addOption(vcfFileOption);
+        //
+        Option outPrefixOption = new Option("out", "outprefix", true, "prefix of the .bed, .bim and .fam files to write");
+        outPrefixOption.setRequired(true);
+        options.addOption(outPrefixOption);
+        //
+        Option skipOption = new Option("skip", "skipmultiallelic", false, "skip multi-allelic sites rather than split them (false)");
+        skipOption.setRequired(false);
+        options.addOption(skipOption);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            formatter.printHelp("GenotypeMatrix", options);
+            System.exit(1);
+            return;
+        }
+
+        write(cmd.getOptionValue("vcffile"), cmd.getOptionValue("outprefix"), cmd.hasOption("skipmultiallelic"));
+    }
+
+    /**
+     * Convert a VCF file to a fileset with the given prefix, splitting or skipping multi-allelic sites.
+     */
+    public static void write(String vcfFilename, String prefix, boolean skipMultiallelic) throws IOException {
+        LineReader vcfReader = new LineReader(vcfFilename);
+        // the header, through the #CHROM line with the sample names
+        List<String> names = null;
+        TabLine line;
+        while (names==null && (line=vcfReader.readLine())!=null) {
+            if (line.startsWith("#CHROM")) {
+                names = new ArrayList<>();
+                for (int i=9; line.hasField(i); i++) names.add(line.get(i));
+            }
+        }
+        if (names==null) throw new IOException(vcfFilename+" has no #CHROM line");
+        final int nSamples = names.size();
+        try (PrintStream fam = new PrintStream(new BufferedOutputStream(new FileOutputStream(prefix+".fam")))) {
+            for (String name : names) fam.println(name+"\t"+name+"\t0\t0\t0\t-9");
+        }
+        // the records, a chunk per thread, written in file order
+        long[] counts = new long[2]; // variants, multi-allelic sites
+        try (OutputStream bed = new BufferedOutputStream(new FileOutputStream(prefix+".bed"), 1<<20);
+             PrintStream bim = new PrintStream(new BufferedOutputStream(new FileOutputStream(prefix+".bim"), 1<<20))) {
+            bed.write(MAGIC);
+            vcfReader.processChunks(LineReader.DEFAULT_CHUNK_BYTES, lines -> packChunk(lines, nSamples, skipMultiallelic), chunk -> {
+                    try {
+                        chunk.rows.writeTo(bed);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    bim.print(chunk.bim);
+                    counts[0] += chunk.variants;
+                    counts[1] += chunk.multiallelic;
+                }, true);
+        }
+        vcfReader.close();
+        System.err.println("Wrote "+counts[0]+" variants of "+nSamples+" samples to "+prefix+".bed");
+        if (counts[1]>0) System.err.println((skipMultiallelic ? "Skipped " : "Split ")+counts[1]+" multi-allelic sites");
+    }
+
+    /**
+     * Pack the GT calls of a chunk of VCF records into .bed rows and .bim lines.
+     */
+    static Chunk packChunk(List<TabLine> lines, int nSamples, boolean skipMultiallelic) {
+        Chunk chunk = new Chunk();
+        int rowBytes = (nSamples+3) / 4;
+        int[] first = new int[nSamples];
+        int[] second = new int[nSamples];
+        for (TabLine line : lines) {
+            if (line.startsWith("#") || line.isBlank()) continue;
+            String ref = line.get(3);
+            String alt = line.get(4);
+            String[] alts = alt.split(",");
+            if (alts.length>1) {
+                chunk.multiallelic++;
+                if (skipMultiallelic) continue;
+            }
+            parseGenotypes(line, first, second);
+            String contig = line.get(0);
+            String pos = line.get(1);
+            String id = line.get(2);
+            for (int k=1; k<=alts.length; k++) {
+                byte[] row = new byte[rowBytes];
+                for (int s=0; s<nSamples; s++) row[s>>>2] |= code(first[s], second[s], k) << ((s&3)<<1);
+                chunk.rows.write(row, 0, rowBytes);
+                chunk.bim.append(contig).append('\t').append(id).append("\t0\t").append(pos).append('\t').append(alts[k-1]).append('\t').append(ref).append('\n');
+                chunk.variants++;
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Parse the GT allele indexes of each sample of a VCF record into first and second: -1 for missing, and second -2 for a haploid call.
+     * A record whose FORMAT doesn't start with GT is all missing.
+     */
+    static void parseGenotypes(TabLine line, int[] first, int[] second) {
+        int format = line.fieldStart(8);
+        boolean hasGT = line.byteAt(format)=='G' && line.byteAt(format+1)=='T' && (format+2==line.fieldEnd(8) || line.byteAt(format+2)==':');
+        int length = line.length();
+        int p = line.fieldStart(9);
+        for (int s=0; s<first.length; s++) {
+            if (p>length) throw new IllegalArgumentException("Record at "+line.get(0)+":"+line.get(1)+" has fewer than "+first.length+" samples");
+            first[s] = -1;
+            second[s] = -1;
+            if (hasGT) {
+                int[] allele = new int[3];
+                int ploidy = 0;
+                while (ploidy<3) {
+                    int a = 0;
+                    if (p<length && line.byteAt(p)=='.') {
+                        a = -1;
+                        p++;
+                    } else {
+                        int digits = 0;
+                        for (byte b; p<length && (b=line.byteAt(p))>='0' && b<='9'; p++, digits++) a = a*10 + b - '0';
+                        if (digits==0) a = -1;
+                    }
+                    allele[ploidy++] = a;
+                    if (p<length && (line.byteAt(p)=='/' || line.byteAt(p)=='|')) {
+                        p++;
+                    } else {
+                        break;
+                    }
+                }
+                if (ploidy==1) {
+                    first[s] = allele[0];
+                    second[s] = -2;
+                } else if (ploidy==2) {
+                    first[s] = allele[0];
+                    second[s] = allele[1];
+                }
+            }
+            // on to the next sample
+            while (p<length && line.byteAt(p)!='\t') p++;
+            p++;
+        }
+    }
+
+    /**
+     * Return the genotype code for ALT allele k of a call with the given allele indexes.
+     */
+    static int code(int first, int second, int k) {
+        if (second==-2) second = first; // haploid
+        if (first<0 || second<0) return MISSING;
+        if ((first!=0 && first!=k) || (second!=0 && second!=k)) return MISSING; // another ALT allele
+        int alts = (first==k ? 1 : 0) + (second==k ? 1 : 0);
+        return alts==2 ? HOM_ALT : alts==1 ? HET : HOM_REF;
+    }
+
+    /**
+     * Read the .fam and .bim files of the fileset with the given prefix and memory-map its .bed file.
+     */
+    public static GenotypeMatrix read(String prefix) throws IOException {
+        GenotypeMatrix matrix = readSamplesAndVariants(prefix);
+        // genotypes
+        File bedFile = new File(prefix+".bed");
+        matrix.rowBytes = (matrix.sampleNames.size()+3) / 4;
+        int nVariants = matrix.variantContigs.size;
+        long expected = MAGIC.length + (long) nVariants * matrix.rowBytes;
+        try (FileChannel channel = FileChannel.open(bedFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size()!=expected) throw new IOException(bedFile+" is "+channel.size()+" bytes, expected "+expected);
+            if (!hasMagic(channel, MAGIC)) throw new IOException(bedFile+" is not a variant-major PLINK .bed file");
+            matrix.rowsPerSegment = Math.max(1, SEGMENT_BYTES/Math.max(1, matrix.rowBytes));
+            matrix.segments = map(channel, nVariants, matrix.rowBytes, matrix.rowsPerSegment);
+        }
+        return matrix;
+    }
+
+    /**
+     * Read the samples of the .fam file and the variants of the .bim file of the fileset with the given prefix, without genotypes.
+     */
+    static GenotypeMatrix readSamplesAndVariants(String prefix) throws IOException {
+        GenotypeMatrix matrix = new GenotypeMatrix();
+        // samples by IID; PLINK's own files are space-delimited
+        LineReader famReader = new LineReader(prefix+".fam");
+        TabLine line;
+        while ((line=famReader.readLine())!=null) {
+            if (line.isBlank()) continue;
+            String[] fields = line.toString().trim().split("\\s+");
+            matrix.sampleIndexes.put(fields[1], matrix.sampleNames.size());
+            matrix.sampleNames.add(fields[1]);
+        }
+        famReader.close();
+        // variants
+        LineReader bimReader = new LineReader(prefix+".bim");
+        while ((line=bimReader.readLine())!=null) {
+            if (line.isBlank()) continue;
+            String[] fields = line.toString().trim().split("\\s+");
+            int contig = matrix.contigs.get(fields[0]);
+            if (contig<0) contig = matrix.contigs.add(fields[0]);
+            matrix.variantContigs.add(contig);
+            matrix.ids.add(fields[1]);
+            matrix.positions.add(Integer.parseInt(fields[3]));
+            matrix.alleles1.add(fields[4]);
+            matrix.alleles2.add(fields[5]);
+        }
+        bimReader.close();
+        return matrix;
+    }
+
+    /**
+     * Return true if the channel starts with the given magic bytes.
+     */
+    static boolean hasMagic(FileChannel channel, byte[] expected) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(expected.length);
+        channel.read(magic, 0);
+        if (magic.position()<expected.length) return false;
+        for (int i=0; i<expected.length; i++) {
+            if (magic.get(i)!=expected[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Map the rows of rowBytes bytes following the magic bytes of a .bed file, in segments of rowsPerSegment whole rows.
+     */
+    static ByteBuffer[] map(FileChannel channel, int nRows, int rowBytes, int rowsPerSegment) throws IOException {
+        ByteBuffer[] segments = new ByteBuffer[(nRows+rowsPerSegment-1) / rowsPerSegment];
+        for (int i=0; i<segments.length; i++) {
+            long from = (long) i * rowsPerSegment;
+            long rows = Math.min(rowsPerSegment, nRows-from);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, MAGIC.length+from*rowBytes, rows*rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return segments;
+    }
+
+    /**
+     * Return the number of samples.
+     */
+    public int getSampleCount() {
+        return sampleNames.size();
+    }
+
+    /**
+     * Return the sample names, in matrix order.
+     */
+    public List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    /**
+     * Return the index of the given sample, or -1 if it isn't present.
+     */
+    public int getSampleIndex(String sampleName) {
+        Integer s = sampleIndexes.get(sampleName);
+        return s==null ? -1 : s;
+    }
+
+    /**
+     * Return the number of variants.
+     */
+    public int getVariantCount() {
+        return variantContigs.size;
+    }
+
+    public String getContig(int v) {
+        return contigs.getName(variantContigs.values[v]);
+    }
+
+    public int getPosition(int v) {
+        return positions.values[v];
+    }
+
+    public String getID(int v) {
+        return ids.get(v);
+    }
+
+    /**
+     * Return allele 1 of variant v, the ALT allele of a converted VCF.
+     */
+    public String getAllele1(int v) {
+        return alleles1.get(v);
+    }
+
+    /**
+     * Return allele 2 of variant v, the REF allele of a converted VCF.
+     */
+    public String getAllele2(int v) {
+        return alleles2.get(v);
+    }
+
+    /**
+     * Return the variants at the given position of a contig, in matrix order.
+     */
+    public int[] find(String contig, int pos) {
+        return find(contig, pos, pos);
+    }
+
+    /**
+     * Return the variants at positions start through end of a contig, in matrix order.
+     */
+    public synchronized int[] find(String contig, int start, int end) {
+        if (positionIndexes==null) {
+            positionIndexes = new HashMap<>();
+            for (int v=0; v<getVariantCount(); v++) {
+                positionIndexes.computeIfAbsent(getContig(v), k -> new IntervalIndex()).add(positions.values[v], positions.values[v]+1, v);
+            }
+            for (IntervalIndex index : positionIndexes.values()) index.index();
+        }
+        IntervalIndex index = positionIndexes.get(contig);
+        if (index==null) return new int[0];
+        int[] variants = index.overlapping(start, end==Integer.MAX_VALUE ? end : end+1);
+        Arrays.sort(variants);
+        return variants;
+    }
+
+    /**
+     * Return the genotype string of a code at variant v as a VCF would give an unphased call, e.g. A/G for HET with REF A and ALT G,
+     * or ./. for MISSING.
+     */
+    public String getGenotypeString(int v, int code) {
+        switch (code) {
+        case HOM_ALT: return alleles1.get(v)+"/"+alleles1.get(v);
+        case HET:     return alleles2.get(v)+"/"+alleles1.get(v);
+        case HOM_REF: return alleles2.get(v)+"/"+alleles2.get(v);
+        default:      return "./.";
+        }
+    }
+
+    /**
+     * Return the number of 64-bit words in a row.
+     */
+    public int getWordCount() {
+        return (sampleNames.size()+31) / 32;
+    }
+
+    /**
+     * Read the row of variant v into words, which has getWordCount() elements, and return it.
+     */
+    public long[] getRow(int v, long[] words) {
+        ByteBuffer segment = segments[v/rowsPerSegment];
+        int offset = (v%rowsPerSegment) * rowBytes;
+        for (int w=0; w<words.length; w++) {
+            int from = offset + 8*w;
+            int n = Math.min(8, rowBytes-8*w);
+            if (n==8) {
+                words[w] = segment.getLong(from);
+            } else {
+                long word = 0;
+                for (int b=0; b<n; b++) word |= (segment.get(from+b) & 0xffL) << (8*b);
+                words[w] = word;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Read the rows of count variants starting at variant from into rows, each with getWordCount() elements, and return it.
+     */
+    public long[][] getRows(int from, int count, long[][] rows) {
+        for (int k=0; k<count; k++) getRow(from+k, rows[k]);
+        return rows;
+    }
+
+    /**
+     * Copy length bytes of the row of variant v, starting at byte from, into bytes at offset.
+     */
+    void getRowBytes(int v, int from, byte[] bytes, int offset, int length) {
+        ByteBuffer segment = segments[v/rowsPerSegment].duplicate();
+        segment.position((v%rowsPerSegment)*rowBytes + from);
+        segment.get(bytes, offset, length);
+    }
+
+    /**
+     * Return the genotype code of sample s at variant v.
+     */
+    public int getGenotype(int v, int s) {
+        return (segments[v/rowsPerSegment].get((v%rowsPerSegment)*rowBytes + (s>>>2)) >>> ((s&3)<<1)) & 3;
+    }
+
+    /**
+     * Return a mask of the given samples for count(), ignoring names not in the matrix.
+     */
+    public long[] getMask(Collection<String> names) {
+        long[] mask = new long[getWordCount()];
+        for (String name : names) {
+            int s = getSampleIndex(name);
+            if (s>=0) mask[s>>>5] |= 1L << ((s&31)<<1);
+        }
+        return mask;
+    }
+
+    /**
+     * Return the number of masked samples with each genotype code in a row, indexed by code.
+     */
+    public static int[] count(long[] row, long[] mask) {
+        int[] counts = new int[4];
+        for (int w=0; w<row.length; w++) {
+            long low = row[w] & LOW_BITS;
+            long high = (row[w] >>> 1) & LOW_BITS;
+            long m = mask[w];
+            counts[HOM_ALT] += Long.bitCount(m & ~low & ~high);
+            counts[MISSING] += Long.bitCount(m & low & ~high);
+            counts[HET] += Long.bitCount(m & ~low & high);
+            counts[HOM_REF] += Long.bitCount(m & low & high);
+        }
+        return counts;
+    }
+
+    /**
+     * Add the score of each sample's genotype code in a row to scores, counting it in counts, skipping codes whose score is NaN.
+     */
+    public void addScores(long[] row, double[] codeScores, double[] scores, int[] counts) {
+        for (int s=0; s<sampleNames.size(); s++) {
+            double score = codeScores[(int) (row[s>>>5] >>> ((s&31)<<1)) & 3];
+            if (Double.isNaN(score)) continue;
+            scores[s] += score;
+            counts[s]++;
+        }
+    }
+
+    /**
+     * The packed rows and .bim lines of one chunk of a VCF.
+     */
+    static class Chunk {
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        StringBuilder bim = new StringBuilder();
+        int variants;
+        int multiallelic;
+    }
+}
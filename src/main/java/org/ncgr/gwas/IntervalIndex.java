@@ -0,0 +1,227 @@
+package org.ncgr.gwas;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import java.util.Arrays;
+
+/**
+ * An implicit augmented interval tree over half-open intervals [start,end), stored in primitive arrays.
+ *
+ * Intervals are sorted by start and the sorted array is treated as an in-order binary tree, with each node holding the maximum end
+ * of its subtree, so an overlap query takes O(log n + k) with no per-node objects. Each interval carries an int id supplied by the caller.
+ * Add intervals, call index(), then query from any number of threads. An index can be written to a stream and read back
+ * from a (typically memory-mapped) buffer without sorting again.
+ *
+ * @author Sam Hokin
+ */
+public class IntervalIndex {
+
+    int size;
+    int[] starts = new int[16];
+    int[] ends = new int[16];
+    int[] ids = new int[16];
+    int[] maxEnds;
+    int maxLevel;
+
+    /**
+     * Add the interval [start,end) with the given id.
+     */
+    public void add(int start, int end, int id) {
+        if (size==starts.length) {
+            starts = Arrays.copyOf(starts, 2*size);
+            ends = Arrays.copyOf(ends, 2*size);
+            ids = Arrays.copyOf(ids, 2*size);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        ids[size] = id;
+        size++;
+    }
+
+    /**
+     * Return the number of intervals.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sort the intervals and build the tree; must be called after the last add and before the first query.
+     */
+    public void index() {
+        // sort by start, then order of addition, via packed keys
+        long[] keys = new long[size];
+        for (int i=0; i<size; i++) keys[i] = (long) starts[i] << 32 | i;
+        Arrays.sort(keys);
+        int[] sortedStarts = new int[size];
+        int[] sortedEnds = new int[size];
+        int[] sortedIds = new int[size];
+        for (int i=0; i<size; i++) {
+            int j = (int) keys[i];
+            sortedStarts[i] = starts[j];
+            sortedEnds[i] = ends[j];
+            sortedIds[i] = ids[j];
+        }
+        starts = sortedStarts;
+        ends = sortedEnds;
+        ids = sortedIds;
+        buildTree();
+    }
+
+    /**
+     * Return the ids of the intervals overlapping [start,end), in no particular order.
+     */
+    public int[] overlapping(int start, int end) {
+        IntList result = new IntList();
+        query(start, end, result);
+        return result.toArray();
+    }
+
+    /**
+     * Return true if any interval overlaps [start,end).
+     */
+    public boolean overlapsAny(int start, int end) {
+        return query(start, end, null);
+    }
+
+    /**
+     * Compute the subtree maximum ends, level by level from the leaves (the even indexes) up.
+     */
+    void buildTree() {
+        maxEnds = new int[size];
+        if (size==0) {
+            maxLevel = -1;
+            return;
+        }
+        int lastIndex = 0;
+        int last = 0; // max end of the last, possibly incomplete, subtree
+        for (int i=0; i<size; i+=2) {
+            lastIndex = i;
+            maxEnds[i] = last = ends[i];
+        }
+        int k;
+        for (k=1; (1<<k)<=size; k++) {
+            int x = 1 << (k-1);
+            int i0 = (x<<1) - 1;
+            int step = x << 2;
+            for (int i=i0; i<size; i+=step) {
+                int leftMax = maxEnds[i-x];
+                int rightMax = i+x<size ? maxEnds[i+x] : last;
+                maxEnds[i] = Math.max(ends[i], Math.max(leftMax, rightMax));
+            }
+            lastIndex = ((lastIndex>>k)&1)!=0 ? lastIndex-x : lastIndex+x;
+            if (lastIndex<size && maxEnds[lastIndex]>last) last = maxEnds[lastIndex];
+        }
+        maxLevel = k - 1;
+    }
+
+    /**
+     * Add the ids of intervals overlapping [start,end) to result, walking the tree with an explicit stack.
+     * If result is null, stop at the first overlapping interval. Return true if any interval overlaps.
+     */
+    boolean query(int start, int end, IntList result) {
+        if (size==0) return false;
+        boolean found = false;
+        // stack of (node, level, leftDone)
+        int[] nodes = new int[64];
+        int[] levels = new int[64];
+        boolean[] leftDone = new boolean[64];
+        int top = 0;
+        nodes[top] = (1<<maxLevel) - 1;
+        levels[top] = maxLevel;
+        leftDone[top] = false;
+        top++;
+        while (top>0) {
+            top--;
+            int x = nodes[top];
+            int k = levels[top];
+            boolean w = leftDone[top];
+            if (k<=3) {
+                // small subtree: scan it linearly
+                int i0 = x >> k << k;
+                int i1 = Math.min(i0 + (1<<(k+1)) - 1, size);
+                for (int i=i0; i<i1 && starts[i]<end; i++) {
+                    if (start<ends[i]) {
+                        if (result==null) return true;
+                        result.add(ids[i]);
+                        found = true;
+                    }
+                }
+            } else if (!w) {
+                // revisit this node after its left child
+                int y = x - (1<<(k-1));
+                nodes[top] = x;
+                levels[top] = k;
+                leftDone[top] = true;
+                top++;
+                if (y>=size || maxEnds[y]>start) {
+                    nodes[top] = y;
+                    levels[top] = k - 1;
+                    leftDone[top] = false;
+                    top++;
+                }
+            } else if (x<size && starts[x]<end) {
+                // this node, then its right child
+                if (start<ends[x]) {
+                    if (result==null) return true;
+                    result.add(ids[x]);
+                    found = true;
+                }
+                nodes[top] = x + (1<<(k-1));
+                levels[top] = k - 1;
+                leftDone[top] = false;
+                top++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Write the indexed intervals to out, for reading back with read.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(maxLevel);
+        for (int[] values : new int[][] { starts, ends, ids, maxEnds }) {
+            for (int i=0; i<size; i++) out.writeInt(values[i]);
+        }
+    }
+
+    /**
+     * Read an index written by write, starting at the position of buffer and advancing it past the index.
+     */
+    static IntervalIndex read(ByteBuffer buffer) {
+        IntervalIndex index = new IntervalIndex();
+        index.size = buffer.getInt();
+        index.maxLevel = buffer.getInt();
+        IntBuffer ints = buffer.asIntBuffer();
+        index.starts = new int[index.size];
+        index.ends = new int[index.size];
+        index.ids = new int[index.size];
+        index.maxEnds = new int[index.size];
+        ints.get(index.starts).get(index.ends).get(index.ids).get(index.maxEnds);
+        buffer.position(buffer.position() + 16*index.size);
+        return index;
+    }
+
+    /**
+     * A growable int array.
+     */
+    static class IntList {
+        int[] values = new int[8];
+        int size;
+
+        void add(int value) {
+            if (size==values.length) values = Arrays.copyOf(values, 2*size);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.ncgr.gwas;
+
+import java.util.Arrays;
+
+/**
+ * A sweep line over the intervals of an IntervalIndex, for joining them to queries that arrive in position order.
+ *
+ * Intervals enter the active set in start order as the query end passes their start, and leave it (via a min-heap on end)
+ * once the query start reaches their end, so a run of sorted queries costs one pass over the intervals plus the overlaps found,
+ * and memory is bounded by the deepest overlap. A query that goes backwards restarts the sweep, so unsorted queries still
+ * get correct, if slower, answers.
+ *
+ * @author Sam Hokin
+ */
+public class IntervalSweep {
+
+    final IntervalIndex index;
+
+    int next;                   // next interval, in start order, to enter the active set
+    int[] heapEnds = new int[16];
+    int[] heapIds = new int[16];
+    int heapSize;
+    int lastStart = Integer.MIN_VALUE;
+    int lastEnd = Integer.MIN_VALUE;
+
+    /**
+     * Construct a sweep over the given index, which must have been indexed.
+     */
+    public IntervalSweep(IntervalIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Move the sweep to the query [start,end) and return the number of intervals overlapping it.
+     * Queries should be in order of both start and end.
+     */
+    public int advance(int start, int end) {
+        if (start<lastStart || end<lastEnd) reset();
+        lastStart = start;
+        lastEnd = end;
+        while (next<index.size && index.starts[next]<end) {
+            push(index.ends[next], index.ids[next]);
+            next++;
+        }
+        while (heapSize>0 && heapEnds[0]<=start) pop();
+        return heapSize;
+    }
+
+    /**
+     * Return the ids of the intervals overlapping the current query, in increasing order.
+     */
+    public int[] activeIds() {
+        int[] ids = Arrays.copyOf(heapIds, heapSize);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Return the id of the k-th interval overlapping the current query, k less than the count returned by advance, in no particular order.
+     */
+    public int activeId(int k) {
+        return heapIds[k];
+    }
+
+    /**
+     * Return the sweep to the start of the intervals.
+     */
+    public void reset() {
+        next = 0;
+        heapSize = 0;
+        lastStart = Integer.MIN_VALUE;
+        lastEnd = Integer.MIN_VALUE;
+    }
+
+    void push(int end, int id) {
+        if (heapSize==heapEnds.length) {
+            heapEnds = Arrays.copyOf(heapEnds, 2*heapSize);
+            heapIds = Arrays.copyOf(heapIds, 2*heapSize);
+        }
+        int i = heapSize++;
+        while (i>0) {
+            int parent = (i-1) >> 1;
+            if (heapEnds[parent]<=end) break;
+            heapEnds[i] = heapEnds[parent];
+            heapIds[i] = heapIds[parent];
+            i = parent;
+        }
+        heapEnds[i] = end;
+        heapIds[i] = id;
+    }
+
+    void pop() {
+        heapSize--;
+        int end = heapEnds[heapSize];
+        int id = heapIds[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2*i + 1;
+            if (child>=heapSize) break;
+            if (child+1<heapSize && heapEnds[child+1]<heapEnds[child]) child++;
+            if (heapEnds[child]>=end) break;
+            heapEnds[i] = heapEnds[child];
+            heapIds[i] = heapIds[child];
+            i = child;
+        }
+        heapEnds[i] = end;
+        heapIds[i] = id;
+    }
+}
@@ -0,0 +1,236 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Reads lines of a text file as TabLine views, replacing BufferedReader and String.split for the large tab-delimited inputs.
+ *
+ * Plain files are memory-mapped in windows of up to 1GB, so lines are never copied; gzipped files and other streams are read in large blocks,
+ * with bgzipped files inflated on several threads by ParallelBGZFInputStream.
+ * Lines may be read one at a time, or in line-aligned chunks which can be handed to a thread pool, with the results delivered
+ * to a single consumer either in line order or as they complete.
+ *
+ * The TabLines returned remain valid after later reads, so they may be kept or passed to other threads.
+ *
+ * @author Sam Hokin
+ */
+public class LineReader implements Closeable {
+
+    static int MAP_WINDOW = 1 << 30;       // maximum bytes mapped at once
+    static int STREAM_BLOCK = 1 << 22;     // bytes read at once from a stream
+    public static int DEFAULT_CHUNK_BYTES = 1 << 24;
+
+    // number of threads used by processChunks
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    // memory-mapped source
+    FileChannel channel;
+    long fileSize;
+    long windowStart;
+
+    // stream source
+    InputStream in;
+    boolean eof;
+
+    // current buffer and read position
+    ByteBuffer buffer = ByteBuffer.allocate(0);
+    int pos;
+    int limit;
+
+    /**
+     * Construct from a filename, memory-mapping it unless it is gzipped.
+     */
+    public LineReader(String filename) throws IOException {
+        if (isGzipped(filename)) {
+            this.in = ParallelBGZFInputStream.open(filename);
+        } else {
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            fileSize = channel.size();
+        }
+    }
+
+    /**
+     * Construct from an InputStream, which is read in blocks.
+     */
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Return true if the given file starts with the gzip magic number.
+     */
+    public static boolean isGzipped(String filename) throws IOException {
+        try (InputStream test = new BufferedInputStream(new FileInputStream(filename))) {
+            return test.read()==0x1f && test.read()==0x8b;
+        }
+    }
+
+    /**
+     * Return the next line, or null at end of file. A trailing carriage return is dropped.
+     */
+    public TabLine readLine() throws IOException {
+        int from = pos;
+        while (true) {
+            for (int i=from; i<limit; i++) {
+                if (buffer.get(i)=='\n') {
+                    TabLine line = newLine(pos, i);
+                    pos = i + 1;
+                    return line;
+                }
+            }
+            int scanned = limit - pos;
+            if (!refill()) {
+                if (pos<limit) {
+                    // last line has no newline
+                    TabLine line = newLine(pos, limit);
+                    pos = limit;
+                    return line;
+                }
+                return null;
+            }
+            from = pos + scanned;
+        }
+    }
+
+    /**
+     * Return the next lines totalling at least chunkBytes (or to end of file), or null at end of file.
+     */
+    public List<TabLine> readChunk(int chunkBytes) throws IOException {
+        List<TabLine> chunk = new ArrayList<>();
+        int bytes = 0;
+        TabLine line;
+        while (bytes<chunkBytes && (line=readLine())!=null) {
+            chunk.add(line);
+            bytes += line.length() + 1;
+        }
+        return chunk.size()>0 ? chunk : null;
+    }
+
+    /**
+     * Read the rest of the file in chunks of about chunkBytes, apply worker to each chunk on a pool of threads,
+     * and pass the results to sink on the calling thread, in file order if ordered is true, else as they complete.
+     */
+    public <T> void processChunks(int chunkBytes, Function<List<TabLine>,T> worker, Consumer<T> sink, boolean ordered) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int maxPending = 2*threads;
+        try {
+            if (ordered) {
+                ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+                List<TabLine> chunk;
+                while ((chunk=readChunk(chunkBytes))!=null) {
+                    final List<TabLine> lines = chunk;
+                    pending.add(pool.submit((Callable<T>) () -> worker.apply(lines)));
+                    if (pending.size()>=maxPending) sink.accept(getResult(pending.poll()));
+                }
+                while (pending.size()>0) sink.accept(getResult(pending.poll()));
+            } else {
+                CompletionService<T> completion = new ExecutorCompletionService<>(pool);
+                int inFlight = 0;
+                List<TabLine> chunk;
+                while ((chunk=readChunk(chunkBytes))!=null) {
+                    final List<TabLine> lines = chunk;
+                    completion.submit(() -> worker.apply(lines));
+                    inFlight++;
+                    if (inFlight>=maxPending) {
+                        sink.accept(getResult(completion.take()));
+                        inFlight--;
+                    }
+                }
+                for (; inFlight>0; inFlight--) sink.accept(getResult(completion.take()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Close the underlying file or stream.
+     */
+    public void close() throws IOException {
+        if (channel!=null) channel.close();
+        if (in!=null) in.close();
+    }
+
+    /**
+     * Return the result of a completed worker, rethrowing its exception unwrapped.
+     */
+    static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Return a TabLine over buffer[from,to), dropping a trailing carriage return.
+     */
+    TabLine newLine(int from, int to) {
+        if (to>from && buffer.get(to-1)=='\r') to--;
+        return new TabLine(buffer, from, to);
+    }
+
+    /**
+     * Move the buffer forward so that it starts at the current position and holds more data. Returns false at end of file.
+     */
+    boolean refill() throws IOException {
+        int leftover = limit - pos;
+        if (channel!=null) {
+            if (windowStart+limit>=fileSize) return false;
+            if (pos==0 && limit==MAP_WINDOW) throw new IOException("Line longer than "+MAP_WINDOW+" bytes at offset "+windowStart);
+            windowStart += pos;
+            long size = Math.min((long) MAP_WINDOW, fileSize-windowStart);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+            pos = 0;
+            limit = (int) size;
+            return true;
+        } else {
+            if (eof) return false;
+            // a new array each time, since earlier TabLines still refer to the old one
+            int size = Math.max(STREAM_BLOCK, 2*leftover);
+            byte[] bytes = new byte[size];
+            for (int i=0; i<leftover; i++) bytes[i] = buffer.get(pos+i);
+            int filled = leftover;
+            while (filled<size) {
+                int n = in.read(bytes, filled, size-filled);
+                if (n<0) {
+                    eof = true;
+                    break;
+                }
+                filled += n;
+            }
+            buffer = ByteBuffer.wrap(bytes);
+            pos = 0;
+            limit = filled;
+            return filled>leftover;
+        }
+    }
+}
@@ -1,15 +1,14 @@
 package org.ncgr.gwas;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Collectors;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -22,13 +21,39 @@ import org.apache.commons.cli.ParseException;
 /**
  * Loads a PLINK list file and computes the Cochran-Armitage Test p-value for segregation between genotypes in a case/control experiment.
  *
- * Cases and controls are given by a labels file.
+ * Cases and controls are given by a labels file, which may have several phenotype columns as output by PhenoSubjects with comma-separated ccVars.
+ *
+ * The labelled samples are interned to int indexes once, and the LIST file is read a single time with a LineReader as a stream of 4-line locus groups.
+ * Sample tokens are looked up in place without creating Strings, and each genotype line is reduced to a BitSet of the labelled samples it contains, so the sample's double entry (family and individual)
+ * is counted once, and case/control counts for every phenotype are cardinalities of the intersection with that phenotype's case and control BitSets.
+ * Locus groups are processed in parallel blocks and output in LIST file order.
+ *
+ * A single phenotype is output in the usual ListRecord format; several phenotypes are output in long format with a leading
+ * Phenotype column, or to one file per phenotype if an output prefix is given.
  *
  * @author Sam Hokin
  */
 public class ListSegregation {
     static int DEFAULT_MAX_NOCALLS = 1000;
     static double DEFAULT_MIN_MAF = 0.01;
+    static int DEFAULT_BLOCK_SIZE = 64;
+
+    double minMAF = DEFAULT_MIN_MAF;
+    int maxNoCalls = DEFAULT_MAX_NOCALLS;
+    int blockSize = DEFAULT_BLOCK_SIZE;
+
+    FieldIndex sampleIndex = new FieldIndex();           // labelled sample names interned to indexes
+    BitSet foundSamples = new BitSet();                  // indexes of labelled samples found in the LIST file
+
+    List<String> phenotypes = new ArrayList<>();         // phenotype names from the labels file header
+    List<BitSet> caseSamples = new ArrayList<>();        // indexes of case samples, per phenotype
+    List<BitSet> controlSamples = new ArrayList<>();     // indexes of control samples, per phenotype
+
+    AtomicIntegerArray ncRejects;                        // per phenotype
+    AtomicIntegerArray mafRejects;                       // per phenotype
+
+    String outPrefix;                                    // if set, write one output file per phenotype
+    List<PrintStream> outputs = new ArrayList<>();       // output stream, per phenotype
 
     /**
      * Main class outputs a tab-delimited list of the contingency matrix for each locus, plus the Cochran-Armitage trend test p value.
@@ -51,10 +76,18 @@ public class ListSegregation {
         maxNoCallsOption.setRequired(false);
         options.addOption(maxNoCallsOption);
         //
-        Option labelFileOption = new Option("lf", "labelfile", true, "label file containing case/control labels for each subject");
+        Option labelFileOption = new Option("lf", "labelfile", true, "label file containing case/control labels for each subject (one or more phenotype columns)");
         labelFileOption.setRequired(false);
         options.addOption(labelFileOption);
-	
+        //
+        Option blockSizeOption = new Option("bs", "blocksize", true, "number of loci processed in parallel per block ("+DEFAULT_BLOCK_SIZE+")");
+        blockSizeOption.setRequired(false);
+        options.addOption(blockSizeOption);
+        //
+        Option outPrefixOption = new Option("o", "outprefix", true, "write each phenotype to <outprefix>.<phenotype>.listseg.txt instead of long format to STDOUT");
+        outPrefixOption.setRequired(false);
+        options.addOption(outPrefixOption);
+
         try {
             cmd = parser.parse(options, args);
         } catch (ParseException e) {
@@ -71,213 +104,297 @@ public class ListSegregation {
             return;
         }
 
+        ListSegregation ls = new ListSegregation();
+
         // some general parameters
-        double minMAF = DEFAULT_MIN_MAF;
         if (cmd.hasOption("minmaf")) {
-            minMAF = Double.parseDouble(cmd.getOptionValue("minmaf"));
+            ls.minMAF = Double.parseDouble(cmd.getOptionValue("minmaf"));
         }
-        int maxNoCalls = DEFAULT_MAX_NOCALLS;
         if (cmd.hasOption("maxnocalls")) {
-            maxNoCalls = Integer.parseInt(cmd.getOptionValue("maxnocalls"));
+            ls.maxNoCalls = Integer.parseInt(cmd.getOptionValue("maxnocalls"));
+        }
+        if (cmd.hasOption("blocksize")) {
+            ls.blockSize = Integer.parseInt(cmd.getOptionValue("blocksize"));
+        }
+        if (cmd.hasOption("outprefix")) {
+            ls.outPrefix = cmd.getOptionValue("outprefix");
         }
 
-	// read sample labels from a tab-delimited file.
-	// sample   diseaseId
-	// 28304    case
-	// 60372    ctrl
-	// 45987    unkn
-        // store if case or control; true if case, false if control
-        Map<String,Boolean> subjectStatus = new HashMap<>();
         if (cmd.hasOption("labelfile")) {
-            String labelFilename = cmd.getOptionValue("labelfile");
-            BufferedReader labelReader = new BufferedReader(new FileReader(labelFilename));
-            String labelLine;
-            while ((labelLine=labelReader.readLine())!=null) {
-                if (labelLine.startsWith("#")) continue;
-		String[] fields = labelLine.split("\t");
-		if (fields[0].equals("sample")) continue;
-		String sampleId = fields[0];
-		boolean isCase = fields[1].equals("case");
-		boolean isControl = fields[1].equals("ctrl");
-		if (isCase || isControl) {
-		    // ignore unknown status samples
-		    subjectStatus.put(sampleId, isCase);
-		}
-            }
-            labelReader.close();
+            ls.loadLabels(cmd.getOptionValue("labelfile"));
+        } else {
+            ls.addPhenotype("status");
         }
 
-        // find the desired sample names as they appear in the LIST file
-	// 6	AA_A_9_30018537_FS	AP	42	42	58	58	76	76	107	107	114
-	Set<String> sampleNames = new HashSet<>();
-	BufferedReader listReader = new BufferedReader(new FileReader(cmd.getOptionValue("listfile")));
-        String listLine;
-	while ((listLine=listReader.readLine())!=null) {
-	    String[] fields = listLine.split("\\t");
-	    String contig = fields[0];
-	    String id = fields[1];
-	    String genotype = fields[2];
-	    for (int i=3; i<fields.length; i++) sampleNames.add(fields[i]);
-	}
-	listReader.close();
-	Set<String> caseSampleNames = new HashSet<>();     // case subjects in the LIST file
-        Set<String> controlSampleNames = new HashSet<>();  // control subjects in the LIST file
-	int nCases = 0;
-	int nControls = 0;
-        for (String sampleName : subjectStatus.keySet()) {
-            boolean found = false;
-            if (sampleNames.contains(sampleName)) {
-                found = true;
-                if (subjectStatus.get(sampleName)) {
-                    caseSampleNames.add(sampleName);
-		    nCases++;
-                } else {
-                    controlSampleNames.add(sampleName);
-		    nControls++;
-                }
-            }
-            if (!found) System.err.println("Subject "+sampleName+" NOT FOUND in LIST file.");
-	}
-	System.err.println("Found "+nCases+" cases and "+nControls+" controls in LIST file.");
-	
-	// spin through the LIST file and get stats on qualified loci
-	// sample names appear as family individual
-	// there are four lines per id: minority HOM genotype, HET, majority (REF), no-calls
-	// 6	AA_A_9_30018537_FS	AA	174	174	509	509	1099	1099	1360
-	// 6	AA_A_9_30018537_FS	AP	42	42	58	58	76	76	107
-	// 6	AA_A_9_30018537_FS	PP	45	45	55	55	57	57	59
-	// 6	AA_A_9_30018537_FS	00
-	// 6	AA_A_9_30018537_S	PP	800	800	1760	1760	2468	2468	3996
-	// 6	AA_A_9_30018537_S	PA	55	55	58	58	70	70	76
-	// 6	AA_A_9_30018537_S	AA	42	42	45	45	57	57	59
-	// 6	AA_A_9_30018537_S	00
-	System.out.println(ListRecord.getHeader());
-	int ncRejects = 0;
-	int mafRejects = 0;
-	listReader = new BufferedReader(new FileReader(cmd.getOptionValue("listfile")));
-	listLine = null;                                                                                                                                                                                    
-        while ((listLine=listReader.readLine())!=null) {
-	    // count HOM cases and controls
-	    String[] fields = listLine.split("\\t");
-	    String contig = fields[0];
-	    String id = fields[1];
-	    if (!fields[1].equals(id)) {
-		System.err.println("Error: expected id="+id+" but found "+fields[1]+" instead. Aborting.");
-		System.exit(1);
-	    }
-	    String homGenotype = fields[2];
-	    int caseHOM = 0;
-	    int controlHOM = 0;
-	    for (int i=3; i<fields.length; i++) {
-		String sampleName = fields[i];
-		if (caseSampleNames.contains(sampleName)) {
-		    caseHOM++;
-		} else if (controlSampleNames.contains(sampleName)) {
-		    controlHOM++;
+        ls.processListFile(cmd.getOptionValue("listfile"));
+    }
+
+    /**
+     * Read sample labels from a tab-delimited file, interning the samples that are a case or control for any phenotype to int indexes.
+     * The phenotype names are taken from the header line, if present.
+     *
+     * sample   pheno_241.2   pheno_555
+     * 28304    case          ctrl
+     * 60372    ctrl          ctrl
+     * 45987    unkn          case
+     */
+    void loadLabels(String labelFilename) throws FileNotFoundException, IOException {
+        LineReader labelReader = new LineReader(labelFilename);
+        TabLine labelLine;
+        while ((labelLine=labelReader.readLine())!=null) {
+            if (labelLine.startsWith("#") || labelLine.isBlank()) continue;
+	    int numFields = labelLine.size();
+	    if (labelLine.fieldEquals(0, "sample")) {
+		// header gives the phenotype names
+		if (phenotypes.size()==0) {
+		    for (int j=1; j<numFields; j++) addPhenotype(labelLine.get(j));
 		}
+		continue;
 	    }
-	    // count HET cases and controls
-	    listLine = listReader.readLine();
-	    fields = listLine.split("\\t");
-	    if (!fields[1].equals(id)) {
-		System.err.println("Error: expected id="+id+" but found "+fields[1]+" instead. Aborting.");
-		System.exit(1);
+	    if (phenotypes.size()==0) {
+		// no header, so name the phenotypes by column
+		if (numFields==2) {
+		    addPhenotype("status");
+		} else {
+		    for (int j=1; j<numFields; j++) addPhenotype("status"+j);
+		}
 	    }
-	    String hetGenotype = fields[2];
-	    int caseHET = 0;
-	    int controlHET = 0;
-	    for (int i=3; i<fields.length; i++) {
-		String sampleName = fields[i];
-		if (caseSampleNames.contains(sampleName)) {
-		    caseHET++;
-		} else if (controlSampleNames.contains(sampleName)) {
-		    controlHET++;
+	    String sampleId = labelLine.get(0);
+	    for (int j=1; j<numFields && j<=phenotypes.size(); j++) {
+		boolean isCase = labelLine.fieldEquals(j, "case");
+		boolean isControl = labelLine.fieldEquals(j, "ctrl");
+		if (isCase || isControl) {
+		    // ignore unknown status samples
+		    int index = sampleIndex.add(sampleId);
+		    caseSamples.get(j-1).set(index, isCase);
+		    controlSamples.get(j-1).set(index, isControl);
 		}
 	    }
-	    // count REF cases and controls
-	    listLine = listReader.readLine();
-	    fields = listLine.split("\\t");
-	    if (!fields[1].equals(id)) {
-		System.err.println("Error: expected id="+id+" but found "+fields[1]+" instead. Aborting.");
-		System.exit(1);
+        }
+        labelReader.close();
+    }
+
+    /**
+     * Add a phenotype with empty case and control sets.
+     */
+    void addPhenotype(String phenotype) {
+        phenotypes.add(phenotype);
+        caseSamples.add(new BitSet());
+        controlSamples.add(new BitSet());
+    }
+
+    /**
+     * Spin through the LIST file once and output stats on qualified loci.
+     *
+     * Sample names appear as family individual.
+     * There are four lines per id: minority HOM genotype, HET, majority (REF), no-calls
+     * 6	AA_A_9_30018537_FS	AA	174	174	509	509	1099	1099	1360
+     * 6	AA_A_9_30018537_FS	AP	42	42	58	58	76	76	107
+     * 6	AA_A_9_30018537_FS	PP	45	45	55	55	57	57	59
+     * 6	AA_A_9_30018537_FS	00
+     * 6	AA_A_9_30018537_S	PP	800	800	1760	1760	2468	2468	3996
+     * 6	AA_A_9_30018537_S	PA	55	55	58	58	70	70	76
+     * 6	AA_A_9_30018537_S	AA	42	42	45	45	57	57	59
+     * 6	AA_A_9_30018537_S	00
+     */
+    void processListFile(String listFilename) throws FileNotFoundException, IOException {
+	ncRejects = new AtomicIntegerArray(phenotypes.size());
+	mafRejects = new AtomicIntegerArray(phenotypes.size());
+	openOutputs();
+	LineReader listReader = new LineReader(listFilename);
+	List<TabLine[]> block = new ArrayList<>();
+	TabLine[] group;
+	while ((group=readLocusGroup(listReader))!=null) {
+	    block.add(group);
+	    if (block.size()==blockSize) {
+		processBlock(block);
+		block.clear();
 	    }
-	    String refGenotype = fields[2];
-	    int caseREF = 0;
-	    int controlREF = 0;
-	    for (int i=3; i<fields.length; i++) {
-		String sampleName = fields[i];
-		if (caseSampleNames.contains(sampleName)) {
-		    caseREF++;
-		} else if (controlSampleNames.contains(sampleName)) {
-		    controlREF++;
-		}
+	}
+	processBlock(block);
+	listReader.close();
+	for (PrintStream out : outputs) {
+	    if (out!=System.out) out.close();
+	}
+	// report labelled samples that never appeared
+	for (int i=0; i<sampleIndex.size(); i++) {
+	    if (!foundSamples.get(i)) System.err.println("Subject "+sampleIndex.getName(i)+" NOT FOUND in LIST file.");
+	}
+	for (int j=0; j<phenotypes.size(); j++) {
+	    String prefix = phenotypes.size()>1 ? phenotypes.get(j)+": " : "";
+	    System.err.println(prefix+"Found "+countIntersection(caseSamples.get(j), foundSamples)+" cases and "+countIntersection(controlSamples.get(j), foundSamples)+" controls in LIST file.");
+	    System.err.println(prefix+"maxNC rejects="+ncRejects.get(j)+" minMAF rejects="+mafRejects.get(j));
+	}
+    }
+
+    /**
+     * Open the output stream for each phenotype and print the header(s).
+     * A single phenotype goes to STDOUT as is; several go to STDOUT in long format unless outPrefix is set.
+     */
+    void openOutputs() throws FileNotFoundException {
+	boolean longFormat = phenotypes.size()>1 && outPrefix==null;
+	if (longFormat) System.out.println("Phenotype\t"+ListRecord.getHeader());
+	for (String phenotype : phenotypes) {
+	    if (outPrefix!=null) {
+		PrintStream out = new PrintStream(outPrefix+"."+phenotype+".listseg.txt");
+		out.println(ListRecord.getHeader());
+		outputs.add(out);
+	    } else {
+		outputs.add(System.out);
 	    }
-	    // count NC cases and controls
-	    listLine = listReader.readLine();
-	    fields = listLine.split("\\t");
-	    if (!fields[1].equals(id)) {
-		System.err.println("Error: expected id="+id+" but found "+fields[1]+" instead. Aborting.");
+	}
+	if (!longFormat && outPrefix==null) System.out.println(ListRecord.getHeader());
+    }
+
+    /**
+     * Read the next 4-line locus group from the LIST file, validating that the lines share an ID and that the last is the 00 line.
+     * Returns null at end of file.
+     */
+    TabLine[] readLocusGroup(LineReader listReader) throws IOException {
+	TabLine first = listReader.readLine();
+	while (first!=null && first.isBlank()) first = listReader.readLine();
+	if (first==null) return null;
+	TabLine[] group = new TabLine[4];
+	group[0] = first;
+	String id = first.get(1);
+	for (int i=1; i<4; i++) {
+	    group[i] = listReader.readLine();
+	    if (group[i]==null) {
+		System.err.println("Error: LIST file ends within the locus group for id="+id+". Aborting.");
 		System.exit(1);
 	    }
-	    if (!fields[2].equals("00")) {
-		System.err.println("Error: expected a 00 line but found a "+fields[2]+" line. Aborting.");
+	    if (!group[i].fieldEquals(1, id)) {
+		System.err.println("Error: expected id="+id+" but found "+group[i].get(1)+" instead. Aborting.");
 		System.exit(1);
 	    }
-	    int caseNC = 0;
-	    int controlNC = 0;
-	    for (int i=3; i<fields.length; i++) {
-		String sampleName = fields[i];
-		if (caseSampleNames.contains(sampleName)) {
-		    caseNC++;
-		} else if (controlSampleNames.contains(sampleName)) {
-		    controlNC++;
+	}
+	if (!group[3].fieldEquals(2, "00")) {
+	    System.err.println("Error: expected a 00 line but found a "+group[3].get(2)+" line. Aborting.");
+	    System.exit(1);
+	}
+	return group;
+    }
+
+    /**
+     * Process a block of locus groups in parallel, printing the resulting records in order.
+     */
+    void processBlock(List<TabLine[]> block) {
+	boolean longFormat = phenotypes.size()>1 && outPrefix==null;
+	List<ListRecord[]> results = block.parallelStream().map(this::processLocus).collect(Collectors.toList());
+	for (ListRecord[] records : results) {
+	    for (int j=0; j<records.length; j++) {
+		if (records[j]==null) continue;
+		if (longFormat) {
+		    outputs.get(j).println(phenotypes.get(j)+"\t"+records[j]);
+		} else {
+		    outputs.get(j).println(records[j]);
 		}
 	    }
-	    // divide by two for the double entry of sample names
-	    caseHOM = caseHOM/2;
-	    controlHOM = controlHOM/2;
-	    caseHET = caseHET/2;
-	    controlHET = controlHET/2;
-	    caseREF = caseREF/2;
-	    controlREF = controlREF/2;
-	    caseNC = caseNC/2;
-	    controlNC = controlNC/2;
-	    // no-calls filter
-	    if ((caseNC+controlNC)>maxNoCalls) {
-		ncRejects++;
-		continue;
-	    }
-	    // MAF filter
-	    int totalAlleles = 2*(caseHOM + controlHOM + caseHET + controlHET + caseREF + controlREF);
-	    int caseAlleles = caseHET + 2*caseHOM;
-	    int controlAlleles = controlHET + 2*controlHOM;
-	    double maf = (double) (caseAlleles+controlAlleles) / (double) (totalAlleles);
-	    if (maf<minMAF) {
-		mafRejects++;
-		continue;
+	}
+    }
+
+    /**
+     * Tokenize a single 4-line locus group once and return the record for each phenotype, which is null if the locus is rejected for that phenotype.
+     */
+    ListRecord[] processLocus(TabLine[] group) {
+	String contig = group[0].get(0);
+	String id = group[0].get(1);
+	String hetGenotype = group[1].get(2);
+	BitSet hom = getSamples(group[0]);
+	BitSet het = getSamples(group[1]);
+	BitSet ref = getSamples(group[2]);
+	BitSet nc = getSamples(group[3]);
+	// keep track of labelled samples that appear in the LIST file
+	BitSet present = (BitSet) hom.clone();
+	present.or(het);
+	present.or(ref);
+	present.or(nc);
+	synchronized (foundSamples) {
+	    foundSamples.or(present);
+	}
+	ListRecord[] records = new ListRecord[phenotypes.size()];
+	for (int j=0; j<records.length; j++) {
+	    records[j] = getRecord(j, contig, id, hetGenotype, hom, het, ref, nc);
+	}
+	return records;
+    }
+
+    /**
+     * Count cases and controls for the given phenotype from the genotype BitSets of a locus and run the Cochran-Armitage test.
+     * Returns null if the locus is rejected by the no-call or MAF filter.
+     */
+    ListRecord getRecord(int j, String contig, String id, String hetGenotype, BitSet hom, BitSet het, BitSet ref, BitSet nc) {
+	BitSet cases = caseSamples.get(j);
+	BitSet controls = controlSamples.get(j);
+	int caseHOM = countIntersection(hom, cases);
+	int controlHOM = countIntersection(hom, controls);
+	int caseHET = countIntersection(het, cases);
+	int controlHET = countIntersection(het, controls);
+	int caseREF = countIntersection(ref, cases);
+	int controlREF = countIntersection(ref, controls);
+	int caseNC = countIntersection(nc, cases);
+	int controlNC = countIntersection(nc, controls);
+	// no-calls filter
+	if ((caseNC+controlNC)>maxNoCalls) {
+	    ncRejects.incrementAndGet(j);
+	    return null;
+	}
+	// MAF filter
+	int totalAlleles = 2*(caseHOM + controlHOM + caseHET + controlHET + caseREF + controlREF);
+	int caseAlleles = caseHET + 2*caseHOM;
+	int controlAlleles = controlHET + 2*controlHOM;
+	double maf = (double) (caseAlleles+controlAlleles) / (double) (totalAlleles);
+	if (maf<minMAF) {
+	    mafRejects.incrementAndGet(j);
+	    return null;
+	}
+	// Cochran-Armitage test
+	int[][] countTable = new int[2][3]; // 2 labels x 3 genotypes
+	int[] weights = new int[3];
+	// straight allelic association (not additive)
+	weights[0] = 0;
+	weights[1] = 1;
+	weights[2] = 1;
+	CochranArmitage ca = new CochranArmitage(weights);
+	countTable[0][0] = controlREF;
+	countTable[1][0] = caseREF;
+	countTable[0][1] = controlHET;
+	countTable[1][1] = caseHET;
+	countTable[0][2] = controlHOM;
+	countTable[1][2] = caseHOM;
+	double pValue = ca.test(countTable);
+	// we can still get a few cases with 0 alternative counts
+	if (Double.isNaN(pValue)) pValue = 1.0;
+	return new ListRecord(contig, id, hetGenotype, caseREF, controlREF, caseHET, controlHET, caseHOM, controlHOM, caseNC, controlNC, ca.standardStatistic, pValue);
+    }
+
+    /**
+     * Return the BitSet of labelled samples on a LIST genotype line, from the sample tokens following the first three fields.
+     * The family and individual entries of a sample map to the same bit, so each sample is counted once.
+     */
+    BitSet getSamples(TabLine line) {
+	BitSet samples = new BitSet(sampleIndex.size());
+	if (!line.hasField(3)) return samples;
+	int length = line.length();
+	int start = line.fieldStart(3);
+	while (start<length) {
+	    int end = line.indexOf(TabLine.TAB, start);
+	    if (end<0) end = length;
+	    if (end>start) {
+		int index = sampleIndex.get(line, start, end);
+		if (index>=0) samples.set(index);
 	    }
-	    // Cochran-Armitage test
-	    int[][] countTable = new int[2][3]; // 2 labels x 3 genotypes
-	    int[] weights = new int[3];
-	    // straight allelic association (not additive)
-	    weights[0] = 0;
-	    weights[1] = 1;
-	    weights[2] = 1;
-	    CochranArmitage ca = new CochranArmitage(weights);
-	    countTable[0][0] = controlREF;
-	    countTable[1][0] = caseREF;
-	    countTable[0][1] = controlHET;
-	    countTable[1][1] = caseHET;
-	    countTable[0][2] = controlHOM;
-	    countTable[1][2] = caseHOM;
-	    double pValue = ca.test(countTable);
-	    // we can still get a few cases with 0 alternative counts
-	    if (Double.isNaN(pValue)) pValue = 1.0;
-	    // output the line
-	    ListRecord rec = new ListRecord(contig, id, hetGenotype, caseREF, controlREF, caseHET, controlHET, caseHOM, controlHOM, caseNC, controlNC, ca.standardStatistic, pValue);
-	    System.out.println(rec);
+	    start = end + 1;
 	}
-	listReader.close();
-	System.err.println("maxNC rejects="+ncRejects+" minMAF rejects="+mafRejects);
+	return samples;
+    }
+
+    /**
+     * Return the number of bits set in both a and b.
+     */
+    static int countIntersection(BitSet a, BitSet b) {
+	BitSet intersection = (BitSet) a.clone();
+	intersection.and(b);
+	return intersection.cardinality();
     }
 }
@@ -0,0 +1,197 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF (bgzip) file, inflating its blocks on several threads.
+ *
+ * The compressed blocks are read sequentially, since that's cheap, and up to readAhead of them are queued for inflation on a thread pool;
+ * the inflated blocks are then returned in order. Each block's CRC32 and size are checked.
+ *
+ * Use open() to get a suitable stream for any file: this one for BGZF, a GZIPInputStream for plain gzip, or a buffered stream for plain files.
+ *
+ * @author Sam Hokin
+ */
+public class ParallelBGZFInputStream extends InputStream {
+
+    static final int BGZF_HEADER_LENGTH = 18;
+    static final int BGZF_FOOTER_LENGTH = 8;
+    static final int MAX_BLOCK_SIZE = 65536;
+
+    InputStream in;
+    ExecutorService pool;
+    int readAhead;
+    boolean eof;
+
+    ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    byte[] block = new byte[0]; // current inflated block
+    int pos;                    // position in current block
+
+    static ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Construct from a BGZF stream, inflating on the given number of threads.
+     */
+    public ParallelBGZFInputStream(InputStream in, int threads) {
+        this.in = in;
+        this.readAhead = 4*threads;
+        this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "bgzf-inflater");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Construct from a BGZF stream, inflating on all available processors.
+     */
+    public ParallelBGZFInputStream(InputStream in) {
+        this(in, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Return an InputStream for the given file: parallel inflation if it's BGZF, a GZIPInputStream if it's plain gzip, else a plain buffered stream.
+     */
+    public static InputStream open(String filename) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(filename), MAX_BLOCK_SIZE);
+        in.mark(BGZF_HEADER_LENGTH);
+        byte[] header = new byte[BGZF_HEADER_LENGTH];
+        int n = in.readNBytes(header, 0, BGZF_HEADER_LENGTH);
+        in.reset();
+        if (n==BGZF_HEADER_LENGTH && isBGZFHeader(header)) {
+            return new ParallelBGZFInputStream(in);
+        } else if (n>=2 && (header[0]&0xff)==0x1f && (header[1]&0xff)==0x8b) {
+            return new GZIPInputStream(in, MAX_BLOCK_SIZE);
+        } else {
+            return in;
+        }
+    }
+
+    /**
+     * Return true if the header is a gzip header with the BGZF BC extra subfield.
+     */
+    static boolean isBGZFHeader(byte[] header) {
+        return (header[0]&0xff)==31 && (header[1]&0xff)==139 && (header[2]&0xff)==8 && (header[3]&4)!=0
+            && (header[10]&0xff)==6 && header[11]==0 && header[12]=='B' && header[13]=='C' && header[14]==2 && header[15]==0;
+    }
+
+    public int read() throws IOException {
+        if (!ensureData()) return -1;
+        return block[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len==0) return 0;
+        if (!ensureData()) return -1;
+        int n = Math.min(len, block.length-pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public int available() {
+        return block.length - pos;
+    }
+
+    public void close() throws IOException {
+        pool.shutdownNow();
+        in.close();
+    }
+
+    /**
+     * Make sure the current block has data, moving to the next non-empty block if needed. Returns false at end of stream.
+     */
+    boolean ensureData() throws IOException {
+        while (pos>=block.length) {
+            fillQueue();
+            if (pending.size()==0) return false;
+            try {
+                block = pending.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Read compressed blocks and queue them for inflation until readAhead are pending or the stream ends.
+     */
+    void fillQueue() throws IOException {
+        while (!eof && pending.size()<readAhead) {
+            byte[] compressed = readBlock();
+            if (compressed==null) {
+                eof = true;
+            } else {
+                pending.add(pool.submit(() -> inflate(compressed)));
+            }
+        }
+    }
+
+    /**
+     * Read the next whole compressed block, or return null at end of stream.
+     */
+    byte[] readBlock() throws IOException {
+        byte[] header = new byte[BGZF_HEADER_LENGTH];
+        int n = in.readNBytes(header, 0, BGZF_HEADER_LENGTH);
+        if (n==0) return null;
+        if (n<BGZF_HEADER_LENGTH || !isBGZFHeader(header)) throw new IOException("Not a BGZF block header.");
+        int blockSize = ((header[16]&0xff) | (header[17]&0xff)<<8) + 1;
+        byte[] compressed = new byte[blockSize];
+        System.arraycopy(header, 0, compressed, 0, BGZF_HEADER_LENGTH);
+        n = in.readNBytes(compressed, BGZF_HEADER_LENGTH, blockSize-BGZF_HEADER_LENGTH);
+        if (n<blockSize-BGZF_HEADER_LENGTH) throw new EOFException("Truncated BGZF block.");
+        return compressed;
+    }
+
+    /**
+     * Inflate a whole compressed block, checking its CRC32 and size.
+     */
+    static byte[] inflate(byte[] compressed) throws IOException {
+        int footer = compressed.length - BGZF_FOOTER_LENGTH;
+        int expectedCRC = readInt(compressed, footer);
+        int size = readInt(compressed, footer+4);
+        byte[] inflated = new byte[size];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(compressed, BGZF_HEADER_LENGTH, footer-BGZF_HEADER_LENGTH);
+        try {
+            int n = 0;
+            while (n<size) {
+                int k = inflater.inflate(inflated, n, size-n);
+                if (k==0 && (inflater.finished() || inflater.needsInput())) break;
+                n += k;
+            }
+            if (n!=size) throw new IOException("BGZF block inflated to "+n+" bytes, expected "+size+".");
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(inflated, 0, size);
+        if ((int) crc.getValue()!=expectedCRC) throw new IOException("BGZF block CRC32 mismatch.");
+        return inflated;
+    }
+
+    static int readInt(byte[] b, int off) {
+        return (b[off]&0xff) | (b[off+1]&0xff)<<8 | (b[off+2]&0xff)<<16 | (b[off+3]&0xff)<<24;
+    }
+}
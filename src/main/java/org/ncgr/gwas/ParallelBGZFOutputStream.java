@@ -0,0 +1,186 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a BGZF (bgzip) file, deflating its blocks on several threads.
+ *
+ * Data is cut into blocks of up to 65498 bytes which are deflated on a thread pool and written in order, followed by the
+ * standard empty EOF block on close, so the output can be read and tabix-indexed by htsjdk, samtools and friends.
+ *
+ * @author Sam Hokin
+ */
+public class ParallelBGZFOutputStream extends OutputStream {
+
+    public static int DEFAULT_COMPRESSION_LEVEL = 5;
+
+    static final int BLOCK_SIZE = 65498; // uncompressed bytes per block, so that a stored block still fits in 64KB
+    static final byte[] EOF_BLOCK = {
+        31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    OutputStream out;
+    ExecutorService pool;
+    int maxPending;
+    int level;
+
+    ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    byte[] buffer = new byte[BLOCK_SIZE];
+    int count;
+    boolean closed;
+
+    // per-thread deflaters: the requested level, and stored for blocks that don't compress
+    static ThreadLocal<Deflater[]> deflaters = ThreadLocal.withInitial(() ->
+        new Deflater[] { new Deflater(DEFAULT_COMPRESSION_LEVEL, true), new Deflater(Deflater.NO_COMPRESSION, true) });
+
+    /**
+     * Construct on an OutputStream, deflating at the given level on the given number of threads.
+     */
+    public ParallelBGZFOutputStream(OutputStream out, int level, int threads) {
+        this.out = out;
+        this.level = level;
+        this.maxPending = 4*threads;
+        this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "bgzf-deflater");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Construct on an OutputStream, deflating at the default level on all available processors.
+     */
+    public ParallelBGZFOutputStream(OutputStream out) {
+        this(out, DEFAULT_COMPRESSION_LEVEL, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Return a PrintStream on the given file, bgzipped if it ends in .gz or .bgz, or on STDOUT if filename is null or "-".
+     */
+    public static PrintStream openPrintStream(String filename) throws IOException {
+        if (filename==null || filename.equals("-")) {
+            return System.out;
+        } else if (filename.endsWith(".gz") || filename.endsWith(".bgz")) {
+            return new PrintStream(new ParallelBGZFOutputStream(new FileOutputStream(filename)), false);
+        } else {
+            return new PrintStream(new BufferedOutputStream(new FileOutputStream(filename), 1<<16), false);
+        }
+    }
+
+    public void write(int b) throws IOException {
+        buffer[count++] = (byte) b;
+        if (count==BLOCK_SIZE) submitBlock();
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len>0) {
+            int n = Math.min(len, BLOCK_SIZE-count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count==BLOCK_SIZE) submitBlock();
+        }
+    }
+
+    /**
+     * Deflate and write everything written so far. This ends the current block, so flushing often makes the file larger.
+     */
+    public void flush() throws IOException {
+        if (count>0) submitBlock();
+        while (pending.size()>0) writeNext();
+        out.flush();
+    }
+
+    /**
+     * Flush, write the EOF block, and close the underlying stream.
+     */
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            flush();
+            out.write(EOF_BLOCK);
+            out.close();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Queue the buffered data for deflation, writing the oldest finished block if too many are pending.
+     */
+    void submitBlock() throws IOException {
+        final byte[] data = Arrays.copyOf(buffer, count);
+        final int blockLevel = level;
+        pending.add(pool.submit(() -> deflate(data, blockLevel)));
+        count = 0;
+        if (pending.size()>=maxPending) writeNext();
+    }
+
+    /**
+     * Wait for the oldest pending block and write it.
+     */
+    void writeNext() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Return a complete BGZF block containing the given data, stored without compression if deflating doesn't make it small enough.
+     */
+    static byte[] deflate(byte[] data, int level) {
+        Deflater[] pair = deflaters.get();
+        byte[] block = new byte[ParallelBGZFInputStream.MAX_BLOCK_SIZE];
+        int headerLength = ParallelBGZFInputStream.BGZF_HEADER_LENGTH;
+        int room = block.length - headerLength - ParallelBGZFInputStream.BGZF_FOOTER_LENGTH;
+        int compressedSize = -1;
+        for (Deflater deflater : pair) {
+            deflater.reset();
+            deflater.setLevel(deflater==pair[0] ? level : Deflater.NO_COMPRESSION);
+            deflater.setInput(data);
+            deflater.finish();
+            compressedSize = deflater.deflate(block, headerLength, room);
+            if (deflater.finished()) break;
+            compressedSize = -1;
+        }
+        if (compressedSize<0) throw new IllegalStateException("BGZF block does not fit in "+block.length+" bytes.");
+        int blockSize = headerLength + compressedSize + ParallelBGZFInputStream.BGZF_FOOTER_LENGTH;
+        // gzip header with the BC extra subfield giving the block size - 1
+        System.arraycopy(EOF_BLOCK, 0, block, 0, 16);
+        block[16] = (byte) ((blockSize-1) & 0xff);
+        block[17] = (byte) ((blockSize-1) >>> 8);
+        // footer with CRC32 and uncompressed size
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        writeInt(block, headerLength+compressedSize, (int) crc.getValue());
+        writeInt(block, headerLength+compressedSize+4, data.length);
+        return Arrays.copyOf(block, blockSize);
+    }
+
+    static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off+1] = (byte) (value >>> 8);
+        b[off+2] = (byte) (value >>> 16);
+        b[off+3] = (byte) (value >>> 24);
+    }
+}
@@ -5,13 +5,15 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Optional;
+import java.util.Set;
+import java.util.HashSet;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -36,7 +38,8 @@ import org.mskcc.cbio.portal.stats.FisherExact;
  * Disease status are given by a phenotype file in dbGaP format.
  * Sex and Race may also be specified as filters.
  * Subjects with neither case nor control status are marked "unkn".
- * If maxcases is given, then only maxcases cases and controls will be stored without any "unkn".
+ * If maxcases is given, then only maxcases cases and controls will be stored without any "unkn", drawn at random with the given seed,
+ * with controls optionally matched to cases by stratification variables such as SEX and RACE, and in several replicates if desired.
  *
  * @author Sam Hokin
  */
@@ -52,10 +55,15 @@ public class PhenoSubjects {
     String desiredSexValue, desiredRaceValue;
 
     int maxCases;
+    int replicates = 1;
+    long seed = System.currentTimeMillis();
+    String outPrefix;
+    String[] strataVars = new String[0];
 
     String[] ccVars;
-    List<String> ignoredSamples = new LinkedList<>();
-    Map<String,String> sampleIdMap = new HashMap<>(); // keyed by dbGaPSubjectId=dbGaP_Subject_ID
+    Set<String> ignoredSamples = new HashSet<>();
+    Map<String,String> subjectStrata = new HashMap<>(); // values of strataVars joined with "/", keyed by study ID
+    DbGaPLoader loader = new DbGaPLoader();
     Map<String,String[]> subjectStatus = new HashMap<>(); // status array (case, ctrl, unkn) keyed by study ID
 
     /**
@@ -115,6 +123,26 @@ public class PhenoSubjects {
 	Option otherSubjectsOption = new Option("os", "othersubjects", true, "output case/control subjects other than those in the given labels file");
 	otherSubjectsOption.setRequired(false);
 	options.addOption(otherSubjectsOption);
+	//
+	Option seedOption = new Option("seed", "seed", true, "random seed for maxcases selection (current time)");
+	seedOption.setRequired(false);
+	options.addOption(seedOption);
+	//
+	Option stratifyOption = new Option("st", "stratify", true, "comma-separated phenotype variables by which controls are matched to cases for maxcases (e.g. SEX,RACE)");
+	stratifyOption.setRequired(false);
+	options.addOption(stratifyOption);
+	//
+	Option replicatesOption = new Option("nr", "replicates", true, "number of replicate maxcases subsamples to output, requires -o (1)");
+	replicatesOption.setRequired(false);
+	options.addOption(replicatesOption);
+	//
+	Option outPrefixOption = new Option("o", "outprefix", true, "write labels files to [prefix].[replicate].labels.txt rather than STDOUT");
+	outPrefixOption.setRequired(false);
+	options.addOption(outPrefixOption);
+	//
+	Option phenoCacheOption = new Option("pc", "phenocache", false, "cache the parsed dbGaP files as [file].pcache for faster repeat runs (false)");
+	phenoCacheOption.setRequired(false);
+	options.addOption(phenoCacheOption);
 	
         try {
             cmd = parser.parse(options, args);
@@ -165,12 +193,32 @@ public class PhenoSubjects {
 	    System.exit(1);
 	}
 
+	// sampling parameters
+	if (cmd.hasOption("seed")) {
+	    ps.seed = Long.parseLong(cmd.getOptionValue("seed"));
+	}
+	if (cmd.hasOption("stratify")) {
+	    ps.strataVars = cmd.getOptionValue("stratify").split(",");
+	}
+	if (cmd.hasOption("replicates")) {
+	    ps.replicates = Integer.parseInt(cmd.getOptionValue("replicates"));
+	}
+	if (cmd.hasOption("outprefix")) {
+	    ps.outPrefix = cmd.getOptionValue("outprefix");
+	}
+	if (ps.replicates>1 && (ps.maxCases==0 || ps.outPrefix==null)) {
+	    System.err.println("ERROR: replicates>1 requires maxcases>0 and an output prefix");
+	    System.exit(1);
+	}
+
 	// get the List of ignored samples
 	if (cmd.hasOption("othersubjects")) {
 	    ps.labelsfilename = cmd.getOptionValue("othersubjects");
 	    ps.loadIgnoredSamples();
 	}
 
+	ps.loader.useCache = cmd.hasOption("phenocache");
+
 	// get the sample ID map
 	if (cmd.hasOption("samplefile")) {
 	    ps.samplefilename = cmd.getOptionValue("samplefile");
@@ -181,8 +229,18 @@ public class PhenoSubjects {
 	ps.phenofilename = cmd.getOptionValue("phenofile");
 	ps.loadSubjectStatus();
 
-        // two-column labels file output
-	ps.printLabelsFile();
+        // two-column labels file output, one per replicate
+	if (ps.maxCases>0) System.err.println("Drawing "+ps.replicates+" subsample(s) with seed "+ps.seed);
+	SubjectSampler sampler = new SubjectSampler(ps.seed);
+	if (ps.outPrefix==null) {
+	    ps.printLabelsFile(System.out, sampler);
+	} else {
+	    for (int r=1; r<=ps.replicates; r++) {
+		PrintStream out = new PrintStream(ps.outPrefix+"."+r+".labels.txt");
+		ps.printLabelsFile(out, sampler);
+		out.close();
+	    }
+	}
     }
 
     /**
@@ -198,30 +256,7 @@ public class PhenoSubjects {
      * NOTE: there may be MORE THAN ONE LINE for the same dbGaP_Subject_ID! We'll assume that SAMPLE IDs are unique.
      */
     void loadSampleIdMap() throws FileNotFoundException, IOException {
-	BufferedReader sampleReader = new BufferedReader(new FileReader(samplefilename));
-	int sampleVarOffset = -1;
-	boolean headerLine = true;
-	String line = null;
-	while ((line=sampleReader.readLine())!=null) {
-	    if (line.startsWith("#")) {
-		continue; // comment
-	    } else if (line.trim().length()==0) {
-		continue; // blank
-	    } else if (headerLine) {
-		// variable header
-		String[] vars = line.split("\t");
-		for (int i=0; i<vars.length; i++) {
-		    if (vars[i].equals(sampleVar)) sampleVarOffset = i;
-		}
-		headerLine = false;
-	    } else {
-		String[] data = line.split("\t");
-		String dbGaPSubjectId = data[0]; // assume first column is dbGaP_Subject_ID, which I hope is always true -- not necessarily unique!!
-		String sampleId = data[sampleVarOffset]; // presume this is unique
-		sampleIdMap.put(sampleId, dbGaPSubjectId);
-	    }
-	}
-	sampleReader.close();
+	loader.loadSampleFile(samplefilename, sampleVar);
     }
 
     /**
@@ -240,71 +275,31 @@ public class PhenoSubjects {
      * 3110589           1           74                    M                     W                     -0.01                 0.00                  1                     1           ...
      */
     void loadSubjectStatus() throws FileNotFoundException, IOException {
-        String line = "";
-        boolean headerLine = true;
-	int sexVarOffset = -1;
-	int raceVarOffset = -1;
-	int diseaseVarOffset = -1;
-        int[] ccVarOffsets = new int[ccVars.length];
-	BufferedReader phenoReader = new BufferedReader(new FileReader(phenofilename));
-        while ((line=phenoReader.readLine())!=null) {
-            if (line.startsWith("#")) {
-                continue; // comment
-            } else if (line.trim().length()==0) {
-                continue; // blank
-            } else if (headerLine) {
-                // variable header
-                String[] vars = line.split("\t");
-                for (int i=0; i<vars.length; i++) {
-                    for (int j=0; j<ccVars.length; j++) {
-                        if (vars[i].equals(ccVars[j])) ccVarOffsets[j] = i;
-                    }
-		    if (vars[i].equals("SEX")) sexVarOffset = i;
-		    if (vars[i].equals("RACE")) raceVarOffset = i;
-		    if (diseaseVar!=null && vars[i].equals(diseaseVar)) diseaseVarOffset = i;
-                }
-		// DEBUG
-		System.err.println("diseaseVar="+diseaseVar+" offset="+diseaseVarOffset);
-		for (int i=0; i<ccVars.length; i++) System.err.println("ccVar="+ccVars[i]+"\toffset="+ccVarOffsets[i]);
-		System.err.println("SEX offset="+sexVarOffset);
-		System.err.println("RACE offset="+raceVarOffset);
-		//
-                headerLine = false;
-            } else {
-                // subject/sample line
-                String[] data = line.split("\t");
-		String dbGaPSubjectId = data[0]; // assume first column is dbGaP_Subject_ID, which I hope is always true
-		List<String> sampleIds = new LinkedList<>(); // we may have more than one sample ID per dbGaP_Subject_ID!
-		if (sampleIdMap.size()==0) {
-		    // no samples file, so assume ID in the second column is study ID
-		    sampleIds.add(data[1]);
-		} else {
-		    // spin through the records to get all the sample IDs for this dbGaPSubjectId
-		    for (String sampleId : sampleIdMap.keySet()) {
-			String dgsId = sampleIdMap.get(sampleId);
-			if (dgsId.equals(dbGaPSubjectId)) sampleIds.add(sampleId);
-		    }
-		}
-                // disease, sex, race
-		boolean hasDisease = diseaseVarOffset>0;
-		boolean hasSex = sexVarOffset>0;
-		boolean hasRace = raceVarOffset>0;
-		String diseaseValue = null;
-		String sexValue = null;
-		String raceValue = null;
-		if (hasDisease) diseaseValue = data[diseaseVarOffset];
-		if (hasSex) sexValue = data[sexVarOffset];
-		if (hasRace) raceValue = data[raceVarOffset];
+	// requested variables: the ccVars, then the disease variable, then any stratification variables
+	final int diseaseIndex = ccVars.length;
+	String[] vars = new String[ccVars.length+1+strataVars.length];
+	System.arraycopy(ccVars, 0, vars, 0, ccVars.length);
+	vars[diseaseIndex] = diseaseVar;
+	System.arraycopy(strataVars, 0, vars, diseaseIndex+1, strataVars.length);
+	PhenoTable table = loader.loadPhenoFile(phenofilename, vars);
+	for (int j=0; j<strataVars.length; j++) {
+	    if (table.getColumn(strataVars[j])<0) {
+		System.err.println("ERROR: stratification variable "+strataVars[j]+" is not in "+phenofilename);
+		System.exit(1);
+	    }
+	}
+	loader.readPhenoFile(table, (sampleIds, values) -> {
+		// disease
+		String diseaseValue = values[diseaseIndex];
+		boolean hasDisease = diseaseValue!=null;
 		boolean blankDisease = hasDisease && diseaseValue.trim().length()==0;
-                boolean isDisease = hasDisease && diseaseValue.contains(diseaseName);
-		boolean isDesiredSex = hasSex && sexValue.equals(desiredSexValue);
-		boolean isDesiredRace = hasRace && raceValue.equals(desiredRaceValue);
+		boolean isDisease = hasDisease && diseaseValue.contains(diseaseName);
 		// subject status for each of the ccVars
 		String status[] = new String[ccVars.length];
 		for (int j=0; j<ccVars.length; j++) {
-		    String ccValue = data[ccVarOffsets[j]];
-		    boolean isCase = isDisease && ccValue.equals(caseValue);  // case for this ccVar
-		    boolean isControl = (isDisease || blankDisease) && ccValue.equals(controlValue); // control for this ccVar
+		    String ccValue = values[j];
+		    boolean isCase = isDisease && caseValue.equals(ccValue);  // case for this ccVar
+		    boolean isControl = (isDisease || blankDisease) && controlValue.equals(ccValue); // control for this ccVar
 		    if (isCase) {
 			status[j] = "case";
 		    } else if (isControl) {
@@ -313,17 +308,21 @@ public class PhenoSubjects {
 			status[j] = "unkn";
 		    }
 		}
+		// stratum for matching controls to cases
+		String stratum = null;
+		if (strataVars.length>0) {
+		    stratum = String.join("/", Arrays.copyOfRange(values, diseaseIndex+1, values.length));
+		}
 		// potentially multiple sampleIds for same subject
 		for (String sampleId : sampleIds) {
 		    subjectStatus.put(sampleId, status);
+		    if (stratum!=null) subjectStrata.put(sampleId, stratum);
 		}
-            }
-        }
-	phenoReader.close();
+	    });
     }
 
     /**
-     * Return a list of samples to ignore.
+     * Load the set of samples to ignore.
      */
     void loadIgnoredSamples() throws FileNotFoundException, IOException {
 	BufferedReader labelsReader = new BufferedReader(new FileReader(labelsfilename));
@@ -340,19 +339,18 @@ public class PhenoSubjects {
     }
 
     /**
-     * Print a two-column labels file to STDOUT.
+     * Print a labels file to the given PrintStream. If maxCases>0, draw maxCases cases and as many controls, matched by stratum if strataVars are given.
      */
-    void printLabelsFile() {
+    void printLabelsFile(PrintStream out, SubjectSampler sampler) {
 	String header = "sample";
         for (int j=0; j<ccVars.length; j++)  {
             header += "\t"+ccVars[j];
         }
-        System.out.println(header);
+        out.println(header);
 	// output samples to reach # cases = maxCases = # controls
 	if (maxCases>0) {
-	    // usually far less cases than controls, so let's pick them out from each batch individually
-	    List<String> cases = new LinkedList<>();
-	    List<String> controls = new LinkedList<>();
+	    List<String> cases = new ArrayList<>();
+	    List<String> controls = new ArrayList<>();
 	    for (String sampleId : subjectStatus.keySet()) {
 		if (!ignoredSamples.contains(sampleId)) {
 		    String[] status = subjectStatus.get(sampleId);
@@ -372,27 +370,24 @@ public class PhenoSubjects {
 		System.err.println("ERROR: controls.size()="+controls.size()+" < maxCases="+maxCases);
 		System.exit(1);
 	    }
-	    // randomly select and output cases
-	    int caseCount = 0;
-	    while (caseCount<maxCases) {
-		Optional<String> optional = cases.stream().skip((int)(cases.size()*Math.random())).findFirst();
-		if (optional.isPresent()) {
-		    caseCount++;
-		    String sampleId = optional.get();
-		    System.out.println(sampleId+"\t"+"case");
-		    boolean removed = cases.remove(sampleId);
+	    // randomly select cases, then controls either at random or matched to the cases' strata
+	    List<String> selectedCases = sampler.sample(cases, maxCases);
+	    List<String> selectedControls = null;
+	    try {
+		if (strataVars.length>0) {
+		    selectedControls = sampler.sampleMatched(selectedCases, controls, subjectStrata);
+		} else {
+		    selectedControls = sampler.sample(controls, maxCases);
 		}
+	    } catch (IllegalArgumentException e) {
+		System.err.println("ERROR: "+e.getMessage());
+		System.exit(1);
 	    }
-	    // randomly select and output cases
-	    int ctrlCount = 0;
-	    while (ctrlCount<maxCases) {
-		Optional<String> optional = controls.stream().skip((int)(controls.size()*Math.random())).findFirst();
-		if (optional.isPresent()) {
-		    ctrlCount++;
-		    String sampleId = optional.get();
-		    System.out.println(sampleId+"\t"+"ctrl");
-		    boolean removed = controls.remove(sampleId);
-		}
+	    for (String sampleId : selectedCases) {
+		out.println(sampleId+"\t"+"case");
+	    }
+	    for (String sampleId : selectedControls) {
+		out.println(sampleId+"\t"+"ctrl");
 	    }
 	} else {
 	    // output all samples except those to be ignored
@@ -403,7 +398,7 @@ public class PhenoSubjects {
 		    for (int j=0; j<status.length; j++) {
 			output += "\t"+status[j];
 		    }
-		    System.out.println(output);
+		    out.println(output);
 		}
 	    }
 	}
@@ -0,0 +1,318 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A dbGaP-style phenotype table holding only the requested columns.
+ *
+ * The first non-comment line is the header; the requested variables are located in it by name and only those fields are
+ * extracted from each data line, so the thousands of other columns of a PheWAS table are skipped. Data lines are parsed in
+ * parallel chunks. Each column is stored as int codes into a dictionary of its distinct values, which suits the
+ * low-cardinality values of phenotype tables and lets getDouble parse each distinct value just once.
+ *
+ * If caching is requested, the parsed table is saved to [file].pcache along with the file's length and CRC32 and the requested
+ * variables, and is read from there on a later run with the same file and variables.
+ *
+ * @author Sam Hokin
+ */
+public class PhenoTable {
+
+    static final int CACHE_MAGIC = 0x50544331; // "PTC1"
+
+    String[] vars;             // the requested variables
+    boolean[] present;         // true if the variable is in the header
+    List<String> subjectIds = new ArrayList<>(); // first column, dbGaP_Subject_ID
+    List<String> studyIds = new ArrayList<>();   // second column, study subject or sample ID
+    int[][] codes;             // codes[column][row] into dictionaries[column]
+    List<List<String>> dictionaries = new ArrayList<>();
+    double[][] numbers;        // parsed dictionary values, created as needed
+
+    int rows;
+
+    /**
+     * Load the given variables from the given file, plain or gzipped, using the binary cache if useCache is true.
+     * Variables that are null or absent from the header have null values.
+     */
+    public static PhenoTable load(String filename, String[] vars, boolean useCache) throws IOException {
+        long length = 0;
+        long checksum = 0;
+        File cacheFile = new File(filename+".pcache");
+        if (useCache) {
+            length = new File(filename).length();
+            checksum = getChecksum(filename);
+            if (cacheFile.exists()) {
+                PhenoTable table = null;
+                try {
+                    table = readCache(cacheFile, vars, length, checksum);
+                } catch (IOException e) {
+                    System.err.println("WARNING: ignoring unreadable phenotype cache "+cacheFile+": "+e.getMessage());
+                }
+                if (table!=null) {
+                    System.err.println("Read "+table.rows+" phenotype rows from "+cacheFile.getName());
+                    return table;
+                }
+            }
+        }
+        PhenoTable table = new PhenoTable(vars);
+        table.parse(filename);
+        if (useCache) {
+            try {
+                table.writeCache(cacheFile, length, checksum);
+            } catch (IOException e) {
+                System.err.println("WARNING: could not write phenotype cache "+cacheFile+": "+e.getMessage());
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Construct an empty table for the given variables.
+     */
+    PhenoTable(String[] vars) {
+        this.vars = vars;
+        this.present = new boolean[vars.length];
+        this.codes = new int[vars.length][0];
+        this.numbers = new double[vars.length][];
+        for (int j=0; j<vars.length; j++) dictionaries.add(new ArrayList<>());
+    }
+
+    /**
+     * Return the number of data rows.
+     */
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * Return the column index of the given variable, or -1 if it wasn't requested or isn't in the file.
+     */
+    public int getColumn(String var) {
+        for (int j=0; j<vars.length; j++) {
+            if (present[j] && vars[j].equals(var)) return j;
+        }
+        return -1;
+    }
+
+    /**
+     * Return true if column j is in the file.
+     */
+    public boolean hasColumn(int j) {
+        return present[j];
+    }
+
+    /**
+     * Return the dbGaP_Subject_ID (first column) of the given row.
+     */
+    public String getSubjectId(int row) {
+        return subjectIds.get(row);
+    }
+
+    /**
+     * Return the study ID (second column) of the given row.
+     */
+    public String getStudyId(int row) {
+        return studyIds.get(row);
+    }
+
+    /**
+     * Return the value of column j in the given row, null if the column is absent.
+     */
+    public String getString(int j, int row) {
+        if (!present[j]) return null;
+        return dictionaries.get(j).get(codes[j][row]);
+    }
+
+    /**
+     * Return the numeric value of column j in the given row, NaN if it's absent, blank or not a number.
+     */
+    public double getDouble(int j, int row) {
+        if (!present[j]) return Double.NaN;
+        if (numbers[j]==null) {
+            List<String> dictionary = dictionaries.get(j);
+            double[] parsed = new double[dictionary.size()];
+            for (int k=0; k<parsed.length; k++) {
+                try {
+                    parsed[k] = Double.parseDouble(dictionary.get(k));
+                } catch (NumberFormatException e) {
+                    parsed[k] = Double.NaN;
+                }
+            }
+            numbers[j] = parsed;
+        }
+        return numbers[j][codes[j][row]];
+    }
+
+    /**
+     * Return the values of all the requested columns in the given row, null for absent columns.
+     */
+    public String[] getRow(int row) {
+        String[] values = new String[vars.length];
+        for (int j=0; j<vars.length; j++) values[j] = getString(j, row);
+        return values;
+    }
+
+    /**
+     * Parse the file, extracting the requested fields from chunks of lines on several threads.
+     */
+    void parse(String filename) throws IOException {
+        LineReader reader = new LineReader(filename);
+        // header is the first non-comment, non-blank line
+        TabLine header;
+        while ((header=reader.readLine())!=null && (header.startsWith("#") || header.isBlank())) { }
+        if (header==null) {
+            reader.close();
+            return;
+        }
+        final int[] offsets = new int[vars.length];
+        for (int j=0; j<vars.length; j++) {
+            offsets[j] = vars[j]==null ? -1 : getOffset(header, vars[j]);
+            present[j] = offsets[j]>=0;
+            if (vars[j]!=null && !present[j]) System.err.println("WARNING: "+vars[j]+" is not in the header of "+filename);
+        }
+        // each row is subject ID, study ID, then the requested values
+        List<Map<String,Integer>> indexes = new ArrayList<>();
+        for (int j=0; j<vars.length; j++) indexes.add(new HashMap<>());
+        reader.processChunks(LineReader.DEFAULT_CHUNK_BYTES, lines -> {
+                List<String[]> chunkRows = new ArrayList<>();
+                for (TabLine line : lines) {
+                    if (line.startsWith("#") || line.isBlank()) continue;
+                    String[] row = new String[vars.length+2];
+                    row[0] = line.get(0);
+                    row[1] = line.hasField(1) ? line.get(1) : "";
+                    for (int j=0; j<vars.length; j++) {
+                        if (offsets[j]>=0) row[j+2] = line.hasField(offsets[j]) ? line.get(offsets[j]) : "";
+                    }
+                    chunkRows.add(row);
+                }
+                return chunkRows;
+            }, chunkRows -> {
+                for (String[] row : chunkRows) addRow(row, indexes);
+            }, true);
+        reader.close();
+        trim();
+    }
+
+    /**
+     * Append a parsed row, encoding its values.
+     */
+    void addRow(String[] row, List<Map<String,Integer>> indexes) {
+        subjectIds.add(row[0]);
+        studyIds.add(row[1]);
+        for (int j=0; j<vars.length; j++) {
+            if (!present[j]) continue;
+            if (rows==codes[j].length) codes[j] = Arrays.copyOf(codes[j], Math.max(1024, 2*rows));
+            List<String> dictionary = dictionaries.get(j);
+            Integer code = indexes.get(j).get(row[j+2]);
+            if (code==null) {
+                code = dictionary.size();
+                dictionary.add(row[j+2]);
+                indexes.get(j).put(row[j+2], code);
+            }
+            codes[j][rows] = code;
+        }
+        rows++;
+    }
+
+    /**
+     * Trim the code arrays to the number of rows.
+     */
+    void trim() {
+        for (int j=0; j<vars.length; j++) {
+            if (present[j]) codes[j] = Arrays.copyOf(codes[j], rows);
+        }
+    }
+
+    /**
+     * Return the offset of the given variable in a header line, or -1 if absent.
+     */
+    static int getOffset(TabLine header, String var) {
+        for (int i=0; i<header.size(); i++) {
+            if (header.fieldEquals(i, var)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the CRC32 of the raw bytes of the given file.
+     */
+    static long getChecksum(String filename) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1<<20];
+        try (InputStream in = new FileInputStream(filename)) {
+            int n;
+            while ((n=in.read(buffer))>0) crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Write the table to the cache file.
+     */
+    void writeCache(File cacheFile, long length, long checksum) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile), 1<<16))) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeLong(length);
+            out.writeLong(checksum);
+            out.writeInt(vars.length);
+            for (String var : vars) out.writeUTF(var==null ? "" : var);
+            out.writeInt(rows);
+            for (int i=0; i<rows; i++) {
+                out.writeUTF(subjectIds.get(i));
+                out.writeUTF(studyIds.get(i));
+            }
+            for (int j=0; j<vars.length; j++) {
+                out.writeBoolean(present[j]);
+                if (!present[j]) continue;
+                List<String> dictionary = dictionaries.get(j);
+                out.writeInt(dictionary.size());
+                for (String value : dictionary) out.writeUTF(value);
+                for (int i=0; i<rows; i++) out.writeInt(codes[j][i]);
+            }
+        }
+    }
+
+    /**
+     * Read a table from the cache file, or return null if it's for a different file or different variables.
+     */
+    static PhenoTable readCache(File cacheFile, String[] vars, long length, long checksum) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1<<16))) {
+            if (in.readInt()!=CACHE_MAGIC || in.readLong()!=length || in.readLong()!=checksum) return null;
+            if (in.readInt()!=vars.length) return null;
+            for (String var : vars) {
+                if (!in.readUTF().equals(var==null ? "" : var)) return null;
+            }
+            PhenoTable table = new PhenoTable(vars);
+            table.rows = in.readInt();
+            for (int i=0; i<table.rows; i++) {
+                table.subjectIds.add(in.readUTF());
+                table.studyIds.add(in.readUTF());
+            }
+            for (int j=0; j<vars.length; j++) {
+                table.present[j] = in.readBoolean();
+                if (!table.present[j]) continue;
+                int dictionarySize = in.readInt();
+                List<String> dictionary = table.dictionaries.get(j);
+                for (int k=0; k<dictionarySize; k++) dictionary.add(in.readUTF());
+                int[] columnCodes = new int[table.rows];
+                for (int i=0; i<table.rows; i++) columnCodes[i] = in.readInt();
+                table.codes[j] = columnCodes;
+            }
+            return table;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts tab-delimited records keyed by contig and position within a bounded memory budget, e.g. VCF lines whose positions have changed.
+ *
+ * Records are buffered until their estimated size passes the budget, then sorted and spilled to a run file in the temporary directory.
+ * At the end the runs are merged in one pass through a priority queue, and each record is written as contig, tab, position, tab, then
+ * the rest of its fields, which are carried as raw bytes and never decoded. Contigs sort as Strings and positions as numbers; of records
+ * with the same contig and position, only the last added is written.
+ *
+ * @author Sam Hokin
+ */
+public class PositionSorter implements Closeable {
+
+    static final int RECORD_OVERHEAD = 64; // estimated bytes of a buffered record besides its fields
+
+    static final Comparator<Record> ORDER = (a, b) -> {
+        int c = a.contig.compareTo(b.contig);
+        if (c!=0) return c;
+        if (a.pos!=b.pos) return Long.compare(a.pos, b.pos);
+        return Long.compare(a.seq, b.seq);
+    };
+
+    long memoryBytes;
+    File tmpDir;
+
+    List<Record> buffer = new ArrayList<>();
+    long bufferBytes;
+    long seq;
+    List<File> runs = new ArrayList<>();
+
+    /**
+     * Construct with the given memory budget for buffered records, spilling to the given directory (null for the default temporary directory).
+     */
+    public PositionSorter(long memoryBytes, File tmpDir) {
+        this.memoryBytes = memoryBytes;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Add a record, spilling the buffer if it's over budget.
+     */
+    public void add(String contig, long pos, byte[] fields) throws IOException {
+        buffer.add(new Record(contig, pos, seq++, fields));
+        bufferBytes += RECORD_OVERHEAD + 2*contig.length() + fields.length;
+        if (bufferBytes>=memoryBytes) spill();
+    }
+
+    /**
+     * Return the number of runs spilled to disk so far.
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Write all the records in order to out, one per line.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (runs.size()==0) {
+            buffer.sort(ORDER);
+            for (int i=0; i<buffer.size(); i++) {
+                if (i+1<buffer.size() && isSameKey(buffer.get(i), buffer.get(i+1))) continue;
+                writeRecord(out, buffer.get(i));
+            }
+            buffer.clear();
+            return;
+        }
+        spill();
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> ORDER.compare(a.head, b.head));
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            Record pending = null;
+            while (queue.size()>0) {
+                RunReader reader = queue.poll();
+                Record record = reader.head;
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+                if (pending!=null && !isSameKey(pending, record)) writeRecord(out, pending);
+                pending = record;
+            }
+            if (pending!=null) writeRecord(out, pending);
+        } finally {
+            for (RunReader reader : queue) reader.close();
+        }
+    }
+
+    /**
+     * Delete the run files.
+     */
+    public void close() {
+        for (File run : runs) run.delete();
+        runs.clear();
+    }
+
+    /**
+     * Sort the buffer and write it to a new run file, leaving only the last record of each contig and position.
+     */
+    void spill() throws IOException {
+        if (buffer.size()==0) return;
+        buffer.sort(ORDER);
+        File run = File.createTempFile("positionsorter", ".run", tmpDir);
+        run.deleteOnExit();
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1<<16))) {
+            for (int i=0; i<buffer.size(); i++) {
+                Record record = buffer.get(i);
+                if (i+1<buffer.size() && isSameKey(record, buffer.get(i+1))) continue;
+                out.writeUTF(record.contig);
+                out.writeLong(record.pos);
+                out.writeLong(record.seq);
+                out.writeInt(record.fields.length);
+                out.write(record.fields);
+            }
+        }
+        buffer.clear();
+        bufferBytes = 0;
+    }
+
+    static boolean isSameKey(Record a, Record b) {
+        return a.pos==b.pos && a.contig.equals(b.contig);
+    }
+
+    static void writeRecord(OutputStream out, Record record) throws IOException {
+        out.write(record.contig.getBytes(StandardCharsets.UTF_8));
+        out.write('\t');
+        out.write(Long.toString(record.pos).getBytes(StandardCharsets.US_ASCII));
+        out.write('\t');
+        out.write(record.fields);
+        out.write('\n');
+    }
+
+    /**
+     * A record: its key, its order of addition, and the rest of its fields.
+     */
+    static class Record {
+        String contig;
+        long pos;
+        long seq;
+        byte[] fields;
+
+        Record(String contig, long pos, long seq, byte[] fields) {
+            this.contig = contig;
+            this.pos = pos;
+            this.seq = seq;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Reads the records of a run file one at a time.
+     */
+    static class RunReader implements Closeable {
+        DataInputStream in;
+        Record head;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1<<16));
+        }
+
+        /**
+         * Read the next record into head, returning false at the end of the run.
+         */
+        boolean advance() throws IOException {
+            String contig;
+            try {
+                contig = in.readUTF();
+            } catch (EOFException e) {
+                head = null;
+                return false;
+            }
+            long pos = in.readLong();
+            long seq = in.readLong();
+            byte[] fields = new byte[in.readInt()];
+            in.readFully(fields);
+            head = new Record(contig, pos, seq, fields);
+            return true;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package org.ncgr.gwas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps dbSNP rs numbers to their chromosome and position, as read from NCBI snpBatch files, without per-SNP objects.
+ *
+ * The rs numbers are held as a sorted long column, with each SNP's chromosome id and position packed into a long in a parallel
+ * column, so a lookup is a binary search. When an rs number appears more than once the last line read wins, as with a map.
+ * snpBatch files are parsed in parallel chunks, each sorted and de-duplicated by its worker, and the sorted runs are merged as they
+ * arrive, so memory grows with the number of distinct rs numbers rather than the number of ss lines. An index can be written to an .rsindex file once and memory-mapped on later runs,
+ * a segment at a time so that neither column is limited to 2GB.
+ *
+ * Usage: RsIndex <index file> <snpBatch1,snpBatch2,...>
+ *
+ * @author Sam Hokin
+ */
+public class RsIndex {
+
+    static final int MAGIC = 0x52534931; // "RSI1"
+    static final int SEGMENT_SHIFT = 27; // longs per mapped segment, 1GB
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    static final int MAX_SIZE = Integer.MAX_VALUE - 8; // largest safe array length
+
+    int size;
+    FieldIndex chromosomes = new FieldIndex();
+    LongBuffer[] rsSegments;       // sorted rs numbers
+    LongBuffer[] locationSegments; // chromosome id << 32 | position, by rs
+
+    public static void main(String[] args) throws IOException {
+        if (args.length!=2) {
+            System.err.println("RsIndex <index file> <snpBatch1,snpBatch2,...>");
+            System.exit(0);
+        }
+        RsIndex index;
+        try {
+            index = build(args[1].split(","));
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: "+e.getMessage());
+            System.exit(1);
+            return;
+        }
+        index.write(new File(args[0]));
+        System.err.println("Wrote "+index.size()+" rs positions on "+index.chromosomes.size()+" chromosomes to "+args[0]);
+    }
+
+    /**
+     * Build an index from the given snpBatch files, parsing chunks of each file in parallel; later lines override earlier ones.
+     */
+    public static RsIndex build(String[] snpBatchFilenames) throws IOException {
+        FieldIndex chromosomes = new FieldIndex();
+        // sorted runs in file order, each under half the size of the one below it
+        List<Chunk> runs = new ArrayList<>();
+        for (String snpBatchFilename : snpBatchFilenames) {
+            LineReader snpBatchReader = new LineReader(snpBatchFilename);
+            try {
+                snpBatchReader.processChunks(LineReader.DEFAULT_CHUNK_BYTES, lines -> {
+                        // chromosome ids are local to the chunk until it's added
+                        Chunk chunk = new Chunk();
+                        for (TabLine line : lines) {
+                            if (line.startsWith("#") || line.isBlank()) continue; // comment
+                            if (line.size()!=13) {
+                                throw new IllegalArgumentException("Line of "+snpBatchFilename+" does not have 13 fields: "+line);
+                            }
+                            long rs = parseRs(line, line.fieldStart(4), line.fieldEnd(4));
+                            if (rs<=0) continue;
+                            long pos;
+                            try {
+                                pos = line.getLong(7);
+                            } catch (NumberFormatException e) {
+                                continue; // position not determined
+                            }
+                            int chr = chunk.chromosomes.get(line, 6);
+                            if (chr<0) chr = chunk.chromosomes.add(line.get(6));
+                            chunk.rsNumbers.add(rs);
+                            chunk.locations.add((long) chr << 32 | (pos & 0xffffffffL));
+                        }
+                        chunk.sort();
+                        return chunk;
+                    }, chunk -> {
+                        int[] chrIds = new int[chunk.chromosomes.size()];
+                        for (int k=0; k<chrIds.length; k++) {
+                            String name = chunk.chromosomes.getName(k);
+                            chrIds[k] = chromosomes.get(name);
+                            if (chrIds[k]<0) chrIds[k] = chromosomes.add(name);
+                        }
+                        long[] locations = chunk.locations.values;
+                        for (int k=0; k<chunk.size(); k++) {
+                            locations[k] = (long) chrIds[(int) (locations[k] >>> 32)] << 32 | (locations[k] & 0xffffffffL);
+                        }
+                        // merge down while the run below is no more than twice this one, so each SNP is merged O(log n) times
+                        runs.add(chunk);
+                        while (runs.size()>1 && runs.get(runs.size()-2).size()<=2L*runs.get(runs.size()-1).size()) {
+                            Chunk newer = runs.remove(runs.size()-1);
+                            Chunk older = runs.remove(runs.size()-1);
+                            runs.add(merge(older, newer));
+                        }
+                    }, true);
+            } finally {
+                snpBatchReader.close();
+            }
+        }
+        // merge the remaining runs, newest first
+        Chunk merged = new Chunk();
+        for (int k=runs.size()-1; k>=0; k--) merged = merge(runs.get(k), merged);
+        RsIndex index = new RsIndex();
+        index.size = merged.size();
+        index.chromosomes = chromosomes;
+        index.rsSegments = segments(merged.rsNumbers.values, index.size);
+        index.locationSegments = segments(merged.locations.values, index.size);
+        return index;
+    }
+
+    /**
+     * Map an index from the given .rsindex file.
+     */
+    public static RsIndex read(File file) throws IOException {
+        RsIndex index = new RsIndex();
+        long offset = 12;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt()!=MAGIC) throw new IOException(file+" is not an rs index");
+            index.size = in.readInt();
+            int count = in.readInt();
+            for (int k=0; k<count; k++) {
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                index.chromosomes.add(new String(name, StandardCharsets.UTF_8));
+                offset += 4 + name.length;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            index.rsSegments = map(channel, offset, index.size);
+            offset += 8L*index.size;
+            index.locationSegments = map(channel, offset, index.size);
+            offset += 8L*index.size;
+            if (offset!=channel.size()) throw new IOException(file+" is "+channel.size()+" bytes, expected "+offset);
+        }
+        return index;
+    }
+
+    /**
+     * Write the index to the given file, via a temporary file.
+     */
+    public void write(File file) throws IOException {
+        File tempFile = new File(file.getPath()+".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1<<16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(size);
+            out.writeInt(chromosomes.size());
+            for (int k=0; k<chromosomes.size(); k++) {
+                byte[] name = chromosomes.getName(k).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+            }
+            for (LongBuffer[] column : new LongBuffer[][] { rsSegments, locationSegments }) {
+                for (int i=0; i<size; i++) out.writeLong(get(column, i));
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Return the number of rs numbers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the index of the given rs number, or -1 if it isn't present.
+     */
+    public int indexOf(long rs) {
+        int low = 0;
+        int high = size - 1;
+        while (low<=high) {
+            int mid = (low+high) >>> 1;
+            long value = get(rsSegments, mid);
+            if (value<rs) {
+                low = mid + 1;
+            } else if (value>rs) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index of the given rs ID (e.g. rs12345), or -1 if it isn't present or isn't an rs ID.
+     */
+    public int indexOf(String rsID) {
+        long rs = parseRs(rsID);
+        return rs>0 ? indexOf(rs) : -1;
+    }
+
+    /**
+     * Return the chromosome of the SNP at index i.
+     */
+    public String getChromosome(int i) {
+        return chromosomes.getName((int) (get(locationSegments, i) >>> 32));
+    }
+
+    /**
+     * Return the position of the SNP at index i.
+     */
+    public long getPosition(int i) {
+        return get(locationSegments, i) & 0xffffffffL;
+    }
+
+    /**
+     * Return the rs number of an rs ID, or -1 if it isn't "rs" followed by digits.
+     */
+    static long parseRs(String rsID) {
+        if (rsID.length()<3 || !rsID.startsWith("rs")) return -1;
+        long rs = 0;
+        for (int k=2; k<rsID.length(); k++) {
+            int digit = rsID.charAt(k) - '0';
+            if (digit<0 || digit>9) return -1;
+            rs = rs*10 + digit;
+        }
+        return rs;
+    }
+
+    /**
+     * Return the rs number in the range [from,to) of the line, or -1 if it isn't "rs" followed by digits.
+     */
+    static long parseRs(TabLine line, int from, int to) {
+        if (to-from<3 || line.byteAt(from)!='r' || line.byteAt(from+1)!='s') return -1;
+        long rs = 0;
+        for (int k=from+2; k<to; k++) {
+            int digit = line.byteAt(k) - '0';
+            if (digit<0 || digit>9) return -1;
+            rs = rs*10 + digit;
+        }
+        return rs;
+    }
+
+    /**
+     * Return element i of a segmented column.
+     */
+    static long get(LongBuffer[] segments, int i) {
+        return segments[i >>> SEGMENT_SHIFT].get(i & (SEGMENT_SIZE-1));
+    }
+
+    /**
+     * Wrap the first size values of an array as a segmented column.
+     */
+    static LongBuffer[] segments(long[] values, int size) {
+        LongBuffer[] segments = new LongBuffer[(size+SEGMENT_SIZE-1) >>> SEGMENT_SHIFT];
+        for (int s=0; s<segments.length; s++) {
+            int from = s << SEGMENT_SHIFT;
+            segments[s] = LongBuffer.wrap(values, from, Math.min(SEGMENT_SIZE, size-from)).slice();
+        }
+        return segments;
+    }
+
+    /**
+     * Map a column of size longs at the given offset as segments.
+     */
+    static LongBuffer[] map(FileChannel channel, long offset, int size) throws IOException {
+        LongBuffer[] segments = new LongBuffer[(size+SEGMENT_SIZE-1) >>> SEGMENT_SHIFT];
+        for (int s=0; s<segments.length; s++) {
+            long from = (long) s << SEGMENT_SHIFT;
+            long count = Math.min(SEGMENT_SIZE, size-from);
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset+8*from, 8*count).asLongBuffer();
+        }
+        return segments;
+    }
+
+    /**
+     * Stable merge sort of the first n keys, carrying the values along.
+     */
+    static void sort(long[] keys, long[] values, int n) {
+        long[] fromKeys = keys;
+        long[] fromValues = values;
+        long[] toKeys = new long[n];
+        long[] toValues = new long[n];
+        for (int width=1; width<n; width*=2) {
+            for (int from=0; from<n; from+=2*width) {
+                int mid = Math.min(from+width, n);
+                int to = Math.min(from+2*width, n);
+                int i = from;
+                int j = mid;
+                for (int k=from; k<to; k++) {
+                    // take from the left run on ties, for stability
+                    if (j>=to || (i<mid && fromKeys[i]<=fromKeys[j])) {
+                        toKeys[k] = fromKeys[i];
+                        toValues[k] = fromValues[i++];
+                    } else {
+                        toKeys[k] = fromKeys[j];
+                        toValues[k] = fromValues[j++];
+                    }
+                }
+            }
+            long[] swap = fromKeys;
+            fromKeys = toKeys;
+            toKeys = swap;
+            swap = fromValues;
+            fromValues = toValues;
+            toValues = swap;
+        }
+        if (fromKeys!=keys) {
+            System.arraycopy(fromKeys, 0, keys, 0, n);
+            System.arraycopy(fromValues, 0, values, 0, n);
+        }
+    }
+
+    /**
+     * Merge two sorted, de-duplicated runs into one, taking the newer run's location where both have an rs number.
+     */
+    static Chunk merge(Chunk older, Chunk newer) {
+        int m = older.size();
+        int n = newer.size();
+        Chunk merged = new Chunk((int) Math.min((long) m + n, MAX_SIZE));
+        long[] olderRs = older.rsNumbers.values;
+        long[] newerRs = newer.rsNumbers.values;
+        int i = 0;
+        int j = 0;
+        while (i<m || j<n) {
+            if (j>=n || (i<m && olderRs[i]<newerRs[j])) {
+                merged.rsNumbers.add(olderRs[i]);
+                merged.locations.add(older.locations.values[i++]);
+            } else {
+                if (i<m && olderRs[i]==newerRs[j]) i++;
+                merged.rsNumbers.add(newerRs[j]);
+                merged.locations.add(newer.locations.values[j++]);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The SNPs parsed from one chunk of a snpBatch file, or a sorted run of them.
+     */
+    static class Chunk {
+        FieldIndex chromosomes = new FieldIndex();
+        LongList rsNumbers;
+        LongList locations;
+
+        Chunk() {
+            this(16);
+        }
+
+        Chunk(int capacity) {
+            rsNumbers = new LongList(capacity);
+            locations = new LongList(capacity);
+        }
+
+        int size() {
+            return rsNumbers.size;
+        }
+
+        /**
+         * Sort by rs, keeping file order among equal rs numbers, then keep the last of each.
+         */
+        void sort() {
+            long[] rs = rsNumbers.values;
+            long[] loc = locations.values;
+            int n = rsNumbers.size;
+            RsIndex.sort(rs, loc, n);
+            int size = 0;
+            for (int k=0; k<n; k++) {
+                if (k+1<n && rs[k+1]==rs[k]) continue;
+                rs[size] = rs[k];
+                loc[size] = loc[k];
+                size++;
+            }
+            rsNumbers.size = size;
+            locations.size = size;
+        }
+    }
+
+    /**
+     * A growable list of longs, limited to MAX_SIZE values.
+     */
+    static class LongList {
+        long[] values;
+        int size;
+
+        LongList() {
+            this(16);
+        }
+
+        LongList(int capacity) {
+            values = new long[Math.max(capacity, 16)];
+        }
+
+        void add(long value) {
+            if (size==values.length) {
+                if (size>=MAX_SIZE) throw new IllegalArgumentException("Cannot hold more than "+MAX_SIZE+" values");
+                values = Arrays.copyOf(values, (int) Math.min(2L*size, MAX_SIZE));
+            }
+            values[size++] = value;
+        }
+    }
+}
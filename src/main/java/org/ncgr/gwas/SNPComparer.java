@@ -1,11 +1,13 @@
 package org.ncgr.gwas;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.LinkedList;
-
-import org.biojava.nbio.genome.parsers.gff.FeatureI;
-import org.biojava.nbio.genome.parsers.gff.FeatureList;
-import org.biojava.nbio.genome.parsers.gff.Location;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.VariantContext;
@@ -34,10 +36,16 @@ import org.apache.commons.cli.ParseException;
  * -satm  --sourceAltTotalMin     minimum number of ALT reads on source SNP to be counted
  * -sarrm --sourceAltReadRatioMin minimum ratio of forward/reverse (and vice versa) ALT reads on source SNP
  * -safm  --sourceAltFractionMin  minimum fraction of ALT reads on source SNP
- * -tafm  --targetRefFractionMin  minimum fraction of REF reads on target SNP - all SNPs within target gene must pass this threshold
+ * -trfm  --targetRefFractionMin  minimum fraction of REF reads on target SNP - all SNPs within target gene must pass this threshold
+ * -rcl   --regionCacheLimit      maximum target VCF records held in the region cache (0=no cache)
+ * -gc    --gffCache              cache the parsed GFFs as [GFF].gffcache for faster repeat runs
  *
  * NOTE: only homozygous calls on the source genome are analyzed.
  *
+ * The source SNPs passing the source filter are collected in one pass, then searched against the remap GFF a contig per thread.
+ * Each target gene is evaluated against the target VCF once, the first time any thread hits it, and its verdict is cached; genes are
+ * output in the order of the source SNPs that first hit them.
+ *
  * @author Sam Hokin
  */
 public class SNPComparer {
@@ -87,6 +95,14 @@ public class SNPComparer {
         targetRefFractionMinOption.setRequired(false);
         options.addOption(targetRefFractionMinOption);
 
+        Option regionCacheLimitOption = new Option("rcl", "regionCacheLimit", true, "maximum target VCF records held in the region cache [0=no cache]");
+        regionCacheLimitOption.setRequired(false);
+        options.addOption(regionCacheLimitOption);
+
+        Option gffCacheOption = new Option("gc", "gffCache", false, "cache the parsed GFFs as [GFF].gffcache for faster repeat runs");
+        gffCacheOption.setRequired(false);
+        options.addOption(gffCacheOption);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
@@ -117,9 +133,8 @@ public class SNPComparer {
         if (cmd.hasOption("targetRefFractionMin")) targetRefFractionMin = Double.parseDouble(cmd.getOptionValue("targetRefFractionMin"));
 
         VCFLoader sourceVCFLoader = new VCFLoader(sourceVCFFilename);
-        GFFLoader remapGFFLoader = new GFFLoader(remapGFFFilename);
-        GFFLoader targetGFFLoader = new GFFLoader(targetGFFFilename);
-        VCFLoader targetVCFLoader = new VCFLoader(targetVCFFilename);
+        GFFLoader remapGFFLoader = new GFFLoader(remapGFFFilename, cmd.hasOption("gffCache"));
+        GFFLoader targetGFFLoader = new GFFLoader(targetGFFFilename, cmd.hasOption("gffCache"));
 
         // output the parameters
         System.out.println("org.ncgr.gwas.SNPComparer");
@@ -136,110 +151,118 @@ public class SNPComparer {
         // output header
         System.out.println("Gene\tChromosome\tStart\tEnd\tStrand\tMinRefFrac");
 
-        // list keeps track of target genes already output
-        List<String> targetGeneList = new LinkedList<>();
-
-        // load and spin through the source VCF file
-        sourceVCFLoader.load();
-        for (VariantContext sourceVC : sourceVCFLoader.vcList) {
-            if (sourceVC.isSNP()) {
-
-                // source VCF values
-                String sourceID = sourceVC.getID();
-                String sourceContig = sourceVC.getContig();
-                int sourceStart = sourceVC.getStart();
-                Allele sourceRef = sourceVC.getReference();
-                List<Allele> sourceAlts = sourceVC.getAlternateAlleles();
-                List<Integer> dp4List = sourceVC.getAttributeAsIntList("DP4", 0);
-                int sourceRefForward = dp4List.get(0);
-                int sourceRefReverse = dp4List.get(1);
-                int sourceAltForward = dp4List.get(2);
-                int sourceAltReverse = dp4List.get(3); 
-                int sourceRefTotal = sourceRefForward + sourceRefReverse;
-                int sourceAltTotal = sourceAltForward + sourceAltReverse;
-                String sourceRefString = sourceRef.getBaseString();
-                boolean sourceIsHet = sourceAlts.size()>1;
-                String sourceAltString = "";
-                for (Allele alt : sourceAlts) {
-                    if (sourceAltString.length()>0) sourceAltString += ",";
-                    sourceAltString += alt.getBaseString();
-                }
-                double sourceAltFraction = (double)(sourceAltTotal)/(double)(sourceRefTotal+sourceAltTotal);
-
-                // source filtering NOTE: only homozygous calls allowed!
-                boolean sourceOK =
-                    (!sourceIsHet)
-                    && (sourceAltTotal>sourceAltTotalMin)
-                    && ((double)Math.min(sourceAltForward,sourceAltReverse)/(double)Math.max(sourceAltForward,sourceAltReverse)>sourceAltReadRatioMin)
-                    && (sourceAltFraction>=sourceAltFractionMin);
-                
-                if (sourceOK) {
-
-                    // search for the target gene(s) spanning this location on the source genome
-                    Location sourceLocation = new Location(sourceStart,sourceStart);
-                    FeatureList overlapping = remapGFFLoader.search(sourceContig, sourceLocation);
-                    for (FeatureI feature : overlapping) {
-                        String geneID = feature.getAttribute("ID");
-                        // only process new genes
-                        if (!targetGeneList.contains(geneID)) {
-
-                            // find this gene on the target genome
-                            FeatureList genes = targetGFFLoader.searchID(geneID);
-                            for (FeatureI gene : genes) {
-                                String chromosome = gene.seqname();
-                                String type = gene.type();
-                                Location loc = gene.location();
-                                int start = loc.start();
-                                int end = loc.end();
-                                char strand = '+';
-                                // if minus strand, indicate with "-" but make start<end
-                                if (start<0) {
-                                    strand = '-';
-                                    int minusStart = -start;
-                                    int minusEnd = -end;
-                                    start = minusEnd;
-                                    end = minusStart;
-                                }
-                                
-                                // now search the target VCF for SNPs on the target genome
-                                List<VariantContext> targetVCList = targetVCFLoader.query(chromosome, start, end).toList();
-                                boolean targetHasSNPs = targetVCList.size()>0;
-                                double minTargetRefFraction = 1.0;
-                                for (VariantContext targetVC : targetVCList) {
-                                    int targetStart = targetVC.getStart();
-                                    Allele targetRef = targetVC.getReference();
-                                    List<Allele> targetAlts = targetVC.getAlternateAlleles();
-                                    List<Integer> targetDP4List = targetVC.getAttributeAsIntList("DP4", 0);
-                                    int targetRefForward = targetDP4List.get(0);
-                                    int targetRefReverse = targetDP4List.get(1);
-                                    int targetAltForward = targetDP4List.get(2);
-                                    int targetAltReverse = targetDP4List.get(3);
-                                    int targetRefTotal = targetRefForward + targetRefReverse;
-                                    int targetAltTotal = targetAltForward + targetAltReverse;
-                                    String targetRefString = targetRef.getBaseString();
-                                    String targetAltString = "";
-                                    for (Allele alt : targetAlts) {
-                                        if (targetAltString.length()>0) targetAltString += ",";
-                                        targetAltString += alt.getBaseString();
-                                    }
-                                    double targetRefFraction = (double)targetRefTotal/(double)(targetRefTotal+targetAltTotal);
-                                    minTargetRefFraction = Math.min(targetRefFraction,minTargetRefFraction);
-                                }
-                                    
-                                // output record if passes target filter
-                                boolean targetOK = (!targetHasSNPs) || (minTargetRefFraction>=targetRefFractionMin);
-                                if (targetOK) {
-                                    System.out.println(geneID+"\t"+chromosome+"\t"+start+"\t"+end+"\t"+strand+"\t"+minTargetRefFraction);
-                                    targetGeneList.add(geneID);
-                                }
-                                    
-                            }
-                            
-                        }
+        // spin through the source VCF file a contig per thread, collecting the positions of the SNPs that pass the source filter on each contig, in file order
+        final int altTotalMin = sourceAltTotalMin;
+        final double altReadRatioMin = sourceAltReadRatioMin;
+        final double altFractionMin = sourceAltFractionMin;
+        Map<String,IntervalIndex.IntList> sourcePositions = new LinkedHashMap<>();
+        try (Stream<VariantContext> sourceVCs = sourceVCFLoader.parallelStream()) {
+            sourceVCs.filter(sourceVC -> isSourceOK(sourceVC, altTotalMin, altReadRatioMin, altFractionMin))
+                .forEachOrdered(sourceVC -> sourcePositions.computeIfAbsent(sourceVC.getContig(), k -> new IntervalIndex.IntList()).add(sourceVC.getStart()));
+        }
+        sourceVCFLoader.close();
+
+        // the output rows of each target gene, empty if it fails the target filter
+        Map<String,List<String>> targetRows = new ConcurrentHashMap<>();
+        VCFLoader targetVCFLoader = new VCFLoader(targetVCFFilename);
+        if (cmd.hasOption("regionCacheLimit")) targetVCFLoader.setRegionCacheLimit(Integer.parseInt(cmd.getOptionValue("regionCacheLimit")));
+        final double refFractionMin = targetRefFractionMin;
+
+        // search for the target genes spanning each source SNP on the source genome, a contig per thread, with the target VCF
+        // queried through readers leased from the loader's pool
+        Map<String,List<String>> contigGeneIDs = new ConcurrentHashMap<>();
+        sourcePositions.entrySet().parallelStream().forEach(entry -> {
+                String sourceContig = entry.getKey();
+                IntervalIndex.IntList positions = entry.getValue();
+                List<String> geneIDs = new ArrayList<>();
+                for (int k=0; k<positions.size; k++) {
+                    int sourceStart = positions.values[k];
+                    for (int i : remapGFFLoader.table.overlapping(sourceContig, sourceStart, sourceStart)) {
+                        String geneID = remapGFFLoader.table.getAttribute(i, "ID");
+                        if (geneID==null) continue;
+                        geneIDs.add(geneID);
+                        // queried outside the map, so no bin is locked during I/O; two threads may both evaluate a gene, to the same rows
+                        if (!targetRows.containsKey(geneID)) targetRows.putIfAbsent(geneID, getTargetRows(geneID, targetGFFLoader.table, targetVCFLoader, refFractionMin));
                     }
                 }
+                contigGeneIDs.put(sourceContig, geneIDs);
+            });
+
+        // output each passing target gene once, at the first source SNP that hits it
+        Set<String> targetGenes = new HashSet<>();
+        for (String sourceContig : sourcePositions.keySet()) {
+            for (String geneID : contigGeneIDs.get(sourceContig)) {
+                List<String> rows = targetRows.get(geneID);
+                if (rows.size()>0 && targetGenes.add(geneID)) {
+                    for (String row : rows) System.out.println(row);
+                }
+            }
+        }
+        if (cmd.hasOption("regionCacheLimit")) System.err.println("Target VCF region cache: "+targetVCFLoader.getCacheHits()+" hits, "+targetVCFLoader.getCacheMisses()+" misses");
+        targetVCFLoader.close();
+    }
+
+    /**
+     * Return true if the source call is a homozygous SNP passing the source filter.
+     */
+    static boolean isSourceOK(VariantContext sourceVC, int sourceAltTotalMin, double sourceAltReadRatioMin, double sourceAltFractionMin) {
+        if (!sourceVC.isSNP()) return false;
+
+        // source VCF values
+        List<Allele> sourceAlts = sourceVC.getAlternateAlleles();
+        List<Integer> dp4List = sourceVC.getAttributeAsIntList("DP4", 0);
+        int sourceRefForward = dp4List.get(0);
+        int sourceRefReverse = dp4List.get(1);
+        int sourceAltForward = dp4List.get(2);
+        int sourceAltReverse = dp4List.get(3); 
+        int sourceRefTotal = sourceRefForward + sourceRefReverse;
+        int sourceAltTotal = sourceAltForward + sourceAltReverse;
+        boolean sourceIsHet = sourceAlts.size()>1;
+        double sourceAltFraction = (double)(sourceAltTotal)/(double)(sourceRefTotal+sourceAltTotal);
+
+        // source filtering NOTE: only homozygous calls allowed!
+        return
+            (!sourceIsHet)
+            && (sourceAltTotal>sourceAltTotalMin)
+            && ((double)Math.min(sourceAltForward,sourceAltReverse)/(double)Math.max(sourceAltForward,sourceAltReverse)>sourceAltReadRatioMin)
+            && (sourceAltFraction>=sourceAltFractionMin);
+    }
+
+    /**
+     * Return the output rows of the locations of the given target gene that have no SNPs on the target genome, or only SNPs
+     * with a REF fraction of at least targetRefFractionMin.
+     */
+    static List<String> getTargetRows(String geneID, GFFTable targetTable, VCFLoader targetVCFLoader, double targetRefFractionMin) {
+        List<String> rows = new ArrayList<>();
+        // find this gene on the target genome
+        for (int i : targetTable.find("ID", geneID)) {
+            String chromosome = targetTable.getSeqname(i);
+            int start = targetTable.plusStart(i);
+            int end = targetTable.plusEnd(i);
+            // if minus strand, indicate with "-" but make start<end
+            char strand = targetTable.getStrand(i)=='-' ? '-' : '+';
+
+            // now search the target VCF for SNPs on the target genome
+            double[] targetRefFractions;
+            try (Stream<VariantContext> targetVCs = targetVCFLoader.stream(chromosome, start, end)) {
+                targetRefFractions = targetVCs.mapToDouble(targetVC -> {
+                        List<Integer> targetDP4List = targetVC.getAttributeAsIntList("DP4", 0);
+                        int targetRefTotal = targetDP4List.get(0) + targetDP4List.get(1);
+                        int targetAltTotal = targetDP4List.get(2) + targetDP4List.get(3);
+                        return (double)targetRefTotal/(double)(targetRefTotal+targetAltTotal);
+                    }).toArray();
+            }
+            boolean targetHasSNPs = targetRefFractions.length>0;
+            double minTargetRefFraction = 1.0;
+            for (double targetRefFraction : targetRefFractions) minTargetRefFraction = Math.min(targetRefFraction,minTargetRefFraction);
+
+            // output record if passes target filter
+            boolean targetOK = (!targetHasSNPs) || (minTargetRefFraction>=targetRefFractionMin);
+            if (targetOK) {
+                rows.add(geneID+"\t"+chromosome+"\t"+start+"\t"+end+"\t"+strand+"\t"+minTargetRefFraction);
             }
         }
+        return rows;
     }
 
 }
@@ -1,17 +1,15 @@
 package org.ncgr.gwas;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.VariantContext;
 
-import org.biojava.nbio.genome.parsers.gff.FeatureI;
-import org.biojava.nbio.genome.parsers.gff.FeatureList;
-import org.biojava.nbio.genome.parsers.gff.Location;
-
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -29,6 +27,11 @@ import org.apache.commons.cli.ParseException;
  * -v2 --VCF2 VCF file 2, contains SNPs that must match VCF1 location and ALT values
  * -v3 --VCF3 VCF file 3, contains SNPs that must NOT be present at VCF1 location or match VCF1 ALT values if present
  * -g  --GFF  GFF file containing regions (e.g. genes) on which all VCF1 SNPs must match VCF2 SNPs and should NOT contain ANY matching SNPs from VCF3 (optional)
+ * -gc --gffCache cache the parsed GFF as [GFF].gffcache for faster repeat runs
+ *
+ * VCF1 is read once, in order, and each contig's VCF2 and VCF3 calls are read along with it from a single query each, keeping only the
+ * calls overlapping the current SNP, so a run is one linear pass over the three files. Without a GFF file the winning SNPs are output
+ * as they're found; with one they're held until the end, since a gene can lose at any later location.
  *
  * @author Sam Hokin
  */
@@ -61,6 +64,10 @@ public class SNPFilter {
         gffOption.setRequired(false);
         options.addOption(gffOption);
 
+        Option gffCacheOption = new Option("gc", "gffCache", false, "cache the parsed GFF as [GFF].gffcache for faster repeat runs");
+        gffCacheOption.setRequired(false);
+        options.addOption(gffCacheOption);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
@@ -94,100 +101,13 @@ public class SNPFilter {
 
         // and the optional GFF loader
         GFFLoader gffLoader = null;
-        if (gffFilename!=null) gffLoader = new GFFLoader(gffFilename);
+        if (gffFilename!=null) gffLoader = new GFFLoader(gffFilename, cmd.hasOption("gffCache"));
 
-        // map from location string to gene name for case of GFF for added output column
-        Map<String,String> gffNames = new HashMap<>();
+        // IDs of the GFF features containing a losing location
+        Set<String> losingGenes = new HashSet<>();
 
-        // list of "winning" locations for output
-        List<String> winningLocations = new LinkedList<>();
-
-        // list of "losing" locations for filtering out GFF regions
-        List<String> losingLocations = new LinkedList<>();
-
-        // map of locations to ALT string where VCF3 has a SNP with a different allele
-        Map<String,String> differingLocations = new HashMap<>();
-        
-        // spin through the source VCF file
-        vcf1Loader.load();
-        for (VariantContext vc1 : vcf1Loader.vcList) {
-            // limit to SNPs
-            if (vc1.isSNP()) {
-                // get vc1 data
-                String vc1ID = vc1.getID();
-                String vc1Contig = vc1.getContig();
-                int vc1Start = vc1.getStart();
-                int vc1End = vc1.getEnd();
-                Allele vc1Ref = vc1.getReference();
-                String vc1RefString = vc1Ref.getBaseString();
-                String vc1AltString = getAltString(vc1);
-                // search for this location on VCF2
-                List<VariantContext> vc2List = vcf2Loader.query(vc1Contig, vc1Start, vc1End).toList();
-                if (vc2List.size()==0) {
-                    // VCF2 doesn't have a SNP to match VCF1, so add to losingLocations in case we're using GFF
-                    losingLocations.add(getLocationKey(vc1Contig,vc1Start));
-                } else {
-                    for (VariantContext vc2 : vc2List) {
-                        // get vc2 data
-                        String vc2ID = vc2.getID();
-                        String vc2Contig = vc2.getContig();
-                        int vc2Start = vc2.getStart();
-                        int vc2End = vc2.getEnd();
-                        Allele vc2Ref = vc2.getReference();
-                        String vc2RefString = vc2Ref.getBaseString();
-                        String vc2AltString = getAltString(vc2);
-                        // check for ALT match between VCF1 and VCF2
-                        if (vc1AltString.equals(vc2AltString)) {
-                            boolean winner = true;
-                            // search for this location on VCF3
-                            List<VariantContext> vc3List = vcf3Loader.query(vc1Contig, vc1Start, vc1End).toList();
-                            for (VariantContext vc3 : vc3List) {
-                                // get vc3 data
-                                String vc3ID = vc3.getID();
-                                String vc3Contig = vc3.getContig();
-                                int vc3Start = vc3.getStart();
-                                int vc3End = vc3.getEnd();
-                                Allele vc3Ref = vc3.getReference();
-                                String vc3RefString = vc3Ref.getBaseString();
-                                String vc3AltString = getAltString(vc3);
-                                // we allow VCF3 to have a DIFFERENT ALT allele at this position
-                                if (vc3AltString.equals(vc1AltString)) {
-                                    winner = false;
-                                    losingLocations.add(getLocationKey(vc1Contig,vc1Start));
-                                } else {
-                                    differingLocations.put(getLocationKey(vc1Contig,vc1Start), vc3AltString);
-                                }
-                            }
-                            if (winner) {
-                                // add this winning location
-                                winningLocations.add(getLocationKey(vc1Contig,vc1Start));
-                            }
-                        } else {
-                            // VCF1 and VCF2 don't match, add to losingLocations in case we're using GFF
-                            losingLocations.add(getLocationKey(vc1Contig,vc1Start));
-                        }
-                    }
-                }
-            }
-        }
-
-        // Optionally reject locations that do not meet the GFF region requirements
-        List<String> losingGenes = new LinkedList<>();
-        if (gffLoader!=null) {
-            for (String loc : losingLocations) {
-                String[] parts = splitLocationKey(loc);
-                String contig = parts[0];
-                Integer pos = Integer.parseInt(parts[1]);
-                Location location = new Location(pos, pos);
-                FeatureList overlapping = gffLoader.search(contig, location);
-                for (FeatureI feature : overlapping) {
-                    String geneID = feature.getAttribute("ID");
-                    if (!losingGenes.contains(geneID)) {
-                        losingGenes.add(geneID);
-                    }
-                }
-            }
-        }
+        // winning locations held until all the losing genes are known, in case we're using GFF
+        List<Winner> winners = new ArrayList<>();
 
         // output header
         System.out.print("Contig\tPos\tREF\tALT\t"+
@@ -199,68 +119,87 @@ public class SNPFilter {
         } else {
             System.out.println("");
         }
-        // run through the winners, outputting the relevant data
-        for (String loc : winningLocations) {
-            String[] parts = splitLocationKey(loc);
-            String contig = parts[0];
-            Integer pos = Integer.parseInt(parts[1]);
-            // optional removal if this is on a losing gene
-            String geneID = null;
-            boolean losingGene = false;
-            if (gffLoader!=null) {
-                Location location = new Location(pos, pos);
-                FeatureList overlapping = gffLoader.search(contig, location);
-                for (FeatureI feature : overlapping) {
-                    geneID = feature.getAttribute("ID");
-                    if (losingGenes.contains(geneID)) losingGene = true;
-                }
+
+        // spin through the source VCF file, joined to the VCF2 and VCF3 calls on the same contig
+        String contig = null;
+        VCFWindow vcf2Window = null;
+        VCFWindow vcf3Window = null;
+        Stream<VariantContext> vcf1Stream = vcf1Loader.stream();
+        // limit to SNPs
+        Iterator<VariantContext> vcf1Iterator = vcf1Stream.filter(VariantContext::isSNP).iterator();
+        while (vcf1Iterator.hasNext()) {
+            VariantContext vc1 = vcf1Iterator.next();
+            if (!vc1.getContig().equals(contig)) {
+                if (vcf2Window!=null) vcf2Window.close();
+                if (vcf3Window!=null) vcf3Window.close();
+                contig = vc1.getContig();
+                vcf2Window = new VCFWindow(vcf2Loader, contig);
+                vcf3Window = new VCFWindow(vcf3Loader, contig);
             }
-            if (!losingGene) {
-                List<VariantContext> vc1List = vcf1Loader.query(contig, pos, pos).toList();
-                for (VariantContext vc1 : vc1List) {
-                    // get vc1 data
-                    String vc1ID = vc1.getID();
-                    String vc1Contig = vc1.getContig();
-                    int vc1Start = vc1.getStart();
-                    int vc1End = vc1.getEnd();
-                    Allele vc1Ref = vc1.getReference();
-                    String vc1RefString = vc1Ref.getBaseString();
-                    String vc1AltString = getAltString(vc1);
-                    List<Integer> vc1DP4 = vc1.getAttributeAsIntList("DP4", 0);
-                    int vc1RefForward = vc1DP4.get(0);
-                    int vc1RefReverse = vc1DP4.get(1);
-                    int vc1AltForward = vc1DP4.get(2);
-                    int vc1AltReverse = vc1DP4.get(3);
-                    String vc3AltString = "";
-                    if (differingLocations.containsKey(getLocationKey(contig,pos))) vc3AltString = differingLocations.get(getLocationKey(contig,pos));
-                    List<VariantContext> vc2List = vcf2Loader.query(vc1Contig, vc1Start, vc1End).toList();
-                    for (VariantContext vc2 : vc2List) {
-                        // get vc2 data
-                        String vc2ID = vc2.getID();
-                        String vc2Contig = vc2.getContig();
-                        int vc2Start = vc2.getStart();
-                        int vc2End = vc2.getEnd();
-                        Allele vc2Ref = vc2.getReference();
-                        String vc2RefString = vc2Ref.getBaseString();
-                        String vc2AltString = getAltString(vc2);
-                        List<Integer> vc2DP4 = vc2.getAttributeAsIntList("DP4", 0);
-                        int vc2RefForward = vc2DP4.get(0);
-                        int vc2RefReverse = vc2DP4.get(1);
-                        int vc2AltForward = vc2DP4.get(2);
-                        int vc2AltReverse = vc2DP4.get(3); 
-                        // output
-                        System.out.print(vc1Contig+"\t"+vc1Start+"\t"+vc1RefString+"\t"+vc1AltString+"\t"+
-                                         vc1RefForward+"\t"+vc1RefReverse+"\t"+vc1AltForward+"\t"+vc1AltReverse+"\t"+
-                                         vc2RefForward+"\t"+vc2RefReverse+"\t"+vc2AltForward+"\t"+vc2AltReverse+"\t"+
-                                         vc3AltString);
-                        if (geneID==null) {
-                            System.out.println("");
+            int vc1Start = vc1.getStart();
+            int vc1End = vc1.getEnd();
+            String vc1AltString = getAltString(vc1);
+            // VCF2 must have a matching SNP, and VCF3 must not, though it may have a different ALT allele
+            List<VariantContext> vc2List = vcf2Window.advance(vc1Start, vc1End);
+            boolean losing = vc2List.size()==0;
+            int wins = 0;
+            String vc3AltString = "";
+            for (VariantContext vc2 : vc2List) {
+                if (vc1AltString.equals(getAltString(vc2))) {
+                    boolean winner = true;
+                    for (VariantContext vc3 : vcf3Window.advance(vc1Start, vc1End)) {
+                        String altString = getAltString(vc3);
+                        if (altString.equals(vc1AltString)) {
+                            winner = false;
+                            losing = true;
                         } else {
-                            System.out.println("\t"+geneID);
+                            vc3AltString = altString;
                         }
                     }
+                    if (winner) wins++;
+                } else {
+                    losing = true;
                 }
             }
+            // features containing this location
+            int[] features = gffLoader!=null ? gffLoader.table.overlapping(contig, vc1Start, vc1Start) : new int[0];
+            if (losing) {
+                for (int i : features) losingGenes.add(gffLoader.table.getAttribute(i, "ID"));
+            }
+            if (wins==0) continue;
+            // the winning SNP alongside each VCF2 call there, once per matching VCF2 call
+            Winner winner = new Winner();
+            List<Integer> vc1DP4 = vc1.getAttributeAsIntList("DP4", 0);
+            for (VariantContext vc2 : vc2List) {
+                List<Integer> vc2DP4 = vc2.getAttributeAsIntList("DP4", 0);
+                winner.rows.add(contig+"\t"+vc1Start+"\t"+vc1.getReference().getBaseString()+"\t"+vc1AltString+"\t"+
+                            vc1DP4.get(0)+"\t"+vc1DP4.get(1)+"\t"+vc1DP4.get(2)+"\t"+vc1DP4.get(3)+"\t"+
+                            vc2DP4.get(0)+"\t"+vc2DP4.get(1)+"\t"+vc2DP4.get(2)+"\t"+vc2DP4.get(3)+"\t"+
+                            vc3AltString);
+            }
+            winner.wins = wins;
+            if (gffLoader==null) {
+                winner.print();
+            } else {
+                winner.geneIDs = new String[features.length];
+                for (int k=0; k<features.length; k++) winner.geneIDs[k] = gffLoader.table.getAttribute(features[k], "ID");
+                winners.add(winner);
+            }
+        }
+        vcf1Stream.close();
+        if (vcf2Window!=null) vcf2Window.close();
+        if (vcf3Window!=null) vcf3Window.close();
+        vcf1Loader.close();
+        vcf2Loader.close();
+        vcf3Loader.close();
+
+        // output the winners that aren't on a losing gene, labeled with the last gene
+        for (Winner winner : winners) {
+            boolean losingGene = false;
+            for (String geneID : winner.geneIDs) {
+                if (losingGenes.contains(geneID)) losingGene = true;
+            }
+            if (!losingGene) winner.print();
         }
     }
 
@@ -278,17 +217,77 @@ public class SNPFilter {
     }
 
     /**
-     * Return string key for a given contig and position
+     * The output rows of a winning SNP, printed once per win, with the IDs of the GFF features containing it.
      */
-    static String getLocationKey(String contig, int position) {
-        return contig+":"+position;
+    static class Winner {
+        List<String> rows = new ArrayList<>();
+        int wins;
+        String[] geneIDs;
+
+        void print() {
+            String geneID = geneIDs==null || geneIDs.length==0 ? null : geneIDs[geneIDs.length-1];
+            for (int w=0; w<wins; w++) {
+                for (String row : rows) {
+                    if (geneID==null) {
+                        System.out.println(row);
+                    } else {
+                        System.out.println(row+"\t"+geneID);
+                    }
+                }
+            }
+        }
     }
 
     /**
-     * Return the contig and position as strings from a location key
+     * The calls of a VCF file on one contig overlapping a position that moves forward along it, read from a single query.
      */
-    static String[] splitLocationKey(String key) {
-        return key.split(":");
+    static class VCFWindow {
+        VCFLoader loader;
+        String contig;
+        Stream<VariantContext> stream;
+        Iterator<VariantContext> iterator;
+        VariantContext next;
+        List<VariantContext> active = new ArrayList<>();
+        int lastStart;
+
+        VCFWindow(VCFLoader loader, String contig) {
+            this.loader = loader;
+            this.contig = contig;
+            open();
+        }
+
+        void open() {
+            stream = loader.stream(contig, 1, Integer.MAX_VALUE);
+            iterator = stream.iterator();
+            next = iterator.hasNext() ? iterator.next() : null;
+            active.clear();
+            lastStart = 0;
+        }
+
+        /**
+         * Return the calls overlapping [start,end], in file order. Calls should come in start order; one that goes back restarts the query.
+         */
+        List<VariantContext> advance(int start, int end) {
+            if (start<lastStart) {
+                close();
+                open();
+            }
+            lastStart = start;
+            active.removeIf(vc -> vc.getEnd()<start);
+            while (next!=null && next.getStart()<=end) {
+                if (next.getEnd()>=start) active.add(next);
+                next = iterator.hasNext() ? iterator.next() : null;
+            }
+            List<VariantContext> overlapping = new ArrayList<>(active.size());
+            for (VariantContext vc : active) {
+                if (vc.getStart()<=end) overlapping.add(vc);
+            }
+            return overlapping;
+        }
+
+        void close() {
+            stream.close();
+        }
     }
 
 }
@@ -1,14 +1,24 @@
 package org.ncgr.gwas;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.variant.vcf.VCFCodec;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 /**
  * Performs SNP liftover based on rs# from an existing VCF file using snpBatch files downloaded from NCBI dbSNP.
@@ -16,82 +26,302 @@ import java.util.TreeMap;
  * #ss#        loc_snp_id      allele  samplesize  rs#         ss2rs_orien  chr  chr_pos   contig_acc      contig_pos  rs2genome_orien assembly   weight
  * ss65979011  SNP_A-1712762   A/G     270         rs11564776  1            1    824920    NT_032977.10    238932      1               GRCh38.p7  1
  * ss65923548  SNP_A-1660027   C/G     270         rs380390    0            1	 196731921 NT_004487.20	   53547334    1               GRCh38.p7  1
+ *
+ * The rs# positions are held in an RsIndex, built from the snpBatch files on each run or, for a set of files used more than once,
+ * built once with RsIndex and passed as a single .rsindex file, which is memory-mapped.
+ *
+ * Alternatively, records can be lifted by coordinate with a UCSC chain file (-chain), which maps every record whose REF lies within
+ * one aligned block, whatever its ID. The VCF is mapped in parallel chunks against a ChainIndex; records on reverse-strand blocks
+ * get reverse-complemented alleles, and the ##contig lines are replaced by the chain file's query (destination) contigs. Counts of mapped,
+ * unmapped and split records are written to STDERR.
  */
 public class SNPLifter {
 
+    static int DEFAULT_MEMORY_MB = 512;
+
     /**
      * Main class outputs a VCF with the new SNP positions.
      */
     public static void main(String[] args) throws FileNotFoundException, IOException {
 
-	if (args.length!=2) {
-	    System.err.println("SNPLifter <VCF file> <snpBatch1,snpBatch2,...>");
-	    System.exit(0);
+	Options options = new Options();
+
+	Option vcfFileOption = new Option("vcf", "vcffile", true, "VCF file to lift, plain or gzipped (or first argument)");
+	vcfFileOption.setRequired(false);
+	options.addOption(vcfFileOption);
+	//
+	Option snpBatchOption = new Option("snp", "snpbatch", true, "comma-separated snpBatch files, or an .rsindex file built from them by RsIndex (or second argument)");
+	snpBatchOption.setRequired(false);
+	options.addOption(snpBatchOption);
+	//
+	Option chainFileOption = new Option("chain", "chainfile", true, "UCSC chain file, plain or gzipped, to lift by coordinate instead of rs#");
+	chainFileOption.setRequired(false);
+	options.addOption(chainFileOption);
+	//
+	Option outFileOption = new Option("out", "outfile", true, "output file, bgzipped if it ends in .gz (STDOUT)");
+	outFileOption.setRequired(false);
+	options.addOption(outFileOption);
+	//
+	Option indexOption = new Option("x", "index", false, "write a tabix index of the bgzipped output file (false)");
+	indexOption.setRequired(false);
+	options.addOption(indexOption);
+	//
+	Option memoryOption = new Option("mem", "memory", true, "MB of lifted records to hold before spilling a sorted run to disk ("+DEFAULT_MEMORY_MB+")");
+	memoryOption.setRequired(false);
+	options.addOption(memoryOption);
+	//
+	Option tmpDirOption = new Option("tmp", "tmpdir", true, "directory for sorted runs (java.io.tmpdir)");
+	tmpDirOption.setRequired(false);
+	options.addOption(tmpDirOption);
+
+	CommandLineParser parser = new DefaultParser();
+	HelpFormatter formatter = new HelpFormatter();
+	CommandLine cmd;
+	try {
+	    cmd = parser.parse(options, args);
+	} catch (ParseException e) {
+	    System.err.println(e.getMessage());
+	    formatter.printHelp("SNPLifter", options);
+	    System.exit(1);
+	    return;
 	}
 
-	String vcfFilename = args[0];
-	String[] snpBatchFilenames = args[1].split(",");
-
-	// load the snpBatch files into the rs#->chr_pos map
-	Map<String,Long> snpPositionMap = new HashMap<>();
-	for (String snpBatchFilename : snpBatchFilenames) {
-	    BufferedReader snpBatchReader = new BufferedReader(new FileReader(snpBatchFilename));
-	    String line = null;
-	    while ((line=snpBatchReader.readLine())!=null) {
-		if (line.startsWith("#") || line.trim().length()==0) continue; // comment
-		String[] fields = line.split("\t");
-		if (fields.length!=13) {
-		    System.err.println("Line does not have 13 fields:");
-		    System.err.println(line);
-		    System.exit(1);
-		}
-		try {
-		    snpPositionMap.put(fields[4], Long.parseLong(fields[7]));
-		} catch (NumberFormatException e) {
-		    // position not determined
-		}
+	// the VCF and snpBatch files may also be given as positional arguments, VCF first
+	String[] fileArgs = cmd.getArgs();
+	int nextArg = 0;
+	String vcfFilename = cmd.hasOption("vcffile") ? cmd.getOptionValue("vcffile") : (nextArg<fileArgs.length ? fileArgs[nextArg++] : null);
+	String snpBatch = cmd.hasOption("snpbatch") ? cmd.getOptionValue("snpbatch") : (nextArg<fileArgs.length ? fileArgs[nextArg++] : null);
+	if (vcfFilename==null || nextArg<fileArgs.length) {
+	    System.err.println("Usage SNPLifter [options] <VCF file> <snpBatch1,snpBatch2,...>");
+	    formatter.printHelp("SNPLifter", options);
+	    System.exit(1);
+	}
+	if ((snpBatch!=null)==cmd.hasOption("chainfile")) {
+	    System.err.println("You must supply exactly one of -snp or -chain");
+	    formatter.printHelp("SNPLifter", options);
+	    System.exit(1);
+	}
+
+	String outFilename = cmd.getOptionValue("outfile");
+	boolean index = cmd.hasOption("index");
+	if (index && (outFilename==null || !outFilename.endsWith(".gz"))) {
+	    System.err.println("ERROR: -x requires a bgzipped -out file ending in .gz");
+	    System.exit(1);
+	}
+	long memoryBytes = (cmd.hasOption("memory") ? Long.parseLong(cmd.getOptionValue("memory")) : DEFAULT_MEMORY_MB) << 20;
+	File tmpDir = cmd.hasOption("tmpdir") ? new File(cmd.getOptionValue("tmpdir")) : null;
+
+	PrintStream out = ParallelBGZFOutputStream.openPrintStream(outFilename);
+	PositionSorter sorter = new PositionSorter(memoryBytes, tmpDir);
+	if (cmd.hasOption("chainfile")) {
+	    liftByChain(vcfFilename, new ChainIndex(cmd.getOptionValue("chainfile")), out, sorter);
+	} else {
+	    liftByRs(vcfFilename, snpBatch.split(","), out, sorter);
+	}
+	if (sorter.getRunCount()>0) System.err.println("Merging "+(sorter.getRunCount()+1)+" sorted runs");
+	// Dump out the VCF contents by increasing position per chr
+	try {
+	    sorter.writeTo(out);
+	} finally {
+	    sorter.close();
+	}
+	out.close();
+
+	if (index) {
+	    // tabix-index the bgzipped output
+	    Index tabixIndex = IndexFactory.createIndex(new File(outFilename), new VCFCodec(), IndexFactory.IndexType.TABIX);
+	    tabixIndex.writeBasedOnFeatureFile(new File(outFilename));
+	}
+    }
+
+    /**
+     * Write the VCF header to out and add the records whose rs# is in the snpBatch files to the sorter at their new positions.
+     */
+    static void liftByRs(String vcfFilename, String[] snpBatchFilenames, PrintStream out, PositionSorter sorter) throws IOException {
+	// load the rs#->chr_pos index, either mapped from a prebuilt .rsindex file or built from the snpBatch files
+	RsIndex rsIndex;
+	if (snpBatchFilenames.length==1 && snpBatchFilenames[0].endsWith(".rsindex")) {
+	    rsIndex = RsIndex.read(new File(snpBatchFilenames[0]));
+	} else {
+	    try {
+		rsIndex = RsIndex.build(snpBatchFilenames);
+	    } catch (IllegalArgumentException e) {
+		System.err.println("ERROR: "+e.getMessage());
+		System.exit(1);
+		return;
 	    }
 	}
 
 	// Now spin through the VCF file spitting out replaced lines if SNP present in map.
 	// 0    1               2               3       4       5       6       7       8       9        ...
 	// 1	194967674	rs380390	G	C	.	.	PR	GT	0/1      ...
-	// Since the order of positions can change, we need to sort the output VCF data before printing it out
-	// for each chromosome.
-	TreeMap<String,TreeMap<Long,String>> chrMap = new TreeMap<String,TreeMap<Long,String>>(); // keyed by chromosome
-	BufferedReader vcfReader = new BufferedReader(new FileReader(vcfFilename));
-	String line = null;
+	// Since the order of positions can change, the lifted records go to a PositionSorter, which sorts them by chromosome and new
+	// position in runs spilled to disk and merges them at the end. The rs# and the remaining fields are carried over as raw bytes.
+	LineReader vcfReader = new LineReader(vcfFilename);
+	TabLine line = null;
 	while ((line=vcfReader.readLine())!=null) {
 	    if (line.startsWith("#")) {
 		// comments come first so dump them
-		System.out.println(line);
+		out.write(line.getBytes(0, line.length()));
+		out.write('\n');
 		continue;
 	    }
-	    String[] fields = line.split("\t");
-	    String chr = fields[0];
+	    String chr = line.get(0);
 	    if (chr.equals("23")) chr = "X"; // ridiculous
 	    if (chr.equals("24")) chr = "Y"; // more ridiculous
-	    String rs = fields[2];
-	    TreeMap<Long,String> posMap = chrMap.get(chr);
-	    if (posMap==null) {
-		posMap = new TreeMap<Long,String>(); // keyed by pos on this chr
-		chrMap.put(chr, posMap);
-	    }
-	    if (snpPositionMap.containsKey(rs)) {
-		long pos = snpPositionMap.get(rs); // the new position
-		String vcfLine = chr+"\t"+pos+"\t"+rs;
-		for (int i=3; i<fields.length; i++) vcfLine += "\t"+fields[i];
-		posMap.put(pos, vcfLine);
+	    int i = rsIndex.indexOf(line.get(2));
+	    if (i>=0) {
+		long pos = rsIndex.getPosition(i); // the new position
+		sorter.add(chr, pos, line.getBytes(line.fieldStart(2), line.length()));
 	    } else {
 		// rs missing, nothing we can do
 	    }
 	}
-	// Dump out the VCF contents by increasing position per chr
-	for (String chr : chrMap.keySet()) {
-	    TreeMap<Long,String> posMap = chrMap.get(chr);
-	    for (long pos : posMap.keySet()) {
-		System.out.println(posMap.get(pos));
+	vcfReader.close();
+    }
+
+    /**
+     * Write the VCF header to out, with the chain's query (destination) contigs, and add the records that map through the chain to the sorter
+     * at their new contigs and positions. Chunks of the VCF are mapped in parallel and added to the sorter in file order.
+     */
+    static void liftByChain(String vcfFilename, ChainIndex chain, PrintStream out, PositionSorter sorter) throws IOException {
+	long[] counts = new long[ChainChunk.COUNTS];
+	LineReader vcfReader = new LineReader(vcfFilename);
+	vcfReader.processChunks(LineReader.DEFAULT_CHUNK_BYTES, lines -> liftChunk(lines, chain), chunk -> {
+		try {
+		    for (TabLine line : chunk.headerLines) {
+			if (line.startsWith("##contig=")) continue; // source assembly contigs
+			if (line.startsWith("#CHROM")) {
+			    for (String contig : chain.getQueryNames()) {
+				out.println("##contig=<ID="+contig+",length="+chain.getQuerySize(contig)+">");
+			    }
+			}
+			out.write(line.getBytes(0, line.length()));
+			out.write('\n');
+		    }
+		    for (int k=0; k<chunk.contigs.size(); k++) {
+			sorter.add(chunk.contigs.get(k), chunk.positions.values[k], chunk.fields.get(k));
+		    }
+		} catch (IOException e) {
+		    throw new RuntimeException(e);
+		}
+		for (int c=0; c<counts.length; c++) counts[c] += chunk.counts[c];
+	    }, true);
+	vcfReader.close();
+	System.err.println("Mapped "+counts[ChainChunk.MAPPED]+" records, "+counts[ChainChunk.MULTIPLE]+" of them covered by more than one chain (highest score used)");
+	System.err.println("Unmapped: "+counts[ChainChunk.UNMAPPED]+" outside the chain blocks, "+counts[ChainChunk.SPLIT]+" split across a block boundary, "+
+			   counts[ChainChunk.REVERSED]+" reverse-strand indels or symbolic alleles");
+    }
+
+    /**
+     * Map the records of a chunk of VCF lines through the chain, passing header lines through.
+     */
+    static ChainChunk liftChunk(List<TabLine> lines, ChainIndex chain) {
+	ChainChunk chunk = new ChainChunk();
+	for (TabLine line : lines) {
+	    if (line.startsWith("#")) {
+		chunk.headerLines.add(line);
+		continue;
+	    }
+	    String chr = line.get(0);
+	    if (chr.equals("23")) chr = "X"; // ridiculous
+	    if (chr.equals("24")) chr = "Y"; // more ridiculous
+	    // the REF span on the plus strand, 0-based
+	    int start = line.getInt(1) - 1;
+	    int end = start + line.fieldEnd(3) - line.fieldStart(3);
+	    ChainIndex.Lift lift = chain.lift(chr, start, end);
+	    if (lift.status==ChainIndex.Lift.UNMAPPED) {
+		chunk.counts[ChainChunk.UNMAPPED]++;
+		continue;
+	    } else if (lift.status==ChainIndex.Lift.SPLIT) {
+		chunk.counts[ChainChunk.SPLIT]++;
+		continue;
+	    }
+	    byte[] fields = line.getBytes(line.fieldStart(2), line.length());
+	    if (lift.negative) {
+		fields = reverseComplementAlleles(line);
+		if (fields==null) {
+		    chunk.counts[ChainChunk.REVERSED]++;
+		    continue;
+		}
 	    }
+	    chunk.counts[ChainChunk.MAPPED]++;
+	    if (lift.hits>1) chunk.counts[ChainChunk.MULTIPLE]++;
+	    chunk.contigs.add(lift.contig);
+	    chunk.positions.add(lift.start+1);
+	    chunk.fields.add(fields);
+	}
+	return chunk;
+    }
+
+    /**
+     * Return the fields from ID on with REF and ALT reverse-complemented, or null if an allele isn't a run of bases as long as REF,
+     * since an indel's padding base would move to its other end, which needs the target sequence.
+     */
+    static byte[] reverseComplementAlleles(TabLine line) {
+	int offset = line.fieldStart(2);
+	byte[] fields = line.getBytes(offset, line.length());
+	int refLength = line.fieldEnd(3) - line.fieldStart(3);
+	if (!reverseComplement(line, line.fieldStart(3), line.fieldEnd(3), refLength, fields, offset)) return null;
+	int altEnd = line.fieldEnd(4);
+	if (altEnd-line.fieldStart(4)==1 && line.byteAt(altEnd-1)=='.') return fields; // no ALT
+	for (int from=line.fieldStart(4); from<altEnd; ) {
+	    int to = line.indexOf((byte) ',', from);
+	    if (to<0 || to>altEnd) to = altEnd;
+	    if (!reverseComplement(line, from, to, refLength, fields, offset)) return null;
+	    from = to + 1;
 	}
+	return fields;
+    }
+
+    /**
+     * Write the reverse complement of the allele in [from,to) of the line into fields, which start at offset on the line,
+     * returning false if the allele isn't a run of bases of the given length.
+     */
+    static boolean reverseComplement(TabLine line, int from, int to, int length, byte[] fields, int offset) {
+	if (to-from!=length) return false;
+	for (int k=0; k<length; k++) {
+	    byte base = complement(line.byteAt(to-1-k));
+	    if (base==0) return false;
+	    fields[from-offset+k] = base;
+	}
+	return true;
+    }
+
+    /**
+     * Return the complement of a base, or 0 if it isn't one.
+     */
+    static byte complement(byte base) {
+	switch (base) {
+	case 'A': return 'T';
+	case 'C': return 'G';
+	case 'G': return 'C';
+	case 'T': return 'A';
+	case 'N': return 'N';
+	case 'a': return 't';
+	case 'c': return 'g';
+	case 'g': return 'c';
+	case 't': return 'a';
+	case 'n': return 'n';
+	default: return 0;
+	}
+    }
+
+    /**
+     * The lifted records of one chunk of a VCF, with its header lines and record counts.
+     */
+    static class ChainChunk {
+	static final int MAPPED = 0;
+	static final int MULTIPLE = 1;
+	static final int UNMAPPED = 2;
+	static final int SPLIT = 3;
+	static final int REVERSED = 4;
+	static final int COUNTS = 5;
+
+	List<TabLine> headerLines = new ArrayList<>();
+	List<String> contigs = new ArrayList<>();
+	RsIndex.LongList positions = new RsIndex.LongList();
+	List<byte[]> fields = new ArrayList<>();
+	long[] counts = new long[COUNTS];
     }
 }
@@ -3,18 +3,14 @@ package org.ncgr.gwas;
 import java.io.BufferedReader;
 import java.io.FileReader;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.stream.Stream;
 
-import org.biojava.nbio.genome.parsers.gff.FeatureI;
-import org.biojava.nbio.genome.parsers.gff.FeatureList;
-import org.biojava.nbio.genome.parsers.gff.Location;
-
-import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.VariantContext;
-import htsjdk.samtools.util.CloseableIterator;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,12 +27,16 @@ import org.apache.commons.cli.ParseException;
  * The tab-delimited locations file can be of the format generated by SNPComparer, but only using the first column, GeneID.
  * The genes are located on the genome by an input GFF file. This can be a remap/liftover type GFF or a plain GFF for the gene's genome.
  *
+ * All genes are located before the VCF is read. Overlapping gene locations are merged into blocks, and each block is fetched
+ * from the indexed VCF with one query, with the contigs counted in parallel, so each call is read once per block rather than once per gene.
+ *
  * Parameters:
  *   -f    --geneFile   list of genes (e.g. generated by SNPComparer)
  *   -g    --gffFile    GFF file giving locations of the genes on the genome of interest
  *   -v    --vcfFile    VCF file giving SNPs on the genome of interest
  *   -a    --altMin     minimum ALT depth for a SNP to be counted
  *   -afm  --altFracMin minimum ALT fraction for a gene to be output
+ *   -x    --dp4Index   total the reads from a DP4Index of the VCF file rather than querying it
  *
  * @author Sam Hokin
  */
@@ -71,6 +71,14 @@ public class SNPReadCounter {
         altFracMinOption.setRequired(true);
         options.addOption(altFracMinOption);
 
+        Option dp4IndexOption = new Option("x", "dp4Index", false, "total the reads from the prefix-sum index [vcfFile].dp4index, building it if needed");
+        dp4IndexOption.setRequired(false);
+        options.addOption(dp4IndexOption);
+
+        Option gffCacheOption = new Option("gc", "gffCache", false, "cache the parsed GFF as [gffFile].gffcache for faster repeat runs");
+        gffCacheOption.setRequired(false);
+        options.addOption(gffCacheOption);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
@@ -93,11 +101,8 @@ public class SNPReadCounter {
         double altFracMin = Double.parseDouble(cmd.getOptionValue("altFracMin"));
 
         // load the GFF file
-        GFFLoader gffLoader = new GFFLoader(gffFilename);
-
-        // load the VCF file
-        VCFLoader vcfLoader = new VCFLoader(vcfFilename);
-        vcfLoader.load();
+        GFFLoader gffLoader = new GFFLoader(gffFilename, cmd.hasOption("gffCache"));
+        GFFTable table = gffLoader.table;
 
         // output parameters
         System.out.println("org.ncgr.gwas.SNPReadCounter");
@@ -108,7 +113,8 @@ public class SNPReadCounter {
         // output header
         System.out.println("Gene\tSeq\tStart\tEnd\tStrand\tCount\tRF\tRR\tAF\tAR\tAltFrac");
 
-        // run through the genes file, which contains the gene ID in the first column
+        // run through the genes file, which contains the gene ID in the first column, locating each gene
+        List<GeneLocus> loci = new ArrayList<>();
         String line;
         BufferedReader reader = new BufferedReader(new FileReader(geneFilename));
         // skip the header
@@ -117,52 +123,112 @@ public class SNPReadCounter {
             String[] parts = line.split("\t");
             String gene = parts[0];
             // search for the gene, could be mapped to more than one place
-            FeatureList genes = gffLoader.searchID(gene);
-            for (FeatureI feature : genes) {
-                String seq = feature.seqname();
-                Location loc = feature.location();
-                int start = loc.start();
-                int end = loc.end();
-                char strand = '+';
-                // if minus strand, indicate with "-" but make start<end
-                if (start<0) {
-                    strand = '-';
-                    int minusStart = -start;
-                    int minusEnd = -end;
-                    start = minusEnd;
-                    end = minusStart;
-                }
-                int refForward = 0;
-                int refReverse = 0;
-                int altForward = 0;
-                int altReverse = 0;
-                int count = 0;
-                // run through the variant calls within this gene
-                List<VariantContext> vcList = vcfLoader.query(seq, start, end).toList();
-                for (VariantContext vc : vcList) {
-                    // read depths
-                    List<Integer> dp4List = vc.getAttributeAsIntList("DP4", 0);
-                    int rF = dp4List.get(0);
-                    int rR = dp4List.get(1);
-                    int aF = dp4List.get(2);
-                    int aR = dp4List.get(3);
-                    // include if enough ALT counts
-                    if (aF+aR>=altMin) {
-                        // increment counts
-                        refForward += rF;
-                        refReverse += rR;
-                        altForward += aF;
-                        altReverse += aR;
-                        count++;
-                    }
-                }
-                double altFrac = (double)(altForward+altReverse)/(double)(refForward+refReverse+altForward+altReverse);
-                if (count>0 && altFrac>=altFracMin) {
-                    System.out.println(gene+"\t"+seq+"\t"+start+"\t"+end+"\t"+strand+"\t"+count+"\t"+refForward+"\t"+refReverse+"\t"+altForward+"\t"+altReverse+"\t"+altFrac);
-                }
+            for (int i : table.find("ID", gene)) {
+                loci.add(new GeneLocus(gene, table.getSeqname(i), table.plusStart(i), table.plusEnd(i), table.getStrand(i)=='-' ? '-' : '+'));
+            }
+        }
+        reader.close();
+
+        // index the loci on each contig as [start,end+1) to match the closed VCF query [start,end]
+        Map<String,IntervalIndex> contigIndexes = new HashMap<>();
+        for (int k=0; k<loci.size(); k++) {
+            GeneLocus locus = loci.get(k);
+            contigIndexes.computeIfAbsent(locus.seq, key -> new IntervalIndex()).add(locus.start, locus.end+1, k);
+        }
+        for (IntervalIndex index : contigIndexes.values()) index.index();
+
+        // sum the read counts of the variant calls within each locus, from the DP4 index or a contig per thread
+        if (cmd.hasOption("dp4Index")) {
+            DP4Index dp4Index = DP4Index.load(vcfFilename, altMin);
+            loci.parallelStream().forEach(locus -> {
+                    long[] totals = dp4Index.sum(locus.seq, locus.start, locus.end, true);
+                    locus.count = (int) totals[0];
+                    locus.refForward = (int) totals[1];
+                    locus.refReverse = (int) totals[2];
+                    locus.altForward = (int) totals[3];
+                    locus.altReverse = (int) totals[4];
+                });
+        } else {
+            contigIndexes.entrySet().parallelStream().forEach(entry -> countReads(vcfFilename, entry.getKey(), entry.getValue(), loci, altMin));
+        }
+
+        for (GeneLocus locus : loci) {
+            double altFrac = (double)(locus.altForward+locus.altReverse)/(double)(locus.refForward+locus.refReverse+locus.altForward+locus.altReverse);
+            if (locus.count>0 && altFrac>=altFracMin) {
+                System.out.println(locus.gene+"\t"+locus.seq+"\t"+locus.start+"\t"+locus.end+"\t"+locus.strand+"\t"+locus.count+"\t"+
+                                   locus.refForward+"\t"+locus.refReverse+"\t"+locus.altForward+"\t"+locus.altReverse+"\t"+altFrac);
             }
         }
         
     }
 
+    /**
+     * Add the DP4 read counts of the variant calls on a contig to the loci that contain them. Overlapping loci are merged into blocks,
+     * each fetched with a single VCF query, and each call is credited to the loci of its block that it overlaps.
+     */
+    static void countReads(String vcfFilename, String seq, IntervalIndex index, List<GeneLocus> loci, int altMin) {
+        VCFLoader vcfLoader = new VCFLoader(vcfFilename);
+        int i = 0;
+        while (i<index.size) {
+            // the block of loci i..j-1 spans [blockStart,blockEnd)
+            int blockStart = index.starts[i];
+            int blockEnd = index.ends[i];
+            int j = i + 1;
+            while (j<index.size && index.starts[j]<blockEnd) {
+                blockEnd = Math.max(blockEnd, index.ends[j]);
+                j++;
+            }
+            Stream<VariantContext> vcStream = vcfLoader.stream(seq, blockStart, blockEnd-1);
+            Iterator<VariantContext> iterator = vcStream.iterator();
+            while (iterator.hasNext()) {
+                VariantContext vc = iterator.next();
+                // read depths
+                List<Integer> dp4List = vc.getAttributeAsIntList("DP4", 0);
+                int rF = dp4List.get(0);
+                int rR = dp4List.get(1);
+                int aF = dp4List.get(2);
+                int aR = dp4List.get(3);
+                // include if enough ALT counts
+                if (aF+aR<altMin) continue;
+                for (int k=i; k<j && index.starts[k]<=vc.getEnd(); k++) {
+                    if (index.ends[k]<=vc.getStart()) continue;
+                    // increment counts
+                    GeneLocus locus = loci.get(index.ids[k]);
+                    locus.refForward += rF;
+                    locus.refReverse += rR;
+                    locus.altForward += aF;
+                    locus.altReverse += aR;
+                    locus.count++;
+                }
+            }
+            vcStream.close();
+            i = j;
+        }
+        vcfLoader.close();
+    }
+
+    /**
+     * A gene's location and its read count totals.
+     */
+    static class GeneLocus {
+        String gene;
+        String seq;
+        int start;
+        int end;
+        char strand;
+        int refForward;
+        int refReverse;
+        int altForward;
+        int altReverse;
+        int count;
+
+        GeneLocus(String gene, String seq, int start, int end, char strand) {
+            this.gene = gene;
+            this.seq = seq;
+            this.start = start;
+            this.end = end;
+            this.strand = strand;
+        }
+    }
+
 }
@@ -0,0 +1,260 @@
+package org.ncgr.gwas;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * A packed matrix of biallelic genotypes stored sample-major, as a PLINK binary fileset in individual-major mode: [prefix].bed holds
+ * each sample's genotypes of every variant contiguously, four to a byte with the codes of GenotypeMatrix, each row padded to a whole
+ * byte. The .bim and .fam files are as for a GenotypeMatrix, which holds them here without genotypes. Per-sample work walks one
+ * contiguous row per sample, and scoring streams each row against a weight per variant and genotype code, samples in parallel.
+ *
+ * The main method transposes a variant-major fileset, or a VCF by way of a temporary one, within a memory budget: the matrix is
+ * cut into tiles of up to TILE_SAMPLES samples by as many variants as fit the budget, and each tile is read from the mapped input,
+ * transposed in memory and written to its place in each sample's row.
+ *
+ * @author Sam Hokin
+ */
+public class SampleMatrix {
+
+    static final byte[] MAGIC = { 0x6c, 0x1b, 0x00 }; // PLINK .bed, sample-major
+    static final int TILE_SAMPLES = 1024;
+    static final int DEFAULT_MEMORY_MB = 256;
+
+    GenotypeMatrix variants; // the samples and variants, without genotypes
+
+    // genotypes
+    int rowBytes;
+    int rowsPerSegment;
+    ByteBuffer[] segments;
+
+    public static void main(String[] args) throws IOException {
+
+        Options options = new Options();
+
+        Option vcfFileOption = new Option("vcf", "vcffile", true, "VCF file to convert, plain or gzipped (or -bfile)");
+        vcfFileOption.setRequired(false);
+        options.addOption(vcfFileOption);
+        //
+        Option plinkPrefixOption = new Option("bfile", "plinkprefix", true, "prefix of a variant-major PLINK .bed/.bim/.fam fileset to transpose");
+        plinkPrefixOption.setRequired(false);
+        options.addOption(plinkPrefixOption);
+        //
+        Option outPrefixOption = new Option("out", "outprefix", true, "prefix of the sample-major .bed, .bim and .fam files to write");
+        outPrefixOption.setRequired(true);
+        options.addOption(outPrefixOption);
+        //
+        Option memoryOption = new Option("mem", "memorymb", true, "memory budget for transpose tiles in MB ("+DEFAULT_MEMORY_MB+")");
+        memoryOption.setRequired(false);
+        options.addOption(memoryOption);
+        //
+        Option skipOption = new Option("skip", "skipmultiallelic", false, "skip multi-allelic VCF sites rather than split them (false)");
+        skipOption.setRequired(false);
+        options.addOption(skipOption);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            formatter.printHelp("SampleMatrix", options);
+            System.exit(1);
+            return;
+        }
+        if (cmd.hasOption("vcffile")==cmd.hasOption("plinkprefix")) {
+            System.err.println("ERROR: exactly one of -vcf and -bfile is required");
+            System.exit(1);
+        }
+
+        String outPrefix = cmd.getOptionValue("outprefix");
+        long memoryBytes = (cmd.hasOption("memorymb") ? Long.parseLong(cmd.getOptionValue("memorymb")) : DEFAULT_MEMORY_MB) << 20;
+        if (cmd.hasOption("plinkprefix")) {
+            String inPrefix = cmd.getOptionValue("plinkprefix");
+            if (new File(inPrefix).getCanonicalPath().equals(new File(outPrefix).getCanonicalPath())) {
+                System.err.println("ERROR: -out must differ from -bfile");
+                System.exit(1);
+            }
+            transpose(GenotypeMatrix.read(inPrefix), inPrefix, outPrefix, memoryBytes);
+        } else {
+            // a variant-major fileset next to the output, removed when done
+            String tmpPrefix = outPrefix+".variantmajor";
+            GenotypeMatrix.write(cmd.getOptionValue("vcffile"), tmpPrefix, cmd.hasOption("skipmultiallelic"));
+            try {
+                transpose(GenotypeMatrix.read(tmpPrefix), tmpPrefix, outPrefix, memoryBytes);
+            } finally {
+                for (String extension : new String[] { ".bed", ".bim", ".fam" }) new File(tmpPrefix+extension).delete();
+            }
+        }
+    }
+
+    /**
+     * Write the genotypes of a variant-major matrix read from inPrefix as a sample-major fileset with the given prefix, holding at most
+     * about memoryBytes of tiles in memory, and copy its .bim and .fam files.
+     */
+    public static void transpose(GenotypeMatrix in, String inPrefix, String outPrefix, long memoryBytes) throws IOException {
+        final int nSamples = in.getSampleCount();
+        final int nVariants = in.getVariantCount();
+        final int outRowBytes = (nVariants+3) / 4;
+        // a tile is held as input rows and as output rows, two bits per genotype each; both sides are multiples of four
+        final int tileSamples = Math.max(4, Math.min(TILE_SAMPLES, 4*in.rowBytes));
+        long maxTileVariants = Math.min(2*memoryBytes, 4L*(Integer.MAX_VALUE-8)) / tileSamples;
+        final int tileVariants = (int) Math.max(4, Math.min(4L*outRowBytes, maxTileVariants & ~3L));
+        final byte[] inTile = new byte[tileVariants/4 * tileSamples];
+        final byte[] outTile = new byte[tileSamples/4 * tileVariants];
+        File bedFile = new File(outPrefix+".bed");
+        try (FileChannel out = FileChannel.open(bedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(out, ByteBuffer.wrap(MAGIC), 0);
+            for (int s0=0; s0<nSamples; s0+=tileSamples) {
+                final int ns = Math.min(tileSamples, nSamples-s0);
+                final int inBytes = (ns+3) / 4;
+                for (int v0=0; v0<nVariants; v0+=tileVariants) {
+                    final int nv = Math.min(tileVariants, nVariants-v0);
+                    final int outBytes = (nv+3) / 4;
+                    for (int k=0; k<nv; k++) in.getRowBytes(v0+k, s0/4, inTile, k*inBytes, inBytes);
+                    // each sample's part of the tile is built on its own thread
+                    IntStream.range(0, ns).parallel().forEach(j -> {
+                            int column = j >>> 2;
+                            int shift = (j&3) << 1;
+                            int base = j*outBytes;
+                            Arrays.fill(outTile, base, base+outBytes, (byte) 0);
+                            for (int k=0; k<nv; k++) {
+                                int code = (inTile[k*inBytes+column] >>> shift) & 3;
+                                outTile[base+(k>>>2)] |= code << ((k&3)<<1);
+                            }
+                        });
+                    for (int j=0; j<ns; j++) {
+                        write(out, ByteBuffer.wrap(outTile, j*outBytes, outBytes), MAGIC.length + (long) (s0+j)*outRowBytes + v0/4);
+                    }
+                }
+            }
+        }
+        Files.copy(new File(inPrefix+".bim").toPath(), new File(outPrefix+".bim").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(new File(inPrefix+".fam").toPath(), new File(outPrefix+".fam").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.err.println("Wrote "+nSamples+" samples of "+nVariants+" variants to "+bedFile+" in tiles of "+tileSamples+" x "+tileVariants);
+    }
+
+    /**
+     * Write all of a buffer to the channel at the given position.
+     */
+    static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    /**
+     * Return true if the .bed file of the fileset with the given prefix is sample-major.
+     */
+    public static boolean isSampleMajor(String prefix) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(prefix+".bed").toPath(), StandardOpenOption.READ)) {
+            return GenotypeMatrix.hasMagic(channel, MAGIC);
+        }
+    }
+
+    /**
+     * Read the .fam and .bim files of the sample-major fileset with the given prefix and memory-map its .bed file.
+     */
+    public static SampleMatrix read(String prefix) throws IOException {
+        SampleMatrix matrix = new SampleMatrix();
+        matrix.variants = GenotypeMatrix.readSamplesAndVariants(prefix);
+        File bedFile = new File(prefix+".bed");
+        int nSamples = matrix.getSampleCount();
+        matrix.rowBytes = (matrix.getVariantCount()+3) / 4;
+        long expected = MAGIC.length + (long) nSamples * matrix.rowBytes;
+        try (FileChannel channel = FileChannel.open(bedFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size()!=expected) throw new IOException(bedFile+" is "+channel.size()+" bytes, expected "+expected);
+            if (!GenotypeMatrix.hasMagic(channel, MAGIC)) throw new IOException(bedFile+" is not a sample-major PLINK .bed file");
+            matrix.rowsPerSegment = Math.max(1, GenotypeMatrix.SEGMENT_BYTES/Math.max(1, matrix.rowBytes));
+            matrix.segments = GenotypeMatrix.map(channel, nSamples, matrix.rowBytes, matrix.rowsPerSegment);
+        }
+        return matrix;
+    }
+
+    /**
+     * Return the samples and variants, for their names, positions, alleles and genotype strings; it has no genotypes.
+     */
+    public GenotypeMatrix getVariants() {
+        return variants;
+    }
+
+    public int getSampleCount() {
+        return variants.getSampleCount();
+    }
+
+    public List<String> getSampleNames() {
+        return variants.getSampleNames();
+    }
+
+    public int getVariantCount() {
+        return variants.getVariantCount();
+    }
+
+    /**
+     * Return the genotype code of sample s at variant v.
+     */
+    public int getGenotype(int s, int v) {
+        return (segments[s/rowsPerSegment].get((s%rowsPerSegment)*rowBytes + (v>>>2)) >>> ((v&3)<<1)) & 3;
+    }
+
+    /**
+     * Copy the packed row of sample s, (getVariantCount()+3)/4 bytes with variant v in bits 2*(v%4) of byte v/4, into row and return it.
+     */
+    public byte[] getRow(int s, byte[] row) {
+        ByteBuffer segment = segments[s/rowsPerSegment].duplicate();
+        segment.position((s%rowsPerSegment)*rowBytes);
+        segment.get(row, 0, rowBytes);
+        return row;
+    }
+
+    /**
+     * Return the number of samples with each genotype code at each of the given variants, indexed by code, in one pass over the rows.
+     */
+    public int[][] count(int[] variantIndexes) {
+        int[][] counts = new int[variantIndexes.length][4];
+        for (int s=0; s<getSampleCount(); s++) {
+            for (int t=0; t<variantIndexes.length; t++) counts[t][getGenotype(s, variantIndexes[t])]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Score every sample against a sparse weight vector, a sample per thread: term t weighs a genotype code at variant variantIndexes[t]
+     * by weights[4*t+code], which is added to the sample's score and counted, unless it's NaN. Terms are added in order, so terms sorted
+     * by variant stream each row forward; a variant may appear in more than one term.
+     */
+    public void score(int[] variantIndexes, double[] weights, double[] scores, int[] counts) {
+        IntStream.range(0, getSampleCount()).parallel().forEach(s -> {
+                ByteBuffer segment = segments[s/rowsPerSegment];
+                int offset = (s%rowsPerSegment) * rowBytes;
+                double score = scores[s];
+                int n = counts[s];
+                for (int t=0; t<variantIndexes.length; t++) {
+                    int v = variantIndexes[t];
+                    double weight = weights[4*t + ((segment.get(offset+(v>>>2)) >>> ((v&3)<<1)) & 3)];
+                    if (Double.isNaN(weight)) continue;
+                    score += weight;
+                    n++;
+                }
+                scores[s] = score;
+                counts[s] = n;
+            });
+    }
+}
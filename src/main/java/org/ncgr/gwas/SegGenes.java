@@ -0,0 +1,271 @@
+package org.ncgr.gwas;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import org.apache.commons.math3.special.Gamma;
+
+/**
+ * Gene-based association from VCFSegregation output: joins the seg records to the genes in a GFF file and outputs a table of
+ * genes ranked by significance, replacing genesig.R, getGeneSeg.R and show.sig.genes.R.
+ *
+ * A gene (a feature of the given type) contains the loci with start<=pos<=end; loci with a NaN (or otherwise non-numeric) p are skipped. For each gene with loci:
+ *   minP      smallest p, at minPos
+ *   meff      effective number of independent tests: loci within window bp of the first locus of a block count once (window 0 counts every locus)
+ *   sidakP    min-p corrected for meff tests, 1-(1-minP)^meff
+ *   fisherP   Fisher's combined p, -2*sum(ln p) on 2*loci degrees of freedom; this assumes independent loci, so is anti-conservative under LD
+ *   nSig      loci with p below sigp
+ *   nNominal  loci with p below nominalp
+ * Genes are ranked by sidakP, then fisherP.
+ *
+ * The seg file should be sorted by position within each contig, as VCFSegregation writes it. Records are parsed in parallel chunks and
+ * joined to each contig's genes by an IntervalSweep in one pass, keeping only running sums per gene, and the gene statistics are then
+ * finished in parallel.
+ *
+ * @author Sam Hokin
+ */
+public class SegGenes {
+
+    static String DEFAULT_TYPE = "gene";
+    static int DEFAULT_WINDOW = 0;
+    static double DEFAULT_SIG_P = 5e-8;
+    static double DEFAULT_NOMINAL_P = 1e-2;
+
+    GFFTable table;
+    int window;
+    double sigP;
+    double nominalP;
+
+    // the genes, by gene index
+    int[] features;             // GFFTable feature index
+    Map<String,IntervalIndex> geneIndexes = new HashMap<>(); // gene indexes keyed by seqname
+
+    // running statistics, by gene index
+    int[] loci;
+    double[] minP;
+    int[] minPos;
+    double[] sumLogP;
+    int[] meff;
+    int[] blockStart;
+    int[] nSig;
+    int[] nNominal;
+
+    // final statistics, by gene index
+    double[] sidakP;
+    double[] fisherP;
+
+    /**
+     * Construct for the features of the given type in the given table.
+     */
+    public SegGenes(GFFTable table, String type, int window, double sigP, double nominalP) {
+        this.table = table;
+        this.window = window;
+        this.sigP = sigP;
+        this.nominalP = nominalP;
+        IntervalIndex.IntList genes = new IntervalIndex.IntList();
+        for (int i=0; i<table.size(); i++) {
+            if (!table.getType(i).equals(type)) continue;
+            geneIndexes.computeIfAbsent(table.getSeqname(i), k -> new IntervalIndex()).add(table.plusStart(i), table.plusEnd(i), genes.size);
+            genes.add(i);
+        }
+        for (IntervalIndex index : geneIndexes.values()) index.index();
+        features = genes.toArray();
+        int n = features.length;
+        loci = new int[n];
+        minP = new double[n];
+        Arrays.fill(minP, 1.0);
+        minPos = new int[n];
+        sumLogP = new double[n];
+        meff = new int[n];
+        blockStart = new int[n];
+        nSig = new int[n];
+        nNominal = new int[n];
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Options options = new Options();
+
+        Option segFileOption = new Option("sf", "segfile", true, "VCFSegregation output file, plain or gzipped");
+        segFileOption.setRequired(true);
+        options.addOption(segFileOption);
+        //
+        Option gffOption = new Option("g", "gff", true, "GFF file");
+        gffOption.setRequired(true);
+        options.addOption(gffOption);
+        //
+        Option typeOption = new Option("t", "type", true, "GFF feature type of the genes ("+DEFAULT_TYPE+")");
+        typeOption.setRequired(false);
+        options.addOption(typeOption);
+        //
+        Option windowOption = new Option("w", "window", true, "loci within this many bp count as one test in meff ("+DEFAULT_WINDOW+")");
+        windowOption.setRequired(false);
+        options.addOption(windowOption);
+        //
+        Option sigPOption = new Option("sp", "sigp", true, "p value below which a locus is significant ("+DEFAULT_SIG_P+")");
+        sigPOption.setRequired(false);
+        options.addOption(sigPOption);
+        //
+        Option nominalPOption = new Option("np", "nominalp", true, "p value below which a locus is nominally significant ("+DEFAULT_NOMINAL_P+")");
+        nominalPOption.setRequired(false);
+        options.addOption(nominalPOption);
+        //
+        Option outFileOption = new Option("out", "outfile", true, "output file, bgzipped if it ends in .gz (STDOUT)");
+        outFileOption.setRequired(false);
+        options.addOption(outFileOption);
+        //
+        Option gffCacheOption = new Option("gc", "gffcache", false, "cache the parsed GFF as [gff].gffcache for faster repeat runs (false)");
+        gffCacheOption.setRequired(false);
+        options.addOption(gffCacheOption);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            formatter.printHelp("SegGenes", options);
+            System.exit(1);
+            return;
+        }
+
+        String type = cmd.hasOption("type") ? cmd.getOptionValue("type") : DEFAULT_TYPE;
+        int window = cmd.hasOption("window") ? Integer.parseInt(cmd.getOptionValue("window")) : DEFAULT_WINDOW;
+        double sigP = cmd.hasOption("sigp") ? Double.parseDouble(cmd.getOptionValue("sigp")) : DEFAULT_SIG_P;
+        double nominalP = cmd.hasOption("nominalp") ? Double.parseDouble(cmd.getOptionValue("nominalp")) : DEFAULT_NOMINAL_P;
+
+        GFFTable table = GFFTable.load(cmd.getOptionValue("gff"), cmd.hasOption("gffcache"));
+        SegGenes segGenes = new SegGenes(table, type, window, sigP, nominalP);
+        if (segGenes.features.length==0) {
+            System.err.println("ERROR: no features of type "+type+" in "+cmd.getOptionValue("gff"));
+            System.exit(1);
+        }
+        segGenes.join(cmd.getOptionValue("segfile"));
+        segGenes.finish();
+
+        PrintStream out = ParallelBGZFOutputStream.openPrintStream(cmd.getOptionValue("outfile"));
+        segGenes.print(out);
+        out.close();
+    }
+
+    /**
+     * Read the seg file, parsing chunks in parallel, and accumulate each locus into the genes that contain it.
+     */
+    public void join(String segFilename) throws IOException {
+        Map<String,IntervalSweep> sweeps = new HashMap<>();
+        LineReader reader = new LineReader(segFilename);
+        reader.processChunks(LineReader.DEFAULT_CHUNK_BYTES, lines -> {
+                List<SegLocus> chunk = new ArrayList<>(lines.size());
+                String contig = "";
+                for (TabLine line : lines) {
+                    if (line.startsWith("#") || line.isBlank()) continue;
+                    if (!line.fieldEquals(0, contig)) contig = line.get(0);
+                    double p;
+                    try {
+                        p = line.getDouble(9);
+                    } catch (NumberFormatException e) {
+                        p = Double.NaN; // e.g. NA
+                    }
+                    if (!Double.isNaN(p)) chunk.add(new SegLocus(contig, line.getInt(1), p));
+                }
+                return chunk;
+            }, chunk -> {
+                String contig = null;
+                IntervalSweep sweep = null;
+                for (SegLocus locus : chunk) {
+                    if (!locus.contig.equals(contig)) {
+                        contig = locus.contig;
+                        IntervalIndex index = geneIndexes.get(contig);
+                        sweep = index==null ? null : sweeps.computeIfAbsent(contig, k -> new IntervalSweep(index));
+                    }
+                    if (sweep==null) continue;
+                    // the base at pos is [pos-1,pos) on the plus strand
+                    int count = sweep.advance(locus.pos-1, locus.pos);
+                    for (int k=0; k<count; k++) add(sweep.activeId(k), locus.pos, locus.p);
+                }
+            }, true);
+        reader.close();
+    }
+
+    /**
+     * Add a locus to the running statistics of gene g.
+     */
+    void add(int g, int pos, double p) {
+        if (loci[g]==0 || pos-blockStart[g]>=window) {
+            meff[g]++;
+            blockStart[g] = pos;
+        }
+        loci[g]++;
+        if (loci[g]==1 || p<minP[g]) {
+            minP[g] = p;
+            minPos[g] = pos;
+        }
+        sumLogP[g] += Math.log(Math.max(p, Double.MIN_VALUE));
+        if (p<sigP) nSig[g]++;
+        if (p<nominalP) nNominal[g]++;
+    }
+
+    /**
+     * Compute the Sidak and Fisher p values of every gene, in parallel.
+     */
+    public void finish() {
+        int n = features.length;
+        sidakP = new double[n];
+        fisherP = new double[n];
+        IntStream.range(0, n).parallel().forEach(g -> {
+                if (loci[g]==0) return;
+                sidakP[g] = -Math.expm1(meff[g]*Math.log1p(-minP[g]));
+                // chi-squared upper tail on 2n df at -2*sum(ln p) is Q(n, -sum(ln p))
+                fisherP[g] = Gamma.regularizedGammaQ(loci[g], -sumLogP[g]);
+            });
+    }
+
+    /**
+     * Print the genes with loci, ranked by Sidak p then Fisher p.
+     */
+    public void print(PrintStream out) {
+        Integer[] order = IntStream.range(0, features.length).filter(g -> loci[g]>0).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, (a, b) -> sidakP[a]!=sidakP[b] ? Double.compare(sidakP[a], sidakP[b]) : Double.compare(fisherP[a], fisherP[b]));
+        out.println("#rank\tID\tName\tseqname\tstart\tend\tloci\tminP\tminPos\tmeff\tsidakP\tfisherP\tnSig\tnNominal");
+        int rank = 0;
+        for (int g : order) {
+            int i = features[g];
+            String id = table.getAttribute(i, "ID");
+            String name = table.getAttribute(i, "Name");
+            out.println(++rank+"\t"+(id==null ? "." : id)+"\t"+(name==null ? "." : name)+"\t"+
+                        table.getSeqname(i)+"\t"+table.getStart(i)+"\t"+table.getEnd(i)+"\t"+
+                        loci[g]+"\t"+minP[g]+"\t"+minPos[g]+"\t"+meff[g]+"\t"+sidakP[g]+"\t"+fisherP[g]+"\t"+nSig[g]+"\t"+nNominal[g]);
+        }
+    }
+
+    /**
+     * The fields of a seg record used in the join.
+     */
+    static class SegLocus {
+        String contig;
+        int pos;
+        double p;
+
+        SegLocus(String contig, int pos, double p) {
+            this.contig = contig;
+            this.pos = pos;
+            this.p = p;
+        }
+    }
+}
@@ -1,11 +1,11 @@
 package org.ncgr.gwas;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Arrays;
@@ -16,6 +16,8 @@ import java.util.HashSet;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -30,17 +32,21 @@ import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.GenotypeType;
 import htsjdk.variant.variantcontext.GenotypesContext;
 import htsjdk.variant.variantcontext.VariantContext;
-import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
-import htsjdk.samtools.util.CloseableIterator;
 
 /**
  * Compute probability risk scores for the subjects in a study with VCF segregation data already computed.
  * PRS is calculated over a provided set of regions (or the entire genome).
+ *
+ * Genotypes may instead be read from a PLINK binary fileset (.bed/.bim/.fam) with -bfile, with variants found by exact position and
+ * their genotype codes scored by table lookup, matching the genotype strings written by VCFSegregation from the same fileset.
+ * A sample-major fileset written by SampleMatrix is scored a sample at a time, each streaming its row against the weights of the
+ * variants at the seg records.
  */
 public class SegPRS {
     static int DEFAULT_MAX_NOCALLS = 1000;
     static double DEFAULT_MIN_MAF = 0.01;
+    static int QUERY_BATCH_SIZE = 1024; // seg records whose calls are read in parallel before they're added
 
     /**
      * Main class outputs a tab-delimited list of subjects and risk scores.
@@ -55,10 +61,14 @@ public class SegPRS {
 	segFileOption.setRequired(true);
 	options.addOption(segFileOption);
 	//					 
-        Option vcfFileOption = new Option("vf", "vcffile", true, "VCF file");
-        vcfFileOption.setRequired(true);
+        Option vcfFileOption = new Option("vf", "vcffile", true, "VCF file (or -bfile)");
+        vcfFileOption.setRequired(false);
         options.addOption(vcfFileOption);
 	//
+	Option plinkPrefixOption = new Option("bfile", "plinkprefix", true, "prefix of PLINK .bed/.bim/.fam files, variant- or sample-major, to read instead of a VCF");
+	plinkPrefixOption.setRequired(false);
+	options.addOption(plinkPrefixOption);
+	//
 	Option labelFileOption = new Option("lf", "labelfile", true, "case/control labels file");
 	labelFileOption.setRequired(true);
 	options.addOption(labelFileOption);
@@ -82,6 +92,14 @@ public class SegPRS {
 	Option nControlsOption = new Option("maxcontrols", "maxcontrols", true, "number of controls to be included in calculation (0=all)");
 	nControlsOption.setRequired(false);
 	options.addOption(nControlsOption);
+	//
+	Option outFileOption = new Option("out", "outfile", true, "output file, bgzipped if it ends in .gz (STDOUT)");
+	outFileOption.setRequired(false);
+	options.addOption(outFileOption);
+	//
+	Option regionCacheOption = new Option("rc", "regioncache", true, "maximum VCF records held in the region cache (0=no cache)");
+	regionCacheOption.setRequired(false);
+	options.addOption(regionCacheOption);
 	
         try {
             cmd = parser.parse(options, args);
@@ -99,6 +117,12 @@ public class SegPRS {
             return;
         }
 
+	// genotypes come from a VCF or a PLINK fileset
+	if (cmd.hasOption("vcffile")==cmd.hasOption("plinkprefix")) {
+	    System.err.println("ERROR: exactly one of -vf and -bfile is required");
+	    System.exit(1);
+	}
+
         // filtering parameters
         double minMAF = DEFAULT_MIN_MAF;
         if (cmd.hasOption("minmaf")) {
@@ -131,12 +155,12 @@ public class SegPRS {
 	int nControls = 0;
 	Map<String,String> sampleLabels = new HashMap<>();
 	String labelFilename = cmd.getOptionValue("labelfile");
-	BufferedReader labelReader = new BufferedReader(new FileReader(labelFilename));
-	String labelLine = null;
+	LineReader labelReader = new LineReader(labelFilename);
+	TabLine labelLine = null;
 	while ((labelLine=labelReader.readLine())!=null) {
-	    String[] fields = labelLine.split("\t");
-	    String name =  fields[0];
-	    String label = fields[1];
+	    if (labelLine.isBlank()) continue;
+	    String name =  labelLine.get(0);
+	    String label = labelLine.get(1);
 	    boolean isCase = label.equals("case");
 	    boolean isControl = label.equals("ctrl");
 	    if (isCase) nCases++;
@@ -146,98 +170,244 @@ public class SegPRS {
 		sampleLabels.put(name, label);
 	    }
 	}
+	labelReader.close();
 
-	// spin through the segregation file and store lines within our desired regions that meet filter conditions
+	// spin through the segregation file in parallel chunks and store lines within our desired regions that meet filter conditions;
+	// only the contig, start and no-call fields are parsed until a line is known to be wanted
+        final int maxNoCallsFinal = maxNoCalls;
         List<SegRecord> segRecords = new LinkedList<>(); // the seg records we want to analyze
 	String segFilename = cmd.getOptionValue("segfile");
-	BufferedReader segReader = new BufferedReader(new FileReader(segFilename));
-	String segLine = null;
-	while ((segLine=segReader.readLine())!=null) {
-	    if (segLine.startsWith("#")) continue;
-	    SegRecord segRecord = new SegRecord(segLine);
-            for (Region region : regions) {
-                // positions
-                if (!segRecord.contig.equals(region.contig)) continue;
-                if (segRecord.start<region.start) continue;
-                if (segRecord.start>region.end) continue;
-                // filters
-                if (segRecord.noCallCount>maxNoCalls) continue;
-                segRecords.add(segRecord);
-            }
-        }
+	LineReader segReader = new LineReader(segFilename);
+	segReader.processChunks(LineReader.DEFAULT_CHUNK_BYTES, lines -> {
+		List<SegRecord> chunkRecords = new LinkedList<>();
+		for (TabLine segLine : lines) {
+		    if (segLine.startsWith("#") || segLine.isBlank()) continue;
+		    SegRecord segRecord = null;
+		    for (Region region : regions) {
+			// positions
+			if (!segLine.fieldEquals(0, region.contig)) continue;
+			int start = segLine.getInt(1);
+			if (start<region.start) continue;
+			if (start>region.end) continue;
+			// filters
+			if (segLine.getInt(5)>maxNoCallsFinal) continue;
+			if (segRecord==null) segRecord = new SegRecord(segLine.toString());
+			chunkRecords.add(segRecord);
+		    }
+		}
+		return chunkRecords;
+	    }, segRecords::addAll, true);
         segReader.close();
         System.err.println("Will analyze "+segRecords.size()+" seg records for "+sampleLabels.size()+" subjects.");
 
-        // spin over the desired seg records, building the PRS for every sample
+        // spin over the desired seg records, building the PRS for every sample; the calls at a batch of seg records are read in parallel
+	// through readers leased from the loader's pool, then added in seg record order
 	ConcurrentSkipListMap<String,Double> samplePRS = new ConcurrentSkipListMap<>(); // keyed by sample name
 	ConcurrentSkipListMap<String,Integer> sampleN = new ConcurrentSkipListMap<>();  // keyed by sample name
-	VCFFileReader vcfReader = new VCFFileReader(new File(cmd.getOptionValue("vcffile")));
-        for (SegRecord segRecord : segRecords) {
-	    // exclude zero and +-infinity odds ratio genotypes
-	    Map<String,Double> oddsRatiosIncludingInfinity = segRecord.getOddsRatios();
-	    Map<String,Double> logOddsRatios = new HashMap<>();
-	    for (String genotype : oddsRatiosIncludingInfinity.keySet()) {
-		double or = oddsRatiosIncludingInfinity.get(genotype);
-		if (or!=Double.POSITIVE_INFINITY && or!=Double.NEGATIVE_INFINITY && Math.abs(or)>0.0) {
-		    logOddsRatios.put(genotype, Math.log10(or));
-		}
+	final double minMAFFinal = minMAF;
+	if (cmd.hasOption("plinkprefix")) {
+	    String plinkPrefix = cmd.getOptionValue("plinkprefix");
+	    if (SampleMatrix.isSampleMajor(plinkPrefix)) {
+		addScores(SampleMatrix.read(plinkPrefix), segRecords, sampleLabels, minMAF, samplePRS, sampleN);
+	    } else {
+		addScores(GenotypeMatrix.read(plinkPrefix), segRecords, sampleLabels, minMAF, samplePRS, sampleN);
 	    }
-	    // DEBUG
-	    System.err.println(segRecord.contig+":"+segRecord.start+"\t"+logOddsRatios);
-	    // we're supposed to close the CloseableIterater when done
-	    CloseableIterator ci = vcfReader.query(segRecord.contig, segRecord.start, segRecord.start);
-	    try {
-		for (Object o : ci.toList()) {
-		    VariantContext vc = (VariantContext) o;
-		    // require at least two genotypes
-		    if (vc.getGenotypes().size()<2) continue;
-		    // minimum MAF criterion
-		    int calledCount = vc.getCalledChrCount();
-		    int numAboveMAF = 0;
-		    for (Allele a : vc.getAlleles()) {
-			int calledAlleleCount = vc.getCalledChrCount(a);
-			double maf = (double)calledAlleleCount / (double)calledCount;
-			if (maf>minMAF) numAboveMAF++; // includes max allele, usually REF
-		    }
-		    if (numAboveMAF<2) continue;
-                    ///////////////////////////////////////////////////////////////////////////////////////////
-		    // update the PRS for each genotype/sample
-		    ConcurrentSkipListSet concurrentGenotypes = new ConcurrentSkipListSet<>(vc.getGenotypes());
-		    concurrentGenotypes.parallelStream().forEach(obj -> {
-			    Genotype g = (Genotype) obj;
-			    if (!g.isNoCall()) {
-				String gString = g.getGenotypeString();
-				String sampleName = g.getSampleName();
-				if (sampleLabels.containsKey(sampleName) && logOddsRatios.containsKey(gString)) {
-				    double logOR = logOddsRatios.get(gString);
-				    if (samplePRS.containsKey(sampleName)) {
-					double prs = samplePRS.get(sampleName);
-					prs += logOR;
-					samplePRS.put(sampleName, prs);
-					int n = sampleN.get(sampleName);
-					n++;
-					sampleN.put(sampleName, n);
-				    } else {
-					samplePRS.put(sampleName, logOR);
-					sampleN.put(sampleName, 1);
+	} else {
+	    VCFLoader vcfLoader = new VCFLoader(cmd.getOptionValue("vcffile"));
+	    if (cmd.hasOption("regioncache")) vcfLoader.setRegionCacheLimit(Integer.parseInt(cmd.getOptionValue("regioncache")));
+	    List<SegRecord> segRecordList = new ArrayList<>(segRecords);
+	    for (int from=0; from<segRecordList.size(); from+=QUERY_BATCH_SIZE) {
+		List<SegRecord> batch = segRecordList.subList(from, Math.min(from+QUERY_BATCH_SIZE, segRecordList.size()));
+		List<List<VariantContext>> batchCalls = batch.parallelStream().map(segRecord -> getCalls(vcfLoader, segRecord, minMAFFinal)).collect(Collectors.toList());
+		for (int k=0; k<batch.size(); k++) {
+		    SegRecord segRecord = batch.get(k);
+		    Map<String,Double> logOddsRatios = getLogOddsRatios(segRecord);
+		    // DEBUG
+		    System.err.println(segRecord.contig+":"+segRecord.start+"\t"+logOddsRatios);
+		    for (VariantContext vc : batchCalls.get(k)) {
+			///////////////////////////////////////////////////////////////////////////////////////////
+			// update the PRS for each genotype/sample
+			ConcurrentSkipListSet concurrentGenotypes = new ConcurrentSkipListSet<>(vc.getGenotypes());
+			concurrentGenotypes.parallelStream().forEach(obj -> {
+				Genotype g = (Genotype) obj;
+				if (!g.isNoCall()) {
+				    String gString = g.getGenotypeString();
+				    String sampleName = g.getSampleName();
+				    if (sampleLabels.containsKey(sampleName) && logOddsRatios.containsKey(gString)) {
+					double logOR = logOddsRatios.get(gString);
+					if (samplePRS.containsKey(sampleName)) {
+					    double prs = samplePRS.get(sampleName);
+					    prs += logOR;
+					    samplePRS.put(sampleName, prs);
+					    int n = sampleN.get(sampleName);
+					    n++;
+					    sampleN.put(sampleName, n);
+					} else {
+					    samplePRS.put(sampleName, logOR);
+					    sampleN.put(sampleName, 1);
+					}
 				    }
 				}
-			    }
-			});
-                    ///////////////////////////////////////////////////////////////////////////////////////////
+			    });
+			///////////////////////////////////////////////////////////////////////////////////////////
+		    }
 		}
-	    } catch (Exception e) {
-		System.err.println(e);
-	    } finally {
-		ci.close();
 	    }
+	    if (cmd.hasOption("regioncache")) System.err.println("VCF region cache: "+vcfLoader.getCacheHits()+" hits, "+vcfLoader.getCacheMisses()+" misses");
+	    vcfLoader.close();
 	}
-	vcfReader.close();
 
 	// output results
-	System.out.println("sample\tlabel\tscore");
+	PrintStream out = ParallelBGZFOutputStream.openPrintStream(cmd.getOptionValue("outfile"));
+	out.println("sample\tlabel\tscore");
 	for (String sampleName : samplePRS.keySet()) {
-	    System.out.println(sampleName+"\t"+sampleLabels.get(sampleName)+"\t"+samplePRS.get(sampleName)/sampleN.get(sampleName));
+	    out.println(sampleName+"\t"+sampleLabels.get(sampleName)+"\t"+samplePRS.get(sampleName)/sampleN.get(sampleName));
+	}
+	out.close();
+    }
+
+    /**
+     * Return the log10 odds ratios of a seg record's genotypes, excluding zero and +-infinity odds ratio genotypes.
+     */
+    static Map<String,Double> getLogOddsRatios(SegRecord segRecord) {
+	Map<String,Double> oddsRatiosIncludingInfinity = segRecord.getOddsRatios();
+	Map<String,Double> logOddsRatios = new HashMap<>();
+	for (String genotype : oddsRatiosIncludingInfinity.keySet()) {
+	    double or = oddsRatiosIncludingInfinity.get(genotype);
+	    if (or!=Double.POSITIVE_INFINITY && or!=Double.NEGATIVE_INFINITY && Math.abs(or)>0.0) {
+		logOddsRatios.put(genotype, Math.log10(or));
+	    }
+	}
+	return logOddsRatios;
+    }
+
+    /**
+     * Add the scores of the labeled samples of a PLINK fileset at each seg record to samplePRS and sampleN, as for the calls of a VCF:
+     * variants at a seg record's position need at least two samples and both alleles above minMAF, and a sample's genotype is scored
+     * by the log odds ratio of its genotype string, with no-calls and genotypes without one skipped.
+     */
+    static void addScores(GenotypeMatrix matrix, List<SegRecord> segRecords, Map<String,String> sampleLabels, double minMAF,
+			  Map<String,Double> samplePRS, Map<String,Integer> sampleN) {
+	int nSamples = matrix.getSampleCount();
+	double[] scores = new double[nSamples];
+	int[] counts = new int[nSamples];
+	long[] allMask = matrix.getMask(matrix.getSampleNames());
+	long[] row = new long[matrix.getWordCount()];
+	double[] codeScores = new double[4];
+	for (SegRecord segRecord : segRecords) {
+	    Map<String,Double> logOddsRatios = getLogOddsRatios(segRecord);
+	    // require at least two genotypes
+	    if (nSamples<2) continue;
+	    for (int v : matrix.find(segRecord.contig, segRecord.start)) {
+		matrix.getRow(v, row);
+		// minimum MAF criterion
+		if (!isAboveMAF(GenotypeMatrix.count(row, allMask), minMAF)) continue;
+		setCodeScores(matrix, v, logOddsRatios, codeScores, 0);
+		matrix.addScores(row, codeScores, scores, counts);
+	    }
+	}
+	putScores(matrix.getSampleNames(), scores, counts, sampleLabels, samplePRS, sampleN);
+    }
+
+    /**
+     * Add the scores of the labeled samples of a sample-major PLINK fileset at each seg record to samplePRS and sampleN, as for a
+     * variant-major one. The variants passing the filters become terms of a weight vector, in seg record order, and each sample's
+     * row is streamed against it.
+     */
+    static void addScores(SampleMatrix matrix, List<SegRecord> segRecords, Map<String,String> sampleLabels, double minMAF,
+			  Map<String,Double> samplePRS, Map<String,Integer> sampleN) {
+	GenotypeMatrix variants = matrix.getVariants();
+	int nSamples = matrix.getSampleCount();
+	// the variants at each seg record's position and their seg records' log odds ratios
+	IntervalIndex.IntList candidates = new IntervalIndex.IntList();
+	List<Map<String,Double>> candidateLogOddsRatios = new ArrayList<>();
+	for (SegRecord segRecord : segRecords) {
+	    Map<String,Double> logOddsRatios = getLogOddsRatios(segRecord);
+	    // require at least two genotypes
+	    if (nSamples<2) continue;
+	    for (int v : variants.find(segRecord.contig, segRecord.start)) {
+		candidates.add(v);
+		candidateLogOddsRatios.add(logOddsRatios);
+	    }
+	}
+	// minimum MAF criterion, from the genotype counts of all candidates in one pass
+	int[][] candidateCounts = matrix.count(Arrays.copyOf(candidates.values, candidates.size));
+	IntervalIndex.IntList terms = new IntervalIndex.IntList();
+	double[] weights = new double[4*candidates.size];
+	for (int c=0; c<candidates.size; c++) {
+	    if (!isAboveMAF(candidateCounts[c], minMAF)) continue;
+	    setCodeScores(variants, candidates.values[c], candidateLogOddsRatios.get(c), weights, 4*terms.size);
+	    terms.add(candidates.values[c]);
+	}
+	double[] scores = new double[nSamples];
+	int[] counts = new int[nSamples];
+	matrix.score(Arrays.copyOf(terms.values, terms.size), weights, scores, counts);
+	putScores(matrix.getSampleNames(), scores, counts, sampleLabels, samplePRS, sampleN);
+    }
+
+    /**
+     * Return true if both alleles of a biallelic variant with the given genotype counts, indexed by code, are above minMAF.
+     */
+    static boolean isAboveMAF(int[] genotypeCounts, double minMAF) {
+	int refCount = 2*genotypeCounts[GenotypeMatrix.HOM_REF] + genotypeCounts[GenotypeMatrix.HET];
+	int altCount = 2*genotypeCounts[GenotypeMatrix.HOM_ALT] + genotypeCounts[GenotypeMatrix.HET];
+	int calledCount = refCount + altCount;
+	int numAboveMAF = 0;
+	if ((double)refCount/(double)calledCount>minMAF) numAboveMAF++;
+	if ((double)altCount/(double)calledCount>minMAF) numAboveMAF++;
+	return numAboveMAF==2;
+    }
+
+    /**
+     * Set the scores of the four genotype codes of variant v from offset in codeScores, NaN for no-calls and genotypes without a log odds ratio.
+     */
+    static void setCodeScores(GenotypeMatrix matrix, int v, Map<String,Double> logOddsRatios, double[] codeScores, int offset) {
+	for (int code=0; code<4; code++) {
+	    Double logOR = code==GenotypeMatrix.MISSING ? null : logOddsRatios.get(matrix.getGenotypeString(v, code));
+	    codeScores[offset+code] = logOR==null ? Double.NaN : logOR;
+	}
+    }
+
+    /**
+     * Put the scores and counts of the labeled samples with at least one scored genotype into samplePRS and sampleN.
+     */
+    static void putScores(List<String> sampleNames, double[] scores, int[] counts, Map<String,String> sampleLabels,
+			  Map<String,Double> samplePRS, Map<String,Integer> sampleN) {
+	for (int s=0; s<sampleNames.size(); s++) {
+	    String sampleName = sampleNames.get(s);
+	    if (counts[s]>0 && sampleLabels.containsKey(sampleName)) {
+		samplePRS.put(sampleName, scores[s]);
+		sampleN.put(sampleName, counts[s]);
+	    }
+	}
+    }
+
+    /**
+     * Return the calls at a seg record's position that have at least two genotypes and at least two alleles above minMAF.
+     */
+    static List<VariantContext> getCalls(VCFLoader vcfLoader, SegRecord segRecord, double minMAF) {
+	List<VariantContext> calls = new ArrayList<>();
+	// we're supposed to close the stream when done
+	try (Stream<VariantContext> vcs = vcfLoader.stream(segRecord.contig, segRecord.start, segRecord.start)) {
+	    Iterator<VariantContext> iterator = vcs.iterator();
+	    while (iterator.hasNext()) {
+		VariantContext vc = iterator.next();
+		// require at least two genotypes
+		if (vc.getGenotypes().size()<2) continue;
+		// minimum MAF criterion
+		int calledCount = vc.getCalledChrCount();
+		int numAboveMAF = 0;
+		for (Allele a : vc.getAlleles()) {
+		    int calledAlleleCount = vc.getCalledChrCount(a);
+		    double maf = (double)calledAlleleCount / (double)calledCount;
+		    if (maf>minMAF) numAboveMAF++; // includes max allele, usually REF
+		}
+		if (numAboveMAF<2) continue;
+		calls.add(vc);
+	    }
+	} catch (Exception e) {
+	    System.err.println(e);
 	}
+	return calls;
     }
 }
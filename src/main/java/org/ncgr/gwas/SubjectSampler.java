@@ -0,0 +1,69 @@
+package org.ncgr.gwas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Draws seeded random subsamples of subjects, optionally matching controls to cases by stratum (e.g. SEX and RACE).
+ *
+ * Selection is a partial Fisher-Yates shuffle of a copy of the candidates, so drawing n of N takes O(N) to copy and O(n) to select,
+ * and the same seed and candidates always give the same subsamples. Successive calls continue the same random sequence,
+ * so replicates are independent yet reproducible.
+ *
+ * @author Sam Hokin
+ */
+public class SubjectSampler {
+
+    Random random;
+
+    /**
+     * Construct with the given seed.
+     */
+    public SubjectSampler(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Return n items drawn at random without replacement from the given items, which are not modified.
+     */
+    public <T> List<T> sample(List<T> items, int n) {
+        if (n>items.size()) throw new IllegalArgumentException("Cannot draw "+n+" from "+items.size()+" subjects.");
+        List<T> pool = new ArrayList<>(items);
+        for (int i=0; i<n; i++) {
+            int j = i + random.nextInt(pool.size()-i);
+            T swap = pool.get(i);
+            pool.set(i, pool.get(j));
+            pool.set(j, swap);
+        }
+        return new ArrayList<>(pool.subList(0, n));
+    }
+
+    /**
+     * Return controls drawn at random so that each stratum has as many controls as the given cases have.
+     * Strata are given by the strata map, keyed by subject; subjects missing from it form a single blank stratum.
+     */
+    public List<String> sampleMatched(List<String> cases, List<String> controls, Map<String,String> strata) {
+        Map<String,Integer> caseCounts = new TreeMap<>(); // sorted so that draws don't depend on hash order
+        for (String subject : cases) {
+            caseCounts.merge(strata.getOrDefault(subject, ""), 1, Integer::sum);
+        }
+        Map<String,List<String>> stratumControls = new HashMap<>();
+        for (String subject : controls) {
+            stratumControls.computeIfAbsent(strata.getOrDefault(subject, ""), k -> new ArrayList<>()).add(subject);
+        }
+        List<String> matched = new ArrayList<>();
+        for (String stratum : caseCounts.keySet()) {
+            int n = caseCounts.get(stratum);
+            List<String> candidates = stratumControls.getOrDefault(stratum, new ArrayList<>());
+            if (candidates.size()<n) {
+                throw new IllegalArgumentException("Stratum ["+stratum+"] has "+n+" cases but only "+candidates.size()+" controls.");
+            }
+            matched.addAll(sample(candidates, n));
+        }
+        return matched;
+    }
+}
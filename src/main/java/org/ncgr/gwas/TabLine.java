@@ -0,0 +1,276 @@
+package org.ncgr.gwas;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+
+/**
+ * A single line of a tab-delimited text file, as a view onto the buffer it was read from.
+ *
+ * Field boundaries are found lazily, only as far as the highest field requested, so a caller that needs the first few fields
+ * of a very wide line never scans the rest of it. No regex or String[] is involved, and numeric fields are parsed in place.
+ * Positions passed to and returned by indexOf and the range methods are relative to the start of the line.
+ *
+ * @author Sam Hokin
+ */
+public class TabLine {
+
+    static final byte TAB = '\t';
+
+    final ByteBuffer buffer;
+    final int start; // absolute offset of the first byte in buffer
+    final int end;   // absolute offset just past the last byte, excluding any line terminator
+
+    int[] fieldStarts = new int[8]; // relative start of each field found so far
+    int fieldsFound = 0;            // number of fields whose start has been found
+    boolean scanned = false;        // true when all fields have been found
+
+    /**
+     * Construct a view onto buffer[start,end).
+     */
+    public TabLine(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Construct from a String, for lines that don't come from a LineReader.
+     */
+    public TabLine(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        this.buffer = ByteBuffer.wrap(bytes);
+        this.start = 0;
+        this.end = bytes.length;
+    }
+
+    /**
+     * Return the length of the line in bytes.
+     */
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * Return the byte at the given relative position.
+     */
+    public byte byteAt(int pos) {
+        return buffer.get(start+pos);
+    }
+
+    /**
+     * Return true if the line is empty or only whitespace.
+     */
+    public boolean isBlank() {
+        for (int i=start; i<end; i++) {
+            if (buffer.get(i)>' ') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the line starts with the given ASCII prefix.
+     */
+    public boolean startsWith(String prefix) {
+        return regionEquals(0, length(), prefix, true);
+    }
+
+    /**
+     * Return the relative position of the next occurrence of b at or after from, or -1 if none.
+     */
+    public int indexOf(byte b, int from) {
+        for (int i=start+from; i<end; i++) {
+            if (buffer.get(i)==b) return i - start;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the number of fields on the line, scanning the whole line.
+     */
+    public int size() {
+        scanTo(Integer.MAX_VALUE);
+        return fieldsFound;
+    }
+
+    /**
+     * Return true if the line has a field i, scanning only as far as needed.
+     */
+    public boolean hasField(int i) {
+        scanTo(i);
+        return i<fieldsFound;
+    }
+
+    /**
+     * Return the relative start of field i.
+     */
+    public int fieldStart(int i) {
+        scanTo(i);
+        if (i>=fieldsFound) throw new ArrayIndexOutOfBoundsException("Field "+i+" requested from line with "+fieldsFound+" fields: "+this);
+        return fieldStarts[i];
+    }
+
+    /**
+     * Return the relative end (exclusive) of field i.
+     */
+    public int fieldEnd(int i) {
+        fieldStart(i);
+        scanTo(i+1);
+        return i+1<fieldsFound ? fieldStarts[i+1]-1 : length();
+    }
+
+    /**
+     * Return field i as a String.
+     */
+    public String get(int i) {
+        return substring(fieldStart(i), fieldEnd(i));
+    }
+
+    /**
+     * Return the rest of the line starting at field i, tabs included.
+     */
+    public String getFrom(int i) {
+        return substring(fieldStart(i), length());
+    }
+
+    /**
+     * Return true if field i equals the given ASCII string.
+     */
+    public boolean fieldEquals(int i, String s) {
+        int from = fieldStart(i);
+        return regionEquals(from, fieldEnd(i), s, false);
+    }
+
+    /**
+     * Return true if field i is empty or only whitespace.
+     */
+    public boolean isFieldBlank(int i) {
+        int to = fieldEnd(i);
+        for (int k=fieldStart(i); k<to; k++) {
+            if (byteAt(k)>' ') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse field i as an int without creating a String.
+     */
+    public int getInt(int i) {
+        long value = getLong(i);
+        if (value<Integer.MIN_VALUE || value>Integer.MAX_VALUE) throw new NumberFormatException("Field "+i+" out of int range: "+get(i));
+        return (int) value;
+    }
+
+    /**
+     * Parse field i as a long without creating a String.
+     */
+    public long getLong(int i) {
+        return parseLong(fieldStart(i), fieldEnd(i));
+    }
+
+    /**
+     * Parse the relative range [from,to) as a long without creating a String.
+     */
+    public long parseLong(int from, int to) {
+        if (from>=to) throw new NumberFormatException("Empty number on line: "+this);
+        boolean negative = false;
+        int k = from;
+        byte first = byteAt(k);
+        if (first=='-' || first=='+') {
+            negative = first=='-';
+            k++;
+            if (k==to) throw new NumberFormatException("Bad number "+substring(from,to));
+        }
+        long value = 0;
+        for (; k<to; k++) {
+            int digit = byteAt(k) - '0';
+            if (digit<0 || digit>9) throw new NumberFormatException("Bad number "+substring(from,to));
+            value = value*10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse field i as a double.
+     */
+    public double getDouble(int i) {
+        return Double.parseDouble(get(i));
+    }
+
+    /**
+     * Return the relative range [from,to) as a String.
+     */
+    public String substring(int from, int to) {
+        int length = to - from;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset()+start+from, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int k=0; k<length; k++) bytes[k] = buffer.get(start+from+k);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return a copy of the bytes of the relative range [from,to), for carrying fields along without decoding them.
+     */
+    public byte[] getBytes(int from, int to) {
+        byte[] bytes = new byte[to-from];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset()+start+from, bytes, 0, bytes.length);
+        } else {
+            ByteBuffer source = buffer.duplicate();
+            source.position(start+from);
+            source.get(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Return a hash of the relative range [from,to) matching the hash FieldIndex computes for its keys.
+     */
+    public int hash(int from, int to) {
+        int h = 0;
+        for (int k=start+from; k<start+to; k++) h = 31*h + buffer.get(k);
+        return h;
+    }
+
+    /**
+     * Return true if the relative range [from,to) equals the ASCII string s, or starts with it if prefix is true.
+     */
+    public boolean regionEquals(int from, int to, String s, boolean prefix) {
+        int n = s.length();
+        if (prefix ? to-from<n : to-from!=n) return false;
+        for (int k=0; k<n; k++) {
+            if (buffer.get(start+from+k)!=(byte) s.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the whole line as a String.
+     */
+    public String toString() {
+        return substring(0, length());
+    }
+
+    /**
+     * Find field starts up to and including field i, or all of them if i is past the end.
+     */
+    void scanTo(int i) {
+        if (scanned || i<fieldsFound) return;
+        if (fieldsFound==0) {
+            fieldStarts[0] = 0;
+            fieldsFound = 1;
+        }
+        while (fieldsFound<=i) {
+            int tab = indexOf(TAB, fieldStarts[fieldsFound-1]);
+            if (tab<0) {
+                scanned = true;
+                return;
+            }
+            if (fieldsFound==fieldStarts.length) fieldStarts = Arrays.copyOf(fieldStarts, fieldStarts.length*2);
+            fieldStarts[fieldsFound++] = tab + 1;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.ncgr.gwas;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.util.CloseableIterator;
+
+import htsjdk.tribble.readers.AsciiLineReader;
+import htsjdk.tribble.readers.AsciiLineReaderIterator;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+
+/**
+ * Iterates over all the records of a VCF file from start to end, decoding them with htsjdk's VCFCodec.
+ *
+ * Unlike VCFFileReader.iterator(), a bgzipped file is inflated on several threads by ParallelBGZFInputStream,
+ * and no index is needed. Use VCFFileReader.query() for regions.
+ *
+ * @author Sam Hokin
+ */
+public class VCFLineIterator implements CloseableIterator<VariantContext> {
+
+    AsciiLineReaderIterator lines;
+    VCFCodec codec = new VCFCodec();
+    VCFHeader header;
+
+    /**
+     * Open the given VCF file, plain or gzipped, and read its header.
+     */
+    public VCFLineIterator(String filename) throws IOException {
+        lines = new AsciiLineReaderIterator(AsciiLineReader.from(ParallelBGZFInputStream.open(filename)));
+        header = (VCFHeader) codec.readActualHeader(lines);
+    }
+
+    /**
+     * Return the VCF header.
+     */
+    public VCFHeader getHeader() {
+        return header;
+    }
+
+    public boolean hasNext() {
+        return lines.hasNext();
+    }
+
+    public VariantContext next() {
+        if (!lines.hasNext()) throw new NoSuchElementException();
+        return codec.decode(lines.next());
+    }
+
+    public void close() {
+        try {
+            lines.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,30 +1,81 @@
 package org.ncgr.gwas;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.IntervalList;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.TribbleException;
+import htsjdk.tribble.index.IndexFactory;
 import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.LazyGenotypesContext;
 import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
 import htsjdk.variant.vcf.VCFFileReader;
 
 /**
  * Loads a VCF file and provides handy methods.
  *
+ * Records can be streamed lazily with stream(), from start to end, or stream(contig,start,end), for a region. parallelStream()
+ * partitions the file by contig, or by regions of a given length, and reads each partition through its own reader over the index.
+ * With a cache limit, the first complete pass of stream() keeps the records if there are no more than that many, and later streams
+ * and region streams are served from memory; load() reads the whole file into memory regardless. Records held in memory are grouped
+ * by contig in start order, so a region is found by binary search on its start, reaching back by the contig's longest record span.
+ *
+ * VCFFileReader isn't safe for concurrent queries, so region streams and partitions lease readers over the same file from a pool,
+ * one per thread at a time, and return them when closed; query() and iterator() use the single reader. With a region cache limit,
+ * region streams are read from an LRU cache of recent regions, keyed by contig, start and end and bounded by their total number
+ * of records, with counts of hits and misses.
+ *
  * @author Sam Hokin
  */
 public class VCFLoader {
 
+    public String filename;
     public VCFFileReader reader;
     public List<VariantContext> vcList;
+    int cacheLimit;
+    Map<String,ContigRecords> contigRecords; // vcList by contig, in start order
+
+    // readers over the same file that aren't leased
+    ConcurrentLinkedDeque<VCFFileReader> idleReaders = new ConcurrentLinkedDeque<>();
+
+    // recent region queries, least recently used first
+    int regionCacheLimit;
+    long regionCacheRecords;
+    LinkedHashMap<String,List<VariantContext>> regionCache = new LinkedHashMap<>(16, 0.75f, true);
+    AtomicLong cacheHits = new AtomicLong();
+    AtomicLong cacheMisses = new AtomicLong();
 
     /**
      * Construct by setting the VCFFileReader (but not reading through it, which can take a long time)
      */
     public VCFLoader(String filename) {
+        this(filename, 0);
+    }
+
+    /**
+     * Construct with a limit on the number of records cached by stream(); zero for no cache.
+     */
+    public VCFLoader(String filename, int cacheLimit) {
+        this.filename = filename;
+        this.cacheLimit = cacheLimit;
         this.reader = new VCFFileReader(new File(filename));
     }
 
@@ -32,10 +83,23 @@ public class VCFLoader {
      * Load the VCF records into the vcList
      */
     public void load() {
-        vcList = new LinkedList<VariantContext>();
+        List<VariantContext> records = new ArrayList<VariantContext>();
         for (VariantContext vc : reader) {
-            vcList.add(vc);
+            records.add(vc);
         }
+        setRecords(records);
+    }
+
+    /**
+     * Hold all the records in memory, grouping them by contig in start order for region streams.
+     */
+    void setRecords(List<VariantContext> records) {
+        Map<String,List<VariantContext>> byContig = new HashMap<>();
+        for (VariantContext vc : records) byContig.computeIfAbsent(vc.getContig(), k -> new ArrayList<>()).add(vc);
+        Map<String,ContigRecords> grouped = new HashMap<>();
+        for (Map.Entry<String,List<VariantContext>> entry : byContig.entrySet()) grouped.put(entry.getKey(), new ContigRecords(entry.getValue()));
+        contigRecords = grouped;
+        vcList = records;
     }
 
     /**
@@ -49,33 +113,26 @@ public class VCFLoader {
 
         String vcfFilename = args[0];
         // default is to output only SNP records
-        boolean allRecords = false;
-        if (args.length>1) {
-            allRecords = Boolean.parseBoolean(args[1]);
-        }
-        
+        boolean allRecords = args.length>1 && Boolean.parseBoolean(args[1]);
+
         VCFLoader loader = new VCFLoader(vcfFilename);
-        loader.load();
-
-        for (VariantContext vc : loader.vcList) {
-            if (allRecords || vc.isSNP()) {
-                // values
-                String id = vc.getID();
-                String source = vc.getSource();
-                String contig = vc.getContig();
-                List<String> sampleNames = vc.getSampleNamesOrderedByName();
-                int start = vc.getStart();
-                Allele ref = vc.getReference();
-                List<Allele> alts = vc.getAlternateAlleles();
-                List<Integer> dp4List = vc.getAttributeAsIntList("DP4", 0);
-                // output
-                String altString = "";
-                for (Allele alt : alts) {
-                    if (altString.length()>0) altString += ",";
-                    altString += alt.getBaseString();
-                }                
-                System.out.println(contig+"\t"+start+"\t"+ref.getBaseString()+"\t"+altString+"\t"+dp4List.get(0)+"\t"+dp4List.get(1)+"\t"+dp4List.get(2)+"\t"+dp4List.get(3));
-            }
+
+        try (Stream<VariantContext> vcStream = loader.stream()) {
+            vcStream.filter(vc -> allRecords || vc.isSNP()).forEach(vc -> {
+                    // values
+                    String contig = vc.getContig();
+                    int start = vc.getStart();
+                    Allele ref = vc.getReference();
+                    List<Allele> alts = vc.getAlternateAlleles();
+                    List<Integer> dp4List = vc.getAttributeAsIntList("DP4", 0);
+                    // output
+                    String altString = "";
+                    for (Allele alt : alts) {
+                        if (altString.length()>0) altString += ",";
+                        altString += alt.getBaseString();
+                    }
+                    System.out.println(contig+"\t"+start+"\t"+ref.getBaseString()+"\t"+altString+"\t"+dp4List.get(0)+"\t"+dp4List.get(1)+"\t"+dp4List.get(2)+"\t"+dp4List.get(3));
+                });
         }
     }
 
@@ -92,5 +149,264 @@ public class VCFLoader {
     public CloseableIterator<VariantContext> iterator() {
         return reader.iterator();
     }
-    
+
+    /**
+     * Return a lazy stream over all records in file order, to be closed when done. The file is read with a VCFLineIterator,
+     * which inflates a bgzipped file on several threads.
+     */
+    public Stream<VariantContext> stream() {
+        if (vcList!=null) return vcList.stream();
+        VCFLineIterator iterator;
+        try {
+            iterator = new VCFLineIterator(filename);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Iterator<VariantContext> records = cacheLimit>0 ? new CachingIterator(iterator) : iterator;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED|Spliterator.NONNULL), false).onClose(iterator::close);
+    }
+
+    /**
+     * Return a lazy stream over the records overlapping the closed region [start,end] of a contig, as with query, to be closed when done.
+     * Safe to call from several threads at once; the region cache, if any, is used.
+     */
+    public Stream<VariantContext> stream(String contig, int start, int end) {
+        if (vcList!=null) {
+            ContigRecords records = contigRecords.get(contig);
+            return records==null ? Stream.empty() : records.overlapping(start, end);
+        }
+        if (regionCacheLimit>0) return queryList(new Region(contig, start, end)).stream();
+        VCFFileReader regionReader = leaseReader();
+        return stream(regionReader.query(contig, start, end)).onClose(() -> releaseReader(regionReader));
+    }
+
+    /**
+     * Return the records overlapping a region from the region cache, reading them with a leased reader on a miss.
+     */
+    List<VariantContext> queryList(Region region) {
+        String key = region.toString();
+        synchronized (regionCache) {
+            List<VariantContext> cached = regionCache.get(key);
+            if (cached!=null) {
+                cacheHits.incrementAndGet();
+                return cached;
+            }
+        }
+        cacheMisses.incrementAndGet();
+        List<VariantContext> records = new ArrayList<>();
+        VCFFileReader regionReader = leaseReader();
+        try (CloseableIterator<VariantContext> iterator = regionReader.query(region.contig, region.start, region.end)) {
+            while (iterator.hasNext()) {
+                VariantContext vc = iterator.next();
+                // decode the genotypes now, since cached records are shared between threads
+                if (vc.getGenotypes() instanceof LazyGenotypesContext) ((LazyGenotypesContext) vc.getGenotypes()).decode();
+                records.add(vc);
+            }
+        } finally {
+            releaseReader(regionReader);
+        }
+        if (records.size()<=regionCacheLimit) {
+            synchronized (regionCache) {
+                if (regionCache.put(key, records)==null) regionCacheRecords += records.size();
+                Iterator<List<VariantContext>> eldest = regionCache.values().iterator();
+                while (regionCacheRecords>regionCacheLimit) {
+                    regionCacheRecords -= eldest.next().size();
+                    eldest.remove();
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Set the maximum total number of records held in the region cache; zero, the default, for no cache.
+     */
+    public void setRegionCacheLimit(int regionCacheLimit) {
+        synchronized (regionCache) {
+            this.regionCacheLimit = regionCacheLimit;
+            regionCache.clear();
+            regionCacheRecords = 0;
+        }
+    }
+
+    /**
+     * Return the number of region queries answered from the region cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Return the number of region queries read from the file while the region cache was on.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Lease a reader over the file for the calling thread's use, from the pool if one is idle.
+     */
+    public VCFFileReader leaseReader() {
+        VCFFileReader leased = idleReaders.pollFirst();
+        return leased!=null ? leased : new VCFFileReader(new File(filename));
+    }
+
+    /**
+     * Return a leased reader to the pool.
+     */
+    public void releaseReader(VCFFileReader leased) {
+        idleReaders.addFirst(leased);
+    }
+
+    /**
+     * Close the reader and the pooled readers.
+     */
+    public void close() {
+        reader.close();
+        VCFFileReader idle;
+        while ((idle=idleReaders.pollFirst())!=null) idle.close();
+    }
+
+    /**
+     * Return a parallel stream over all records, a contig per partition, in file order when consumed with forEachOrdered.
+     */
+    public Stream<VariantContext> parallelStream() {
+        return parallelStream(0);
+    }
+
+    /**
+     * Return a parallel stream over all records, partitioned into regions of regionLength on each contig whose length is in the header
+     * (a region of zero length for whole contigs), each region read from the index by a reader leased from the pool. A record belongs to the region
+     * holding its start, so records spanning a boundary appear once.
+     */
+    public Stream<VariantContext> parallelStream(int regionLength) {
+        if (vcList!=null) return vcList.parallelStream();
+        Map<String,Integer> lengths = new HashMap<>();
+        for (VCFContigHeaderLine line : reader.getFileHeader().getContigLines()) {
+            try {
+                lengths.put(line.getID(), line.getSAMSequenceRecord().getSequenceLength());
+            } catch (TribbleException e) {
+                // no length
+            }
+        }
+        List<Region> regions = new ArrayList<>();
+        for (String contig : getContigs()) {
+            int length = lengths.getOrDefault(contig, 0);
+            if (regionLength<=0 || length<=0) {
+                regions.add(new Region(contig, 1, Integer.MAX_VALUE));
+            } else {
+                for (int start=1; start<=length; start+=regionLength) {
+                    // the last region takes anything past the stated length
+                    regions.add(new Region(contig, start, start+regionLength>length ? Integer.MAX_VALUE : start+regionLength-1));
+                }
+            }
+        }
+        return regions.parallelStream().flatMap(region -> {
+                VCFFileReader regionReader = leaseReader();
+                return stream(regionReader.query(region.contig, region.start, region.end))
+                    .filter(vc -> vc.getStart()>=region.start)
+                    .onClose(() -> releaseReader(regionReader));
+            });
+    }
+
+    /**
+     * Return the contigs with records, in file order, from the index, or from the header's contig lines if the index doesn't list them.
+     */
+    public List<String> getContigs() {
+        String indexFilename = filename.endsWith(".gz") ? Tribble.tabixIndexFile(filename) : Tribble.indexFile(filename);
+        if (new File(indexFilename).exists()) {
+            return new ArrayList<>(IndexFactory.loadIndex(indexFilename).getSequenceNames());
+        }
+        List<String> contigs = new ArrayList<>();
+        for (VCFContigHeaderLine line : reader.getFileHeader().getContigLines()) contigs.add(line.getID());
+        return contigs;
+    }
+
+    /**
+     * Wrap an iterator as a sequential stream that closes it.
+     */
+    static Stream<VariantContext> stream(CloseableIterator<VariantContext> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED|Spliterator.NONNULL), false).onClose(iterator::close);
+    }
+
+    /**
+     * The records of one contig in start order, file order among equal starts.
+     */
+    static class ContigRecords {
+        List<VariantContext> records;
+        int[] starts;
+        int maxSpan; // largest end-start of a record
+
+        ContigRecords(List<VariantContext> records) {
+            records.sort(Comparator.comparingInt(VariantContext::getStart));
+            this.records = records;
+            starts = new int[records.size()];
+            for (int k=0; k<starts.length; k++) {
+                VariantContext vc = records.get(k);
+                starts[k] = vc.getStart();
+                maxSpan = Math.max(maxSpan, vc.getEnd()-vc.getStart());
+            }
+        }
+
+        /**
+         * Return the records overlapping the closed region [start,end]: those starting within it, and those starting up to maxSpan
+         * before it that reach into it.
+         */
+        Stream<VariantContext> overlapping(int start, int end) {
+            int from = lowerBound((long) start - maxSpan);
+            int to = lowerBound((long) end + 1);
+            return records.subList(from, Math.max(from, to)).stream().filter(vc -> vc.getEnd()>=start);
+        }
+
+        /**
+         * Return the first record with start at least pos, or the number of records if there is none.
+         */
+        int lowerBound(long pos) {
+            int low = 0;
+            int high = starts.length;
+            while (low<high) {
+                int mid = (low+high) >>> 1;
+                if (starts[mid]<pos) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Passes records through while collecting up to cacheLimit of them, setting vcList if it reaches the end within the limit.
+     */
+    class CachingIterator implements Iterator<VariantContext> {
+        Iterator<VariantContext> iterator;
+        List<VariantContext> cache = new ArrayList<>();
+
+        CachingIterator(Iterator<VariantContext> iterator) {
+            this.iterator = iterator;
+        }
+
+        public boolean hasNext() {
+            boolean hasNext = iterator.hasNext();
+            if (!hasNext && cache!=null) {
+                setRecords(cache);
+                cache = null;
+            }
+            return hasNext;
+        }
+
+        public VariantContext next() {
+            VariantContext vc = iterator.next();
+            if (cache!=null) {
+                if (cache.size()<cacheLimit) {
+                    cache.add(vc);
+                } else {
+                    cache = null; // too many to keep
+                }
+            }
+            return vc;
+        }
+    }
+
 }
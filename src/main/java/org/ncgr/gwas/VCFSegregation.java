@@ -5,17 +5,18 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
 
 import java.text.DecimalFormat;
 
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.TreeSet;
+import java.util.stream.IntStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -40,11 +41,18 @@ import htsjdk.variant.vcf.VCFHeader;
  *
  * Cases and controls are given by a phenotype file in dbGaP format, or by a labels file.
  *
+ * Genotypes may instead be read from a PLINK binary fileset (.bed/.bim/.fam) with -bfile, matching samples by IID. The genotypes of
+ * cases and controls are then counted by popcounts against sample masks, a block of variants at a time with the variants of a block
+ * in parallel, and written as VCF genotype strings (REF/ALT for a het, ./. for a no-call) so the seg records are the same as from an
+ * unphased biallelic VCF. Burden tests need a VCF.
+ *
  * @author Sam Hokin
  */
 public class VCFSegregation {
     static DecimalFormat percf = new DecimalFormat("0.000%");
-    static DecimalFormat countf = new DecimalFormat("00000");
+    static int PLINK_BLOCK_SIZE = 4096;
+    static String DEFAULT_BURDEN_TYPE = "gene";
+    static double DEFAULT_BURDEN_MAX_MAF = 0.01;
 
     /**
      * Main class outputs a tab-delimited list of the contingency matrix for each locus, plus the Cochran-Armitage trend test p value.
@@ -67,10 +75,14 @@ public class VCFSegregation {
         phenoFileOption.setRequired(false);
         options.addOption(phenoFileOption);
 	//
-        Option vcfFileOption = new Option("vcf", "vcffile", true, "VCF file");
-        vcfFileOption.setRequired(true);
+        Option vcfFileOption = new Option("vcf", "vcffile", true, "VCF file (or -bfile)");
+        vcfFileOption.setRequired(false);
         options.addOption(vcfFileOption);
 	//
+	Option plinkPrefixOption = new Option("bfile", "plinkprefix", true, "prefix of PLINK .bed/.bim/.fam files to read instead of a VCF");
+	plinkPrefixOption.setRequired(false);
+	options.addOption(plinkPrefixOption);
+	//
         Option ccVarOption = new Option("ccv", "casecontrolvar", true, "case/control variable in dbGaP phenotype file (e.g. ANALYSIS_CAT)");
 	ccVarOption.setRequired(false);
         options.addOption(ccVarOption);
@@ -126,6 +138,34 @@ public class VCFSegregation {
 	Option endOption = new Option("end", "end", true, "end location for output loci (requires -chr and -start)");
 	endOption.setRequired(false);
 	options.addOption(endOption);
+	//
+	Option outFileOption = new Option("out", "outfile", true, "output file, bgzipped if it ends in .gz (STDOUT)");
+	outFileOption.setRequired(false);
+	options.addOption(outFileOption);
+	//
+	Option phenoCacheOption = new Option("pc", "phenocache", false, "cache the parsed dbGaP files as [file].pcache for faster repeat runs (false)");
+	phenoCacheOption.setRequired(false);
+	options.addOption(phenoCacheOption);
+	//
+	Option burdenGFFOption = new Option("bgff", "burdengff", true, "GFF file of genes for rare-variant burden tests (requires -bout)");
+	burdenGFFOption.setRequired(false);
+	options.addOption(burdenGFFOption);
+	//
+	Option gffCacheOption = new Option("gc", "gffcache", false, "cache the parsed burden GFF as [file].gffcache for faster repeat runs (false)");
+	gffCacheOption.setRequired(false);
+	options.addOption(gffCacheOption);
+	//
+	Option burdenTypeOption = new Option("btype", "burdentype", true, "GFF feature type of burden genes ("+DEFAULT_BURDEN_TYPE+")");
+	burdenTypeOption.setRequired(false);
+	options.addOption(burdenTypeOption);
+	//
+	Option burdenMaxMAFOption = new Option("bmaf", "burdenmaxmaf", true, "MAF below which a variant is included in burden tests ("+DEFAULT_BURDEN_MAX_MAF+")");
+	burdenMaxMAFOption.setRequired(false);
+	options.addOption(burdenMaxMAFOption);
+	//
+	Option burdenFileOption = new Option("bout", "burdenfile", true, "burden test output file, bgzipped if it ends in .gz");
+	burdenFileOption.setRequired(false);
+	options.addOption(burdenFileOption);
 	
         try {
             cmd = parser.parse(options, args);
@@ -150,6 +190,22 @@ public class VCFSegregation {
         if (cmd.hasOption("maxnocalls")) maxNoCalls = Integer.parseInt(cmd.getOptionValue("maxnocalls"));
         boolean ignorePhase = cmd.hasOption("ignorephase");
 
+	// genotypes come from a VCF or a PLINK fileset
+	if (cmd.hasOption("vcffile")==cmd.hasOption("plinkprefix")) {
+	    System.err.println("ERROR: exactly one of -vcf and -bfile is required");
+	    System.exit(1);
+	}
+	if (cmd.hasOption("plinkprefix") && cmd.hasOption("burdengff")) {
+	    System.err.println("ERROR: -bgff requires -vcf");
+	    System.exit(1);
+	}
+
+	// burden tests are written to their own file
+	if (cmd.hasOption("burdengff") && !cmd.hasOption("burdenfile")) {
+	    System.err.println("ERROR: -bgff requires -bout");
+	    System.exit(1);
+	}
+
 	// region-limiting options if (chr==null) then all regions
 	String chr = null;
 	int chrStart = 0;
@@ -211,31 +267,10 @@ public class VCFSegregation {
             //
             // NOTE: there may be MORE THAN ONE LINE for the same dbGaP_Subject_ID! We'll assume that SAMPLE IDs are unique.
             //
-            Map<String,String> sampleIdMap = new HashMap<>(); // keyed by dbGaPSubjectId=dbGaP_Subject_ID
+            DbGaPLoader loader = new DbGaPLoader();
+            loader.useCache = cmd.hasOption("phenocache");
             if (cmd.hasOption("samplefile")) {
-                BufferedReader sampleReader = new BufferedReader(new FileReader(cmd.getOptionValue("samplefile")));
-                int sampleVarOffset = -1;
-                boolean headerLine = true;
-                String line = null;
-                while ((line=sampleReader.readLine())!=null) {
-                    if (line.startsWith("#")) {
-                        continue; // comment
-                    } else if (line.trim().length()==0) {
-                        continue; // blank
-                    } else if (headerLine) {
-                        // variable header
-                        String[] vars = line.split("\t");
-                        for (int i=0; i<vars.length; i++) {
-                            if (vars[i].equals(sampleVar)) sampleVarOffset = i;
-                        }
-                        headerLine = false;
-                    } else {
-                        String[] data = line.split("\t");
-                        String dbGaPSubjectId = data[0]; // assume first column is dbGaP_Subject_ID, which I hope is always true -- not necessarily unique!!
-                        String sampleId = data[sampleVarOffset]; // presume this is unique
-                        sampleIdMap.put(sampleId, dbGaPSubjectId);
-                    }
-                }
+                loader.loadSampleFile(cmd.getOptionValue("samplefile"), sampleVar);
             }
             // the required phenotypes file provides case/control information per sample
             // 
@@ -252,64 +287,24 @@ public class VCFSegregation {
             // dbGaP_Subject_ID SUBJID  SEX PRIMARY_DISEASE   ANALYSIS_CAT SITE  Coverage_Pass
             // 1287483          PT-FJ7E M   Bipolar_Disorder  Case         BROAD N
             //
-            boolean headerLine = true;
-	    // temp here because need to be final in parallel loop
-            int ccVarOffset = -1;
-            int sexVarOffset = -1;
-	    int raceVarOffset = -1;
-            int diseaseVarOffset = -1;
 	    System.err.println("Reading pheno lines from "+cmd.getOptionValue("phenofile"));
-	    String phenoLine;
-            BufferedReader phenoReader = new BufferedReader(new FileReader(cmd.getOptionValue("phenofile")));
-            while ((phenoLine=phenoReader.readLine())!=null) {
-                if (phenoLine.startsWith("#")) {
-                    continue; // comment
-                } else if (phenoLine.trim().length()==0) {
-                    continue; // blank
-                } else if (headerLine) {
-                    // variable header
-                    String[] vars = phenoLine.split("\t");
-                    for (int i=0; i<vars.length; i++) {
-                        if (vars[i].equals(ccVar)) ccVarOffset = i;
-                        if (vars[i].equals("SEX")) sexVarOffset = i;
-			if (vars[i].equals("RACE")) raceVarOffset = i;
-			if (diseaseVar!=null && vars[i].equals(diseaseVar)) diseaseVarOffset = i;
-                    }
-                    headerLine = false;
-                } else {
-		    // process this pheno line
-                    String[] data = phenoLine.split("\t");
-                    String dbGaPSubjectId = data[0]; // assume first column is dbGaP_Subject_ID, which I hope is always true
-                    List<String> sampleIds = new ArrayList<>(); // we may have more than one sample ID per dbGaP_Subject_ID!
-                    if (sampleIdMap.size()==0) {
-                        // no samples file, so assume ID in the second column is used in the VCF
-                        sampleIds.add(data[1]);
-                    } else {
-                        // spin through the records to get all the sample IDs for this dbGaPSubjectId
-                        for (String sampleId : sampleIdMap.keySet()) {
-                            String dgsId = sampleIdMap.get(sampleId);
-                            if (dgsId.equals(dbGaPSubjectId)) sampleIds.add(sampleId);
-                        }
-                    }
-                    String ccValue = data[ccVarOffset];
-                    String sexValue = "";
-		    String raceValue  = "";
-                    String diseaseValue = null;
-                    if (sexVarOffset>0) sexValue = data[sexVarOffset];
-		    if (raceVarOffset>0) raceValue = data[raceVarOffset];
-		    if (diseaseVarOffset>0) diseaseValue = data[diseaseVarOffset];
-                    boolean isCase = ccValue.equals(caseValue);
-                    boolean isControl = ccValue.equals(controlValue);
-                    boolean isDisease = diseaseVar==null || diseaseValue.contains(diseaseName);
-		    boolean isDesiredSex = desiredSexValue==null || sexValue==null || sexValue.equals(desiredSexValue);
-		    boolean isDesiredRace = desiredRaceValue==null || raceValue==null || raceValue.equals(desiredRaceValue);
-                    if (((isDisease && isCase) || isControl) && isDesiredSex && isDesiredRace) {
-                        for (String sampleId : sampleIds) {
-                            subjectStatus.put(sampleId, isCase); // true = case
-                        }
-                    }
-		}
-	    }
+	    String[] vars = { ccVar, "SEX", "RACE", diseaseVar };
+	    loader.readPhenoFile(cmd.getOptionValue("phenofile"), vars, (sampleIds, values) -> {
+		    String ccValue = values[0];
+		    String sexValue = values[1]==null ? "" : values[1];
+		    String raceValue = values[2]==null ? "" : values[2];
+		    String diseaseValue = values[3];
+		    boolean isCase = caseValue.equals(ccValue);
+		    boolean isControl = controlValue.equals(ccValue);
+		    boolean isDisease = diseaseVar==null || (diseaseValue!=null && diseaseValue.contains(diseaseName));
+		    boolean isDesiredSex = desiredSexValue==null || sexValue.equals(desiredSexValue);
+		    boolean isDesiredRace = desiredRaceValue==null || raceValue.equals(desiredRaceValue);
+		    if (((isDisease && isCase) || isControl) && isDesiredSex && isDesiredRace) {
+			for (String sampleId : sampleIds) {
+			    subjectStatus.put(sampleId, isCase); // true = case
+			}
+		    }
+		});
 	    // total the cases/controls
 	    int caseCount = 0;
 	    int ctrlCount = 0;
@@ -323,10 +318,28 @@ public class VCFSegregation {
 	    System.err.println("Found "+caseCount+" cases and "+ctrlCount+" controls in pheno file.");
         }
         // find the desired sample names as they appear in the VCF file
-	System.err.println("Reading sample names from "+cmd.getOptionValue("vcffile"));
-	VCFFileReader vcfReader = new VCFFileReader(new File(cmd.getOptionValue("vcffile")));
-        VCFHeader vcfHeader = vcfReader.getFileHeader();
-        List<String> vcfSampleNames = vcfHeader.getSampleNamesInOrder(); // all subjects in the VCF
+	String vcfFilename = cmd.getOptionValue("vcffile");
+	VCFFileReader vcfReader = null;
+	VCFLineIterator vcfLineIterator = null;
+	GenotypeMatrix matrix = null;
+        List<String> vcfSampleNames;                                     // all subjects in the VCF
+	if (cmd.hasOption("plinkprefix")) {
+	    System.err.println("Reading sample names from "+cmd.getOptionValue("plinkprefix")+".fam");
+	    matrix = GenotypeMatrix.read(cmd.getOptionValue("plinkprefix"));
+	    vcfSampleNames = matrix.getSampleNames();
+	} else {
+	    System.err.println("Reading sample names from "+vcfFilename);
+	    // a whole-file pass reads the VCF directly, inflating on several threads; a region query needs the index
+	    VCFHeader vcfHeader;
+	    if (chr!=null) {
+		vcfReader = new VCFFileReader(new File(vcfFilename));
+		vcfHeader = vcfReader.getFileHeader();
+	    } else {
+		vcfLineIterator = new VCFLineIterator(vcfFilename);
+		vcfHeader = vcfLineIterator.getHeader();
+	    }
+	    vcfSampleNames = vcfHeader.getSampleNamesInOrder();
+	}
         Set<String> caseSampleNames = new HashSet<>();                   // case subjects in the VCF
         Set<String> controlSampleNames = new HashSet<>();                // control subjects in the VCF
 	int nCases = 0;
@@ -358,7 +371,18 @@ public class VCFSegregation {
             }
             if (!found) System.err.println("Subject "+sampleName+" and "+doubleSampleName+" NOT FOUND in VCF.");
 	}
-	System.err.println("Found "+nCases+" cases and "+nControls+" controls in VCF file.");
+	System.err.println("Found "+nCases+" cases and "+nControls+" controls in "+(matrix==null ? "VCF file." : "PLINK fileset."));
+	if (matrix!=null) {
+	    if (chr!=null) {
+		System.err.println("Loading qualified loci within "+chr+":"+chrStart+"-"+chrEnd+" from "+cmd.getOptionValue("plinkprefix"));
+	    } else {
+		System.err.println("Loading qualified loci from "+cmd.getOptionValue("plinkprefix"));
+	    }
+	    PrintStream out = ParallelBGZFOutputStream.openPrintStream(cmd.getOptionValue("outfile"));
+	    writeSegRecords(matrix, chr, chrStart, chrEnd, maxNoCalls, minMAF, ignorePhase, caseSampleNames, controlSampleNames, out);
+	    out.close();
+	    return;
+	}
 	// calculate GWAS stats for each VariantContext
 
 	// CloseableIterator<VariantContext> 	iterator()
@@ -372,9 +396,21 @@ public class VCFSegregation {
 	    iterator = vcfReader.query(chr, chrStart, chrEnd);
 	} else {
 	    System.err.println("Loading qualified loci from "+cmd.getOptionValue("vcffile"));
-	    iterator = vcfReader.iterator();
+	    iterator = vcfLineIterator;
+	}
+	PrintStream out = ParallelBGZFOutputStream.openPrintStream(cmd.getOptionValue("outfile"));
+	// optional rare-variant burden tests per gene, collected in the same pass
+	BurdenCollector burden = null;
+	PrintStream burdenOut = null;
+	if (cmd.hasOption("burdengff")) {
+	    String burdenType = cmd.hasOption("burdentype") ? cmd.getOptionValue("burdentype") : DEFAULT_BURDEN_TYPE;
+	    double burdenMaxMAF = cmd.hasOption("burdenmaxmaf") ? Double.parseDouble(cmd.getOptionValue("burdenmaxmaf")) : DEFAULT_BURDEN_MAX_MAF;
+	    burdenOut = ParallelBGZFOutputStream.openPrintStream(cmd.getOptionValue("burdenfile"));
+	    burden = new BurdenCollector(GFFTable.load(cmd.getOptionValue("burdengff"), cmd.hasOption("gffcache")), burdenType, burdenMaxMAF, caseSampleNames, controlSampleNames, burdenOut);
+	    System.err.println("Collecting burden tests on "+burden.getGeneCount()+" "+burdenType+" features with MAF<"+burdenMaxMAF);
 	}
-	for (VariantContext vc : iterator.toList()) {
+	while (iterator.hasNext()) {
+	    VariantContext vc = iterator.next();
             String contig = vc.getContig();
 	    int start = vc.getStart();
 	    int end = vc.getEnd();
@@ -383,8 +419,9 @@ public class VCFSegregation {
 	    // no-call count filter
 	    int noCallCount = vc.getNoCallCount();
 	    if (maxNoCalls>0 && noCallCount>maxNoCalls) continue;
-	    // minimum MAF filter
 	    double maf = getMAF(vc);
+	    if (burden!=null) burden.add(vc, maf);
+	    // minimum MAF filter
 	    if (maf<minMAF) continue;
 	    // requirements satisfied, continue
 	    List<Genotype> genotypes = vc.getGenotypes(); // one per sample!
@@ -393,23 +430,7 @@ public class VCFSegregation {
 	    Map<String,Integer> controlCounts = new HashMap<>();
 	    for (Genotype g : genotypes) {
 		String gString = g.getGenotypeString();
-		if (ignorePhase) {
-		    // sort the alleles in alphabetic order as unphased genotype
-		    String[] alleles = gString.split("|");
-		    if (alleles.length>1 && !alleles[0].equals(alleles[1])) {
-			TreeSet<String> sortedAlleles = new TreeSet<>(Arrays.asList(alleles));
-			boolean first = true;
-			gString = "";
-			for (String allele : sortedAlleles) {
-			    if (first) {
-				first = false;
-			    } else {
-				gString += "/";
-			    }
-			    gString += allele;
-			}
-		    }
-		}
+		if (ignorePhase) gString = unphase(gString);
 		if (!caseCounts.containsKey(gString)) caseCounts.put(gString, 0);
 		if (!controlCounts.containsKey(gString)) controlCounts.put(gString, 0);
 		String sampleName = g.getSampleName();
@@ -419,49 +440,145 @@ public class VCFSegregation {
 		    controlCounts.put(gString, controlCounts.get(gString)+1);
 		}
 	    }
-	    // order genotypes by decreasing control counts by using string sorting
-	    TreeSet<String> countsGenotypes = new TreeSet<>();
-	    for (String gs : controlCounts.keySet()) {
-		countsGenotypes.add(countf.format(controlCounts.get(gs))+":"+gs);
+	    SegRecord segRecord = getSegRecord(contig, start, id, maf, noCallCount, caseCounts, controlCounts);
+	    if (segRecord!=null) out.println(segRecord);
+	}
+	iterator.close();
+	out.close();
+	if (burden!=null) {
+	    burden.close();
+	    burdenOut.close();
+	}
+    }
+
+    /**
+     * Return the seg record of a locus from the counts of each genotype among cases and controls, with genotypes ordered by
+     * decreasing control count, or null if the Cochran-Armitage test fails.
+     */
+    static SegRecord getSegRecord(String contig, int start, String id, double maf, int noCallCount, Map<String,Integer> caseCounts, Map<String,Integer> controlCounts) {
+	// order genotypes by decreasing control counts by using string sorting (String.format, since this runs on several threads)
+	TreeSet<String> countsGenotypes = new TreeSet<>();
+	for (String gs : controlCounts.keySet()) {
+	    countsGenotypes.add(String.format("%05d", controlCounts.get(gs))+":"+gs);
+	}
+	// Cochran-Armitage test
+	int numRows = 2;
+	int numCols = countsGenotypes.size();
+	int[][] countTable = new int[numRows][numCols];
+	int[] weights = new int[numCols];
+	// straight allelic association (not additive)
+	weights[0] = 0;
+	for (int i=1; i<weights.length; i++) weights[i] = 1;
+	CochranArmitage ca = new CochranArmitage(weights);
+	// concatenated representation of counts for output
+	String caseString = "";
+	String controlString = "";
+	String genotypeString = "";
+	// order counts by control descending
+	int j = 0;
+	for (String cg : countsGenotypes.descendingSet()) {
+	    String[] parts = cg.split(":");
+	    String gs = parts[1];
+	    if (j>0) {
+		genotypeString += ":";
+		controlString += ":";
+		caseString += ":";
 	    }
-	    // Cochran-Armitage test
-	    int numRows = 2;
-	    int numCols = countsGenotypes.size();
-	    int[][] countTable = new int[numRows][numCols];
-	    int[] weights = new int[numCols];
-	    // straight allelic association (not additive)
-	    weights[0] = 0;
-	    for (int i=1; i<weights.length; i++) weights[i] = 1;
-	    CochranArmitage ca = new CochranArmitage(weights);
-	    // concatenated representation of counts for output
-	    String caseString = "";
-	    String controlString = "";
-	    String genotypeString = "";
-	    // order counts by control descending
-	    int j = 0;
-	    for (String cg : countsGenotypes.descendingSet()) {
-		String[] parts = cg.split(":");
-		String gs = parts[1];
-		if (j>0) {
-		    genotypeString += ":";
-		    controlString += ":";
-		    caseString += ":";
+	    genotypeString += gs;
+	    controlString += controlCounts.get(gs);
+	    caseString += caseCounts.get(gs);
+	    countTable[0][j] = controlCounts.get(gs);
+	    countTable[1][j] = caseCounts.get(gs);
+	    j++;
+	}
+	try {
+	    double pValue = ca.test(countTable);
+	    // we can still get a few cases with 0 alternative counts
+	    if (Double.isNaN(pValue)) return null;
+	    return new SegRecord(contig, start, id, genotypeString, maf, noCallCount, caseString, controlString, ca.standardStatistic, pValue);
+	} catch (ArithmeticException ex) {
+	    // divide by zero
+	    return null;
+	}
+    }
+
+    /**
+     * Return a genotype string with its alleles in alphabetic order, as an unphased genotype.
+     */
+    static String unphase(String gString) {
+	// sort the alleles in alphabetic order as unphased genotype
+	String[] alleles = gString.split("|");
+	if (alleles.length>1 && !alleles[0].equals(alleles[1])) {
+	    TreeSet<String> sortedAlleles = new TreeSet<>(Arrays.asList(alleles));
+	    boolean first = true;
+	    gString = "";
+	    for (String allele : sortedAlleles) {
+		if (first) {
+		    first = false;
+		} else {
+		    gString += "/";
 		}
-		genotypeString += gs;
-		controlString += controlCounts.get(gs);
-		caseString += caseCounts.get(gs);
-		countTable[0][j] = controlCounts.get(gs);
-		countTable[1][j] = caseCounts.get(gs);
-		j++;
+		gString += allele;
 	    }
-	    try {
-		double pValue = ca.test(countTable);
-		// we can still get a few cases with 0 alternative counts
-		if (Double.isNaN(pValue)) continue;
-		// print this record
-		System.out.println(new SegRecord(contig, start, id, genotypeString, maf, noCallCount, caseString, controlString, ca.standardStatistic, pValue));
-	    } catch (ArithmeticException ex) {
-		// do nothing, divide by zero
+	}
+	return gString;
+    }
+
+    /**
+     * Write the seg records of the variants of a PLINK fileset within the given region (all if chr is null), as from a VCF. Variants are
+     * read a block at a time, from the region's first variant to its last, and the variants of a block counted in parallel and written in order.
+     */
+    static void writeSegRecords(GenotypeMatrix matrix, String chr, int chrStart, int chrEnd, int maxNoCalls, double minMAF, boolean ignorePhase,
+				Set<String> caseSampleNames, Set<String> controlSampleNames, PrintStream out) {
+	long[] caseMask = matrix.getMask(caseSampleNames);
+	long[] controlMask = matrix.getMask(controlSampleNames);
+	long[] allMask = matrix.getMask(matrix.getSampleNames());
+	long[][] rows = new long[PLINK_BLOCK_SIZE][matrix.getWordCount()];
+	SegRecord[] segRecords = new SegRecord[PLINK_BLOCK_SIZE];
+	// only the blocks from the first to the last variant of a region are read
+	int first = 0;
+	int last = matrix.getVariantCount() - 1;
+	if (chr!=null) {
+	    int[] regionVariants = matrix.find(chr, chrStart, chrEnd);
+	    if (regionVariants.length==0) return;
+	    first = regionVariants[0];
+	    last = regionVariants[regionVariants.length-1];
+	}
+	for (int from=first; from<=last; from+=PLINK_BLOCK_SIZE) {
+	    final int blockStart = from;
+	    int count = Math.min(PLINK_BLOCK_SIZE, last+1-from);
+	    matrix.getRows(from, count, rows);
+	    IntStream.range(0, count).parallel().forEach(k -> {
+		    segRecords[k] = null;
+		    int v = blockStart + k;
+		    String contig = matrix.getContig(v);
+		    int start = matrix.getPosition(v);
+		    if (chr!=null && (!contig.equals(chr) || start<chrStart || start>chrEnd)) return;
+		    // no-call count filter
+		    int[] all = GenotypeMatrix.count(rows[k], allMask);
+		    int noCallCount = all[GenotypeMatrix.MISSING];
+		    if (maxNoCalls>0 && noCallCount>maxNoCalls) return;
+		    // minimum MAF filter, with REF the majority allele if tied as in getMAF
+		    int refCount = 2*all[GenotypeMatrix.HOM_REF] + all[GenotypeMatrix.HET];
+		    int altCount = 2*all[GenotypeMatrix.HOM_ALT] + all[GenotypeMatrix.HET];
+		    double maf = (double)(altCount>refCount ? refCount : altCount) / (double)(refCount+altCount);
+		    if (maf<minMAF) return;
+		    // get counts for each genotype present per case/control
+		    int[] cases = GenotypeMatrix.count(rows[k], caseMask);
+		    int[] controls = GenotypeMatrix.count(rows[k], controlMask);
+		    Map<String,Integer> caseCounts = new HashMap<>();
+		    Map<String,Integer> controlCounts = new HashMap<>();
+		    for (int code=0; code<4; code++) {
+			if (all[code]==0) continue;
+			String gString = matrix.getGenotypeString(v, code);
+			if (ignorePhase) gString = unphase(gString);
+			caseCounts.merge(gString, cases[code], Integer::sum);
+			controlCounts.merge(gString, controls[code], Integer::sum);
+		    }
+		    segRecords[k] = getSegRecord(contig, start, matrix.getID(v), maf, noCallCount, caseCounts, controlCounts);
+		});
+	    for (int k=0; k<count; k++) {
+		if (segRecords[k]!=null) out.println(segRecords[k]);
 	    }
 	}
     }
@@ -471,6 +588,20 @@ public class VCFSegregation {
      * NOTE: this handles the common case where the REF allele is NOT the majority.
      */
     public static double getMAF(VariantContext vc) {
+	Allele majorityAllele = getMajorityAllele(vc);
+	int minorityCount = 0;
+	for (Allele a : vc.getAlleles()) {
+	    if (!a.equals(majorityAllele)) {
+		minorityCount += vc.getCalledChrCount(a);
+	    }
+	}
+	return (double)minorityCount / (double)vc.getCalledChrCount();
+    }
+
+    /**
+     * Return the allele with the most called copies, the first such if tied, or null if there are no calls.
+     */
+    public static Allele getMajorityAllele(VariantContext vc) {
 	int majorityCount = 0;
 	Allele majorityAllele = null;
         for (Allele a : vc.getAlleles()) {
@@ -480,12 +611,6 @@ public class VCFSegregation {
 		majorityAllele = a;
 	    }
         }
-	int minorityCount = 0;
-	for (Allele a : vc.getAlleles()) {
-	    if (!a.equals(majorityAllele)) {
-		minorityCount += vc.getCalledChrCount(a);
-	    }
-	}
-	return (double)minorityCount / (double)vc.getCalledChrCount();
+	return majorityAllele;
     }
 }